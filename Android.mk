@@ -35,13 +35,62 @@ LOCAL_AAPT_FLAGS := \
     --extra-packages android.support.v7.cardview
 
 LOCAL_AAPT_INCLUDE_ALL_RESOURCES := true
-LOCAL_ASSET_DIR := $(LOCAL_PATH)/assets
+
+# The prebuilt search index is generated from the resources of this build,
+# including the overlays, and keyed on its build number: see PrebuiltIndex.
+search_index_intermediates := \
+    $(call intermediates-dir-for,APPS,$(LOCAL_PACKAGE_NAME),,COMMON)/search_index
+search_index_assets := $(search_index_intermediates)/assets
+search_index_stamp := $(search_index_intermediates)/search_index.stamp
+search_index_build_number := $(search_index_intermediates)/build_number.txt
+search_index_generator := \
+    $(HOST_OUT_JAVA_LIBRARIES)/settings-search-index-generator$(COMMON_JAVA_PACKAGE_SUFFIX)
+search_index_res_dirs := $(strip \
+    $(wildcard $(foreach dir, $(PRODUCT_PACKAGE_OVERLAYS) $(DEVICE_PACKAGE_OVERLAYS), \
+      $(dir)/$(LOCAL_PATH)/res)) \
+    $(LOCAL_PATH)/res)
+search_index_framework_res_dirs := $(strip \
+    $(wildcard $(foreach dir, $(PRODUCT_PACKAGE_OVERLAYS) $(DEVICE_PACKAGE_OVERLAYS), \
+      $(dir)/frameworks/base/core/res/res)) \
+    $(wildcard frameworks/base/core/res/res))
+search_index_inputs := $(foreach dir, $(search_index_res_dirs) $(search_index_framework_res_dirs), \
+    $(addprefix $(dir)/, $(call find-subdir-assets,$(dir))))
+
+# Only changes when the build number does, so that the index is generated again
+$(search_index_build_number): FORCE
+	$(hide) mkdir -p $(dir $@)
+	$(hide) echo "$(BUILD_NUMBER)" > $@.tmp
+	$(hide) if cmp -s $@.tmp $@; then rm -f $@.tmp; else mv $@.tmp $@; fi
+
+$(search_index_stamp): PRIVATE_GENERATOR := $(search_index_generator)
+$(search_index_stamp): PRIVATE_OUT := $(search_index_assets)/search_index
+$(search_index_stamp): PRIVATE_RES_DIRS := $(search_index_res_dirs)
+$(search_index_stamp): PRIVATE_FRAMEWORK_RES_DIRS := $(search_index_framework_res_dirs)
+$(search_index_stamp): $(search_index_generator) $(search_index_build_number) \
+        $(search_index_inputs)
+	@echo "Search index: $(PRIVATE_OUT)"
+	$(hide) rm -rf $(PRIVATE_OUT)
+	$(hide) $(JAVA) -cp $(PRIVATE_GENERATOR) \
+		com.android.settings.search.generator.SearchIndexGenerator \
+		$(if $(TARGET_AAPT_CHARACTERISTICS),--product $(TARGET_AAPT_CHARACTERISTICS)) \
+		--build "$(BUILD_NUMBER)" --out $(PRIVATE_OUT) \
+		$(addprefix --res , $(PRIVATE_RES_DIRS)) \
+		$(addprefix --framework-res , $(PRIVATE_FRAMEWORK_RES_DIRS))
+	$(hide) touch $@
+
+LOCAL_ASSET_DIR := $(LOCAL_PATH)/assets $(search_index_assets)
+LOCAL_ADDITIONAL_DEPENDENCIES := $(search_index_stamp)
 
 LOCAL_JAVA_LIBRARIES += org.cyanogenmod.hardware
 
 include frameworks/opt/setupwizard/navigationbar/common.mk
 include $(BUILD_PACKAGE)
 
+# The generator of the prebuilt search index is also needed by mm.
+settings_local_path := $(LOCAL_PATH)
+include $(LOCAL_PATH)/tools/searchindex/Android.mk
+LOCAL_PATH := $(settings_local_path)
+
 # Use the following include to make our test apk.
 ifeq (,$(ONE_SHOT_MAKEFILE))
 include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * On-disk cache of the labels and icons of the applications, so that a cold
+ * started Settings can show the app list before PackageManager has loaded
+ * them again.
+ *
+ * Records are keyed by package name, version code and last update time; the
+ * whole file is only valid for the locale and screen density it has been
+ * written with. The file is read sequentially once, and icons are only
+ * decoded when looked up.
+ */
+class AppEntryCache {
+    static final String TAG = "AppEntryCache";
+    static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "app_entries.cache";
+    private static final int FILE_VERSION = 1;
+    // Upper bound of the icons read, against corrupted files
+    private static final int MAX_ICON_BYTES = 256 * 1024;
+
+    static final class Record {
+        final int versionCode;
+        final long lastUpdateTime;
+        final String label;
+        final byte[] iconBytes;
+
+        Record(int versionCode, long lastUpdateTime, String label, byte[] iconBytes) {
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+            this.label = label;
+            this.iconBytes = iconBytes;
+        }
+    }
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+
+    // Synchronize on this for the following
+    private String mLocale;
+    private int mDensity;
+    private int mIconSize;
+    private HashMap<String, Record> mRecords;
+    private boolean mDirty;
+
+    AppEntryCache(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+        reset();
+    }
+
+    /**
+     * Forgets the records, to be read again for the current locale and
+     * density.  Called when the configuration changed.
+     */
+    synchronized void reset() {
+        final Resources res = mContext.getResources();
+        mLocale = Locale.getDefault().toString();
+        mDensity = res.getDisplayMetrics().densityDpi;
+        mIconSize = res.getDimensionPixelSize(android.R.dimen.app_icon_size);
+        mRecords = null;
+        mDirty = false;
+    }
+
+    /**
+     * Reads the cache file if it has not been read yet.
+     */
+    synchronized void ensureLoaded() {
+        if (mRecords != null) {
+            return;
+        }
+        mRecords = new HashMap<String, Record>();
+        final long start = SystemClock.uptimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != FILE_VERSION || !mLocale.equals(in.readUTF())
+                    || in.readInt() != mDensity) {
+                if (DEBUG) Log.i(TAG, "Discarding cache of another configuration");
+                return;
+            }
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final String packageName = in.readUTF();
+                final int versionCode = in.readInt();
+                final long lastUpdateTime = in.readLong();
+                final String label = in.readUTF();
+                final int iconLength = in.readInt();
+                if (iconLength < 0 || iconLength > MAX_ICON_BYTES) {
+                    throw new IOException("Bad icon length " + iconLength);
+                }
+                final byte[] iconBytes = new byte[iconLength];
+                in.readFully(iconBytes);
+                mRecords.put(packageName,
+                        new Record(versionCode, lastUpdateTime, label, iconBytes));
+            }
+            if (DEBUG) Log.i(TAG, "Loaded " + count + " records in "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+        } catch (FileNotFoundException e) {
+            // First start
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + FILE_NAME, e);
+            mRecords.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the record of a package if it is still valid for its version
+     * code and last update time, or null.
+     */
+    synchronized Record get(String packageName, int versionCode, long lastUpdateTime) {
+        ensureLoaded();
+        final Record record = mRecords.get(packageName);
+        if (record == null || record.versionCode != versionCode
+                || record.lastUpdateTime != lastUpdateTime) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Decodes the icon of a record, or returns null if it cannot be.
+     */
+    Drawable getIcon(Record record) {
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(record.iconBytes, 0,
+                record.iconBytes.length);
+        return (bitmap != null) ? new BitmapDrawable(mContext.getResources(), bitmap) : null;
+    }
+
+    /**
+     * Stores the label and a downscaled copy of the icon of a package.
+     */
+    void put(String packageName, int versionCode, long lastUpdateTime, String label,
+            Drawable icon) {
+        final int iconSize;
+        synchronized (this) {
+            iconSize = mIconSize;
+        }
+        final byte[] iconBytes = compressIcon(icon, iconSize);
+        if (label == null || iconBytes == null) {
+            return;
+        }
+        synchronized (this) {
+            ensureLoaded();
+            final Record record = mRecords.get(packageName);
+            if (record != null && record.versionCode == versionCode
+                    && record.lastUpdateTime == lastUpdateTime && label.equals(record.label)) {
+                return;
+            }
+            mRecords.put(packageName, new Record(versionCode, lastUpdateTime, label, iconBytes));
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Writes the cache file if it changed, dropping the packages no longer
+     * installed.
+     */
+    void save(Set<String> installedPackages) {
+        final HashMap<String, Record> records;
+        final String locale;
+        final int density;
+        synchronized (this) {
+            if (!mDirty || mRecords == null) {
+                return;
+            }
+            mDirty = false;
+            records = new HashMap<String, Record>(mRecords);
+            locale = mLocale;
+            density = mDensity;
+        }
+        records.keySet().retainAll(installedPackages);
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(locale);
+            out.writeInt(density);
+            out.writeInt(records.size());
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                final Record record = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(record.versionCode);
+                out.writeLong(record.lastUpdateTime);
+                out.writeUTF(record.label);
+                out.writeInt(record.iconBytes.length);
+                out.write(record.iconBytes);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            if (DEBUG) Log.i(TAG, "Saved " + records.size() + " records");
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + FILE_NAME, e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    private static byte[] compressIcon(Drawable icon, int iconSize) {
+        if (icon == null) {
+            return null;
+        }
+        Bitmap bitmap = null;
+        if (icon instanceof BitmapDrawable) {
+            bitmap = ((BitmapDrawable) icon).getBitmap();
+        }
+        if (bitmap == null || bitmap.getWidth() > iconSize || bitmap.getHeight() > iconSize) {
+            final int width = Math.min(iconSize, Math.max(1, icon.getIntrinsicWidth() > 0
+                    ? icon.getIntrinsicWidth() : iconSize));
+            final int height = Math.min(iconSize, Math.max(1, icon.getIntrinsicHeight() > 0
+                    ? icon.getIntrinsicHeight() : iconSize));
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            final Canvas canvas = new Canvas(bitmap);
+            final Drawable drawable = icon.getConstantState() != null
+                    ? icon.getConstantState().newDrawable().mutate() : icon;
+            drawable.setBounds(0, 0, width, height);
+            drawable.draw(canvas);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Index of the word starts of the normalized labels of a list of entries,
+ * for the search of the app list.
+ *
+ * A label matches a prefix if it starts with it, or if one of its words
+ * does, words starting after a space.  Every such suffix of the labels is
+ * kept in a sorted array, in which the suffixes matching a prefix are a
+ * range found by binary search.  When the prefix is typed further, the
+ * range of the previous prefix is searched instead of the whole array.
+ */
+final class AppPrefixIndex {
+
+    private final ArrayList<AppEntry> mEntries;
+    private final int mCount;
+
+    // Suffixes of the labels starting at a word, sorted, and the position
+    // of the label each of them comes from.
+    private final String[] mSuffixes;
+    private final int[] mPositions;
+
+    // Synchronize on this for the following
+    private String mLastPrefix;
+    private int mLastStart;
+    private int mLastEnd;
+
+    private static final class Suffix implements Comparable<Suffix> {
+        final String suffix;
+        final int position;
+
+        Suffix(String suffix, int position) {
+            this.suffix = suffix;
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(Suffix other) {
+            return suffix.compareTo(other.suffix);
+        }
+    }
+
+    AppPrefixIndex(ArrayList<AppEntry> entries) {
+        this(entries, getNormalizedLabels(entries));
+    }
+
+    AppPrefixIndex(String[] normalizedLabels) {
+        this(null, normalizedLabels);
+    }
+
+    private AppPrefixIndex(ArrayList<AppEntry> entries, String[] normalizedLabels) {
+        mEntries = entries;
+        mCount = normalizedLabels.length;
+        final ArrayList<Suffix> suffixes = new ArrayList<Suffix>(mCount * 2);
+        for (int i=0; i<mCount; i++) {
+            final String label = normalizedLabels[i];
+            suffixes.add(new Suffix(label, i));
+            for (int j=1; j<label.length(); j++) {
+                if (label.charAt(j - 1) == ' ') {
+                    suffixes.add(new Suffix(label.substring(j), i));
+                }
+            }
+        }
+        final Suffix[] sorted = suffixes.toArray(new Suffix[suffixes.size()]);
+        Arrays.sort(sorted);
+        mSuffixes = new String[sorted.length];
+        mPositions = new int[sorted.length];
+        for (int i=0; i<sorted.length; i++) {
+            mSuffixes[i] = sorted[i].suffix;
+            mPositions[i] = sorted[i].position;
+        }
+    }
+
+    private static String[] getNormalizedLabels(List<AppEntry> entries) {
+        final String[] labels = new String[entries.size()];
+        for (int i=0; i<labels.length; i++) {
+            labels[i] = entries.get(i).getNormalizedLabel();
+        }
+        return labels;
+    }
+
+    /**
+     * Returns whether the index has been built for this list of entries.
+     */
+    boolean isIndexOf(ArrayList<AppEntry> entries) {
+        return mEntries == entries;
+    }
+
+    /**
+     * Returns the entries whose label matches a prefix, in the order of
+     * the list the index has been built for.
+     *
+     * @param normalizedPrefix the prefix, normalized with
+     *      {@link ApplicationsState#normalize(String)}.
+     */
+    ArrayList<AppEntry> filter(String normalizedPrefix) {
+        final int[] positions = filterPositions(normalizedPrefix);
+        final ArrayList<AppEntry> result = new ArrayList<AppEntry>(positions.length);
+        for (int i=0; i<positions.length; i++) {
+            result.add(mEntries.get(positions[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ascending positions of the labels matching a prefix.
+     */
+    synchronized int[] filterPositions(String normalizedPrefix) {
+        int start = 0;
+        int end = mSuffixes.length;
+        if (mLastPrefix != null && normalizedPrefix.startsWith(mLastPrefix)) {
+            // Narrow down the matches of the previous keystroke
+            start = mLastStart;
+            end = mLastEnd;
+        }
+        start = lowerBound(normalizedPrefix, start, end);
+        end = endOfPrefix(normalizedPrefix, start, end);
+        mLastPrefix = normalizedPrefix;
+        mLastStart = start;
+        mLastEnd = end;
+
+        // A label can match by several of its words
+        final BitSet matches = new BitSet(mCount);
+        for (int i=start; i<end; i++) {
+            matches.set(mPositions[i]);
+        }
+        final int[] positions = new int[matches.cardinality()];
+        int n = 0;
+        for (int i=matches.nextSetBit(0); i>=0; i=matches.nextSetBit(i + 1)) {
+            positions[n++] = i;
+        }
+        return positions;
+    }
+
+    /**
+     * Returns the first index in [start, end) of a suffix not less than
+     * the prefix, or end.
+     */
+    private int lowerBound(String prefix, int start, int end) {
+        while (start < end) {
+            final int mid = (start + end) >>> 1;
+            if (mSuffixes[mid].compareTo(prefix) < 0) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Returns the first index in [start, end) of a suffix not starting with
+     * the prefix, or end, the suffixes from start on not being less than it.
+     */
+    private int endOfPrefix(String prefix, int start, int end) {
+        while (start < end) {
+            final int mid = (start + end) >>> 1;
+            if (mSuffixes[mid].startsWith(prefix)) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return start;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * On-disk table of the last computed sizes of the applications, so that
+ * the app list can be sorted by size right away while the sizes are being
+ * computed again.
+ *
+ * Records are keyed by package name and last update time.
+ */
+class AppSizeCache {
+    static final String TAG = "AppSizeCache";
+
+    private static final String FILE_NAME = "app_sizes.cache";
+    private static final int FILE_VERSION = 1;
+
+    static final class Record {
+        final long lastUpdateTime;
+        final long cacheSize;
+        final long codeSize;
+        final long dataSize;
+        final long externalCodeSize;
+        final long externalDataSize;
+        final long externalCacheSize;
+        final long internalSize;
+        final long externalSize;
+
+        Record(long lastUpdateTime, ApplicationsState.AppEntry entry) {
+            this(lastUpdateTime, entry.cacheSize, entry.codeSize, entry.dataSize,
+                    entry.externalCodeSize, entry.externalDataSize, entry.externalCacheSize,
+                    entry.internalSize, entry.externalSize);
+        }
+
+        Record(long lastUpdateTime, long cacheSize, long codeSize, long dataSize,
+                long externalCodeSize, long externalDataSize, long externalCacheSize,
+                long internalSize, long externalSize) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.cacheSize = cacheSize;
+            this.codeSize = codeSize;
+            this.dataSize = dataSize;
+            this.externalCodeSize = externalCodeSize;
+            this.externalDataSize = externalDataSize;
+            this.externalCacheSize = externalCacheSize;
+            this.internalSize = internalSize;
+            this.externalSize = externalSize;
+        }
+
+        long getTotalSize() {
+            return externalCodeSize + externalDataSize + internalSize;
+        }
+    }
+
+    private final AtomicFile mFile;
+
+    // Synchronize on this for the following
+    private HashMap<String, Record> mRecords;
+    private boolean mDirty;
+
+    AppSizeCache(Context context) {
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+    }
+
+    private void ensureLoadedLocked() {
+        if (mRecords != null) {
+            return;
+        }
+        mRecords = new HashMap<String, Record>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final String packageName = in.readUTF();
+                mRecords.put(packageName, new Record(in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong()));
+            }
+        } catch (FileNotFoundException e) {
+            // First start
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + FILE_NAME, e);
+            mRecords.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the last sizes of a package if it has not been updated since,
+     * or null.
+     */
+    synchronized Record get(String packageName, long lastUpdateTime) {
+        ensureLoadedLocked();
+        final Record record = mRecords.get(packageName);
+        return (record != null && record.lastUpdateTime == lastUpdateTime) ? record : null;
+    }
+
+    synchronized void put(String packageName, Record record) {
+        ensureLoadedLocked();
+        mRecords.put(packageName, record);
+        mDirty = true;
+    }
+
+    /**
+     * Writes the table if it changed, dropping the packages no longer
+     * installed.
+     */
+    void save(Set<String> installedPackages) {
+        final HashMap<String, Record> records;
+        synchronized (this) {
+            if (!mDirty || mRecords == null) {
+                return;
+            }
+            mDirty = false;
+            records = new HashMap<String, Record>(mRecords);
+        }
+        records.keySet().retainAll(installedPackages);
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(records.size());
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                final Record record = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(record.lastUpdateTime);
+                out.writeLong(record.cacheSize);
+                out.writeLong(record.codeSize);
+                out.writeLong(record.dataSize);
+                out.writeLong(record.externalCodeSize);
+                out.writeLong(record.externalDataSize);
+                out.writeLong(record.externalCacheSize);
+                out.writeLong(record.internalSize);
+                out.writeLong(record.externalSize);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + FILE_NAME, e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
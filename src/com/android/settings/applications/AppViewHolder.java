@@ -42,6 +42,9 @@ public class AppViewHolder {
         }
     }
 
+    // Alpha of the sizes restored from the last run, until computed again
+    static final float STALE_SIZE_ALPHA = 0.5f;
+
     void updateSizeText(CharSequence invalidSizeStr, int whichSize) {
         if (ManageApplications.DEBUG) Log.i(ManageApplications.TAG, "updateSizeText of " + entry.label + " " + entry
                 + ": " + entry.sizeStr);
@@ -60,5 +63,6 @@ public class AppViewHolder {
         } else if (entry.size == ApplicationsState.SIZE_INVALID) {
             appSize.setText(invalidSizeStr);
         }
+        appSize.setAlpha(entry.sizeCached ? STALE_SIZE_ALPHA : 1f);
     }
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageStatsObserver;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageStats;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -23,6 +24,7 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import java.io.File;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -30,7 +32,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -56,6 +64,14 @@ public class ApplicationsState {
         public boolean filterApp(ApplicationInfo info);
     }
 
+    /**
+     * A filter that has no state: its init() does nothing and filterApp()
+     * only reads the given application.  The packages that did not change
+     * then do not need to be filtered again when rebuilding.
+     */
+    public static interface StatelessAppFilter extends AppFilter {
+    }
+
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
@@ -112,20 +128,47 @@ public class ApplicationsState {
         String externalSizeStr;
         boolean sizeStale;
         long sizeLoadStart;
+        // Sizes read from the AppSizeCache, shown as such until computed again
+        boolean sizeCached;
 
         String normalizedLabel;
-
-        AppEntry(Context context, ApplicationInfo info, long id) {
+        // Sort key of the label, recomputed when the label changes
+        CollationKey labelKey;
+
+        // Version of the package the entry has been created for, versionCode
+        // being 0 when unknown.
+        int versionCode;
+        long lastUpdateTime;
+        // Label and icon read from the AppEntryCache; the icon is only
+        // decoded when first needed.
+        AppEntryCache.Record cachedRecord;
+        boolean iconCached;
+
+        AppEntry(Context context, ApplicationInfo info, long id, AppEntryCache.Record cached) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
-            ensureLabel(context);
+            if (cached != null) {
+                // Only cached for apps on internal storage, always mounted
+                this.label = cached.label;
+                this.mounted = true;
+                this.cachedRecord = cached;
+            } else {
+                ensureLabel(context);
+            }
         }
         
-        void ensureLabel(Context context) {
+        /**
+         * Loads the label, unless already loaded from the mounted apk.
+         *
+         * @return whether the label or the mounted state changed.
+         */
+        boolean ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
+                final String oldLabel = this.label;
+                final boolean oldMounted = this.mounted;
                 if (!this.apkFile.exists()) {
                     this.mounted = false;
                     this.label = info.packageName;
@@ -134,9 +177,21 @@ public class ApplicationsState {
                     CharSequence label = info.loadLabel(context.getPackageManager());
                     this.label = label != null ? label.toString() : info.packageName;
                 }
+                return this.mounted != oldMounted || !this.label.equals(oldLabel);
             }
+            return false;
         }
         
+        CollationKey getLabelKeyLocked() {
+            final String source = this.label != null ? this.label : "";
+            if (this.labelKey == null || !this.labelKey.getSourceString().equals(source)) {
+                synchronized (sCollator) {
+                    this.labelKey = sCollator.getCollationKey(source);
+                }
+            }
+            return this.labelKey;
+        }
+
         boolean ensureIconLocked(Context context, PackageManager pm) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
@@ -149,9 +204,9 @@ public class ApplicationsState {
                 }
             } else if (!this.mounted) {
                 // If the app wasn't mounted but is now mounted, reload
-                // its icon.
+                // its label and icon.
                 if (this.apkFile.exists()) {
-                    this.mounted = true;
+                    ensureLabel(context);
                     this.icon = this.info.loadIcon(pm);
                     return true;
                 }
@@ -160,55 +215,107 @@ public class ApplicationsState {
         }
     }
 
-    public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
+    // Shared by the label keys of all entries, which are only comparable
+    // when computed by the same collator.  Synchronize on it.
+    static final Collator sCollator = Collator.getInstance();
+
+    /**
+     * The values an entry has been sorted with by a Session, so that the
+     * entry can be found again by binary search after they changed.
+     */
+    static final class SortKey {
+        final AppEntry entry;
+        final boolean normal;
+        final CollationKey labelKey;
+        final long size;
+        final long internalSize;
+        final long externalSize;
+
+        // Need to synchronize on the entry.
+        SortKey(AppEntry entry) {
+            this.entry = entry;
+            this.normal = entry.info.enabled
+                    && (entry.info.flags&ApplicationInfo.FLAG_INSTALLED) != 0;
+            this.labelKey = entry.getLabelKeyLocked();
+            this.size = entry.size;
+            this.internalSize = entry.internalSize;
+            this.externalSize = entry.externalSize;
+        }
+    }
+
+    /**
+     * A comparator of entries that can also compare their SortKeys, which
+     * lets a Session keep its list sorted incrementally.  Sessions given
+     * any other comparator sort their whole list on every rebuild.
+     */
+    static abstract class EntryComparator implements Comparator<AppEntry> {
+        // Total order of the keys, ties being broken by entry id.
+        final Comparator<SortKey> mKeyComparator = new Comparator<SortKey>() {
+            @Override
+            public int compare(SortKey key1, SortKey key2) {
+                final int result = compareKeys(key1, key2);
+                if (result != 0) {
+                    return result;
+                }
+                return key1.entry.id < key2.entry.id ? -1
+                        : (key1.entry.id == key2.entry.id ? 0 : 1);
+            }
+        };
+
+        abstract int compareKeys(SortKey key1, SortKey key2);
+
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
-            final boolean normal1 = object1.info.enabled
-                    && (object1.info.flags&ApplicationInfo.FLAG_INSTALLED) != 0;
-            final boolean normal2 = object2.info.enabled
-                    && (object2.info.flags&ApplicationInfo.FLAG_INSTALLED) != 0;
-            if (normal1 != normal2) {
-                return normal1 ? -1 : 1;
+            final SortKey key1;
+            final SortKey key2;
+            synchronized (object1) {
+                key1 = new SortKey(object1);
+            }
+            synchronized (object2) {
+                key2 = new SortKey(object2);
             }
-            return sCollator.compare(object1.label, object2.label);
+            return compareKeys(key1, key2);
+        }
+    }
+
+    public static final Comparator<AppEntry> ALPHA_COMPARATOR = new EntryComparator() {
+        @Override
+        int compareKeys(SortKey key1, SortKey key2) {
+            if (key1.normal != key2.normal) {
+                return key1.normal ? -1 : 1;
+            }
+            return key1.labelKey.compareTo(key2.labelKey);
         }
     };
 
-    public static final Comparator<AppEntry> SIZE_COMPARATOR
-            = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
+    public static final Comparator<AppEntry> SIZE_COMPARATOR = new EntryComparator() {
         @Override
-        public int compare(AppEntry object1, AppEntry object2) {
-            if (object1.size < object2.size) return 1;
-            if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+        int compareKeys(SortKey key1, SortKey key2) {
+            if (key1.size < key2.size) return 1;
+            if (key1.size > key2.size) return -1;
+            return key1.labelKey.compareTo(key2.labelKey);
         }
     };
 
-    public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
-            = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
+    public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR = new EntryComparator() {
         @Override
-        public int compare(AppEntry object1, AppEntry object2) {
-            if (object1.internalSize < object2.internalSize) return 1;
-            if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+        int compareKeys(SortKey key1, SortKey key2) {
+            if (key1.internalSize < key2.internalSize) return 1;
+            if (key1.internalSize > key2.internalSize) return -1;
+            return key1.labelKey.compareTo(key2.labelKey);
         }
     };
 
-    public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
-            = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
+    public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR = new EntryComparator() {
         @Override
-        public int compare(AppEntry object1, AppEntry object2) {
-            if (object1.externalSize < object2.externalSize) return 1;
-            if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+        int compareKeys(SortKey key1, SortKey key2) {
+            if (key1.externalSize < key2.externalSize) return 1;
+            if (key1.externalSize > key2.externalSize) return -1;
+            return key1.labelKey.compareTo(key2.labelKey);
         }
     };
 
-    public static final AppFilter THIRD_PARTY_FILTER = new AppFilter() {
+    public static final AppFilter THIRD_PARTY_FILTER = new StatelessAppFilter() {
         public void init() {
         }
         
@@ -224,7 +331,7 @@ public class ApplicationsState {
         }
     };
 
-    public static final AppFilter ON_SD_CARD_FILTER = new AppFilter() {
+    public static final AppFilter ON_SD_CARD_FILTER = new StatelessAppFilter() {
         public void init() {
         }
         
@@ -237,7 +344,7 @@ public class ApplicationsState {
         }
     };
 
-    public static final AppFilter DISABLED_FILTER = new AppFilter() {
+    public static final AppFilter DISABLED_FILTER = new StatelessAppFilter() {
         public void init() {
         }
         
@@ -250,7 +357,7 @@ public class ApplicationsState {
         }
     };
 
-    public static final AppFilter ALL_ENABLED_FILTER = new AppFilter() {
+    public static final AppFilter ALL_ENABLED_FILTER = new StatelessAppFilter() {
         public void init() {
         }
         
@@ -266,26 +373,65 @@ public class ApplicationsState {
     final Context mContext;
     final PackageManager mPm;
     final int mRetrieveFlags;
+    final AppEntryCache mEntryCache;
+    final AppSizeCache mSizeCache;
     PackageIntentReceiver mPackageIntentReceiver;
 
     boolean mResumed;
     boolean mHaveDisabledApps;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  Readers not modifying them should use
+    // getSnapshot() instead.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
     final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
+    final HashMap<String, PackageInfo> mPackageInfos = new HashMap<String, PackageInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    // Packages whose size has been requested and not received yet
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
     boolean mSessionsChanged;
 
+    // Incremented under mEntriesMap whenever mApplications, mEntriesMap or
+    // mAppEntries change, so that the snapshot can tell it is out of date.
+    volatile int mEntriesVersion;
+    volatile EntriesSnapshot mSnapshot;
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
+    /**
+     * An immutable copy of the applications and of their entries.  It is
+     * published with copy-on-write semantics: the writers only bump
+     * mEntriesVersion and the next reader makes a new copy, so that the
+     * loader, the stats observer and session rebuilds can walk the entries
+     * without holding mEntriesMap.  The fields of each AppEntry are still
+     * protected by the entry itself.
+     */
+    static final class EntriesSnapshot {
+        final int version;
+        final ApplicationInfo[] applications;
+        final HashMap<String, ApplicationInfo> applicationsMap;
+        final AppEntry[] entries;
+        final HashMap<String, AppEntry> entriesMap;
+
+        EntriesSnapshot(int version, List<ApplicationInfo> applications,
+                List<AppEntry> entries, HashMap<String, AppEntry> entriesMap) {
+            this.version = version;
+            this.applications = applications.toArray(new ApplicationInfo[applications.size()]);
+            this.applicationsMap = new HashMap<String, ApplicationInfo>(this.applications.length);
+            for (int i=0; i<this.applications.length; i++) {
+                this.applicationsMap.put(this.applications[i].packageName,
+                        this.applications[i]);
+            }
+            this.entries = entries.toArray(new AppEntry[entries.size()]);
+            this.entriesMap = new HashMap<String, AppEntry>(entriesMap);
+        }
+    }
+
     /**
      * Releases the member variables in ApplicationsState
      */
@@ -297,6 +443,67 @@ public class ApplicationsState {
             if (mApplications != null) {
                 mApplications.clear();
             }
+            mPackageInfos.clear();
+            entriesChangedLocked();
+        }
+    }
+
+    void entriesChangedLocked() {
+        mEntriesVersion++;
+    }
+
+    /**
+     * Has the sessions place the entry of a package again at their next
+     * rebuild, after it has been added, removed or resized.
+     */
+    void packageChangedLocked(String pkgName) {
+        for (int i=0; i<mSessions.size(); i++) {
+            mSessions.get(i).mChangedPackages.add(pkgName);
+        }
+    }
+
+    /**
+     * Like packageChangedLocked(), for an entry whose label, info or
+     * mounted state changed while it was loaded.  Must not be called with
+     * the entry locked.
+     */
+    void entryChanged(String pkgName) {
+        synchronized (mEntriesMap) {
+            packageChangedLocked(pkgName);
+        }
+    }
+
+    /**
+     * Has the sessions filter and sort all the entries again at their next
+     * rebuild.
+     */
+    void allPackagesChangedLocked() {
+        for (int i=0; i<mSessions.size(); i++) {
+            final Session session = mSessions.get(i);
+            session.mFullRebuildNeeded = true;
+            session.mChangedPackages.clear();
+        }
+    }
+
+    /**
+     * Returns an up to date snapshot of the applications and of their
+     * entries, only taking the lock when they changed since the last one.
+     */
+    EntriesSnapshot getSnapshot() {
+        EntriesSnapshot snapshot = mSnapshot;
+        if (snapshot != null && snapshot.version == mEntriesVersion) {
+            return snapshot;
+        }
+        if (DEBUG_LOCKING) Log.v(TAG, "getSnapshot about to acquire lock...");
+        synchronized (mEntriesMap) {
+            snapshot = mSnapshot;
+            if (snapshot == null || snapshot.version != mEntriesVersion) {
+                snapshot = new EntriesSnapshot(mEntriesVersion, mApplications, mAppEntries,
+                        mEntriesMap);
+                mSnapshot = snapshot;
+            }
+            if (DEBUG_LOCKING) Log.v(TAG, "...getSnapshot releasing lock");
+            return snapshot;
         }
     }
 
@@ -448,6 +655,9 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mEntryCache = new AppEntryCache(mContext);
+        mSizeCache = new AppSizeCache(mContext);
+        mLoadExecutor.allowCoreThreadTimeOut(true);
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -498,6 +708,18 @@ public class ApplicationsState {
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
 
+        // Changes since the last rebuild.  Synchronized on mEntriesMap.
+        final HashSet<String> mChangedPackages = new HashSet<String>();
+        boolean mFullRebuildNeeded = true;
+
+        // Sorted keys of the filtered entries of the last rebuild, along
+        // with the filter and comparator they come from.  Only touched by
+        // the background thread.
+        final ArrayList<SortKey> mSortedKeys = new ArrayList<SortKey>();
+        final HashMap<String, SortKey> mSortedKeysByPackage = new HashMap<String, SortKey>();
+        AppFilter mSortedFilter;
+        EntryComparator mSortedComparator;
+
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
         }
@@ -564,6 +786,19 @@ public class ApplicationsState {
             }
         }
 
+        /**
+         * Hints which entries of a list returned by this session are
+         * currently visible, so that their icons are loaded before the
+         * others.
+         *
+         * @param list the list the positions refer to.
+         * @param first the position of the first visible entry.
+         * @param last the position of the last visible entry.
+         */
+        public void setVisibleRange(List<AppEntry> list, int first, int last) {
+            setVisibleEntries(list, first, last);
+        }
+
         void handleRebuildList() {
             AppFilter filter;
             Comparator<AppEntry> comparator;
@@ -584,34 +819,70 @@ public class ApplicationsState {
             if (filter != null) {
                 filter.init();
             }
-            
-            List<ApplicationInfo> apps;
+
+            // Only a different filter or sort mode needs a full rebuild,
+            // otherwise the entries of the changed packages are moved.  A
+            // filter with state, such as the set of launcher apps, may
+            // change its result for the packages that did not change, so
+            // all the entries are filtered again then.
+            String[] changedPackages = null;
             synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
+                if (!mFullRebuildNeeded && filter == mSortedFilter
+                        && (filter == null || filter instanceof StatelessAppFilter)
+                        && comparator == mSortedComparator) {
+                    changedPackages = mChangedPackages.toArray(
+                            new String[mChangedPackages.size()]);
+                }
+                mFullRebuildNeeded = false;
+                mChangedPackages.clear();
             }
 
-            ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
-            if (DEBUG) Log.i(TAG, "Rebuilding...");
-            for (int i=0; i<apps.size(); i++) {
-                ApplicationInfo info = apps.get(i);
-                //protected app
-                if (info.protect) {
-                    continue;
+            final EntriesSnapshot snapshot = getSnapshot();
+            ArrayList<AppEntry> filteredApps;
+            if (comparator instanceof EntryComparator) {
+                final EntryComparator entryComparator = (EntryComparator) comparator;
+                if (changedPackages != null) {
+                    if (DEBUG) Log.i(TAG, "Updating " + changedPackages.length + " entries...");
+                    for (int i=0; i<changedPackages.length; i++) {
+                        updateSortedKey(snapshot, filter, entryComparator, changedPackages[i]);
+                    }
+                } else {
+                    if (DEBUG) Log.i(TAG, "Rebuilding...");
+                    mSortedKeys.clear();
+                    mSortedKeysByPackage.clear();
+                    final ApplicationInfo[] apps = snapshot.applications;
+                    for (int i=0; i<apps.length; i++) {
+                        final SortKey key = newSortKey(snapshot, filter, apps[i]);
+                        if (key != null) {
+                            mSortedKeys.add(key);
+                            mSortedKeysByPackage.put(apps[i].packageName, key);
+                        }
+                    }
+                    Collections.sort(mSortedKeys, entryComparator.mKeyComparator);
+                    mSortedFilter = filter;
+                    mSortedComparator = entryComparator;
                 }
-                if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                filteredApps = new ArrayList<AppEntry>(mSortedKeys.size());
+                for (int i=0; i<mSortedKeys.size(); i++) {
+                    filteredApps.add(mSortedKeys.get(i).entry);
+                }
+            } else {
+                if (DEBUG) Log.i(TAG, "Rebuilding...");
+                mSortedKeys.clear();
+                mSortedKeysByPackage.clear();
+                mSortedFilter = null;
+                mSortedComparator = null;
+                filteredApps = new ArrayList<AppEntry>();
+                final ApplicationInfo[] apps = snapshot.applications;
+                for (int i=0; i<apps.length; i++) {
+                    final SortKey key = newSortKey(snapshot, filter, apps[i]);
+                    if (key != null) {
+                        filteredApps.add(key.entry);
                     }
                 }
+                Collections.sort(filteredApps, comparator);
             }
 
-            Collections.sort(filteredApps, comparator);
-
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
                     mLastAppList = filteredApps;
@@ -631,6 +902,67 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        /**
+         * Returns the sort key of the entry of an application, creating the
+         * entry if needed, or null if the application is filtered out.
+         */
+        SortKey newSortKey(EntriesSnapshot snapshot, AppFilter filter, ApplicationInfo info) {
+            //protected app
+            if (info.protect) {
+                return null;
+            }
+            if (filter != null && !filter.filterApp(info)) {
+                return null;
+            }
+            AppEntry entry = snapshot.entriesMap.get(info.packageName);
+            if (entry == null) {
+                entry = getOrCreateEntry(info);
+            }
+            final SortKey key;
+            boolean changed = false;
+            synchronized (entry) {
+                if (entry.info != info) {
+                    entry.info = info;
+                    changed = true;
+                }
+                changed |= entry.ensureLabel(mContext);
+                if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                key = new SortKey(entry);
+            }
+            if (changed) {
+                // The other sessions have to place the entry again
+                entryChanged(info.packageName);
+            }
+            return key;
+        }
+
+        /**
+         * Moves the entry of a package to its new place in mSortedKeys, by
+         * binary searching the key it has been sorted with, then its new key.
+         */
+        void updateSortedKey(EntriesSnapshot snapshot, AppFilter filter,
+                EntryComparator comparator, String pkgName) {
+            final SortKey oldKey = mSortedKeysByPackage.remove(pkgName);
+            if (oldKey != null) {
+                final int index = Collections.binarySearch(mSortedKeys, oldKey,
+                        comparator.mKeyComparator);
+                if (index >= 0) {
+                    mSortedKeys.remove(index);
+                } else {
+                    Log.w(TAG, "Sort key of " + pkgName + " not found");
+                    mSortedKeys.remove(oldKey);
+                }
+            }
+            final ApplicationInfo info = snapshot.applicationsMap.get(pkgName);
+            final SortKey newKey = info != null ? newSortKey(snapshot, filter, info) : null;
+            if (newKey != null) {
+                final int index = Collections.binarySearch(mSortedKeys, newKey,
+                        comparator.mKeyComparator);
+                mSortedKeys.add(index >= 0 ? index : -index - 1, newKey);
+                mSortedKeysByPackage.put(pkgName, newKey);
+            }
+        }
+
         public void release() {
             pause();
             synchronized (mEntriesMap) {
@@ -656,9 +988,19 @@ public class ApplicationsState {
             mPackageIntentReceiver = new PackageIntentReceiver();
             mPackageIntentReceiver.registerReceiver();
         }
-        mApplications = mPm.getInstalledApplications(mRetrieveFlags);
-        if (mApplications == null) {
-            mApplications = new ArrayList<ApplicationInfo>();
+        // The package infos give the version of the packages, which the
+        // cached labels and icons are checked against.
+        final List<PackageInfo> packages = mPm.getInstalledPackages(mRetrieveFlags);
+        mApplications = new ArrayList<ApplicationInfo>();
+        mPackageInfos.clear();
+        if (packages != null) {
+            for (int i=0; i<packages.size(); i++) {
+                final PackageInfo pkgInfo = packages.get(i);
+                if (pkgInfo.applicationInfo != null) {
+                    mApplications.add(pkgInfo.applicationInfo);
+                    mPackageInfos.put(pkgInfo.packageName, pkgInfo);
+                }
+            }
         }
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
@@ -666,6 +1008,7 @@ public class ApplicationsState {
             // should completely reload the app entries.
             mEntriesMap.clear();
             mAppEntries.clear();
+            mEntryCache.reset();
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
@@ -690,7 +1033,9 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        mComputingSizePkgs.clear();
+        entriesChangedLocked();
+        allPackagesChangedLocked();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -717,6 +1062,10 @@ public class ApplicationsState {
     }
 
     AppEntry getEntry(String packageName) {
+        final AppEntry existing = getSnapshot().entriesMap.get(packageName);
+        if (existing != null) {
+            return existing;
+        }
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
         synchronized (mEntriesMap) {
             AppEntry entry = mEntriesMap.get(packageName);
@@ -738,31 +1087,77 @@ public class ApplicationsState {
         if (entry.icon != null) {
             return;
         }
+        final boolean mountedChanged;
         synchronized (entry) {
-            entry.ensureIconLocked(mContext, mPm);
+            final boolean mounted = entry.mounted;
+            ensureIconLocked(entry);
+            mountedChanged = entry.mounted != mounted;
+        }
+        if (mountedChanged) {
+            entryChanged(entry.info.packageName);
+        }
+    }
+
+    /**
+     * Loads the icon of an entry from the AppEntryCache if it has been
+     * cached, from PackageManager otherwise.  Must be called with the entry
+     * locked.
+     */
+    boolean ensureIconLocked(AppEntry entry) {
+        if (entry.icon == null && entry.cachedRecord != null) {
+            entry.icon = mEntryCache.getIcon(entry.cachedRecord);
+            entry.cachedRecord = null;
+            if (entry.icon != null) {
+                entry.iconCached = true;
+                return true;
+            }
+        }
+        return entry.ensureIconLocked(mContext, mPm);
+    }
+
+    /**
+     * Stores the labels and icons loaded from PackageManager into the
+     * AppEntryCache, and writes it if it changed.
+     */
+    void saveEntryCache() {
+        final AppEntry[] entries = getSnapshot().entries;
+        final HashSet<String> packageNames = new HashSet<String>();
+        for (int i=0; i<entries.length; i++) {
+            final AppEntry entry = entries[i];
+            String packageName = null;
+            String label = null;
+            Drawable icon = null;
+            synchronized (entry) {
+                packageName = entry.info.packageName;
+                if (!entry.iconCached && entry.mounted && entry.icon != null
+                        && entry.versionCode != 0
+                        && (entry.info.flags & ApplicationInfo.FLAG_EXTERNAL_STORAGE) == 0) {
+                    entry.iconCached = true;
+                    label = entry.label;
+                    icon = entry.icon;
+                }
+            }
+            packageNames.add(packageName);
+            if (icon != null) {
+                mEntryCache.put(packageName, entry.versionCode, entry.lastUpdateTime, label,
+                        icon);
+            }
         }
+        mEntryCache.save(packageNames);
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        AppEntry entry = getSnapshot().entriesMap.get(packageName);
+        if (entry != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        final AppEntry[] entries = getSnapshot().entries;
+        for (int i=entries.length-1; i>=0; i--) {
+            sum += entries[i].cacheSize;
         }
         return sum;
     }
@@ -793,7 +1188,8 @@ public class ApplicationsState {
                     if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
                     return;
                 }
-                ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
+                PackageInfo pkgInfo = mPm.getPackageInfo(pkgName, mRetrieveFlags);
+                ApplicationInfo info = pkgInfo.applicationInfo;
                 if (!info.enabled) {
                     if (info.enabledSetting
                             != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
@@ -802,6 +1198,9 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                mPackageInfos.put(pkgName, pkgInfo);
+                entriesChangedLocked();
+                packageChangedLocked(pkgName);
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -828,6 +1227,9 @@ public class ApplicationsState {
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                mPackageInfos.remove(pkgName);
+                entriesChangedLocked();
+                packageChangedLocked(pkgName);
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -855,11 +1257,84 @@ public class ApplicationsState {
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
+            entry = newEntry(info, mPackageInfos.get(info.packageName), mCurId++);
             mEntriesMap.put(info.packageName, entry);
             mAppEntries.add(entry);
+            entriesChangedLocked();
         } else if (entry.info != info) {
             entry.info = info;
+            packageChangedLocked(info.packageName);
+        }
+        return entry;
+    }
+
+    /**
+     * Like getEntryLocked(), but loads the label of a new entry without
+     * holding mEntriesMap.  The entry is only added if the application is
+     * still known once it has been created.
+     */
+    AppEntry getOrCreateEntry(ApplicationInfo info) {
+        final long id;
+        final PackageInfo pkgInfo;
+        synchronized (mEntriesMap) {
+            AppEntry entry = mEntriesMap.get(info.packageName);
+            if (entry != null) {
+                return entry;
+            }
+            id = mCurId++;
+            pkgInfo = mPackageInfos.get(info.packageName);
+        }
+        if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
+        final AppEntry entry = newEntry(info, pkgInfo, id);
+        synchronized (mEntriesMap) {
+            if (DEBUG_LOCKING) Log.v(TAG, "getOrCreateEntry acquired lock");
+            AppEntry existing = mEntriesMap.get(info.packageName);
+            if (existing != null) {
+                return existing;
+            }
+            if (indexOfApplicationInfoLocked(info.packageName) >= 0) {
+                mEntriesMap.put(info.packageName, entry);
+                mAppEntries.add(entry);
+                entriesChangedLocked();
+            }
+            if (DEBUG_LOCKING) Log.v(TAG, "getOrCreateEntry releasing lock");
+        }
+        return entry;
+    }
+
+    /**
+     * Creates an entry, taking its label and icon from the AppEntryCache
+     * when they have been cached for the same version of the package, and
+     * its last known sizes from the AppSizeCache.
+     */
+    AppEntry newEntry(ApplicationInfo info, PackageInfo pkgInfo, long id) {
+        AppEntryCache.Record cached = null;
+        if (pkgInfo != null && (info.flags & ApplicationInfo.FLAG_EXTERNAL_STORAGE) == 0) {
+            cached = mEntryCache.get(info.packageName, pkgInfo.versionCode,
+                    pkgInfo.lastUpdateTime);
+        }
+        final AppEntry entry = new AppEntry(mContext, info, id, cached);
+        if (pkgInfo != null) {
+            entry.versionCode = pkgInfo.versionCode;
+            entry.lastUpdateTime = pkgInfo.lastUpdateTime;
+            final AppSizeCache.Record sizes = mSizeCache.get(info.packageName,
+                    pkgInfo.lastUpdateTime);
+            if (sizes != null) {
+                // Still stale, so that the sizes get computed again
+                entry.size = sizes.getTotalSize();
+                entry.cacheSize = sizes.cacheSize;
+                entry.codeSize = sizes.codeSize;
+                entry.dataSize = sizes.dataSize;
+                entry.externalCodeSize = sizes.externalCodeSize;
+                entry.externalDataSize = sizes.externalDataSize;
+                entry.externalCacheSize = sizes.externalCacheSize;
+                entry.internalSize = sizes.internalSize;
+                entry.externalSize = sizes.externalSize;
+                entry.sizeStr = getSizeStr(entry.size);
+                entry.internalSizeStr = getSizeStr(entry.internalSize);
+                entry.externalSizeStr = getSizeStr(entry.externalSize);
+                entry.sizeCached = true;
+            }
         }
         return entry;
     }
@@ -891,65 +1366,198 @@ public class ApplicationsState {
         return null;
     }
 
+    // --------------------------------------------------------------
+
+    // Number of workers loading the entries, labels and icons
+    static final int LOAD_WORKERS = Math.max(2,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // Icons loaded by the workers are published to the UI in batches, at
+    // most this often
+    static final long ICON_PUBLISH_DELAY_MS = 100;
+
+    final ThreadPoolExecutor mLoadExecutor = new ThreadPoolExecutor(LOAD_WORKERS, LOAD_WORKERS,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "ApplicationsState.Worker #" + mCount.getAndIncrement());
+        }
+    });
+
+    // Work of the load workers.  The entries visible in a session come
+    // first, then all the applications of mLoadQueue in order.  Synchronize
+    // on mLoadQueueLock to protect access to these.
+    final Object mLoadQueueLock = new Object();
+    ArrayList<AppEntry> mVisibleEntries = new ArrayList<AppEntry>();
+    ApplicationInfo[] mLoadQueue;
+    int mLoadQueuePos;
+    int mActiveLoadWorkers;
+
+    final Runnable mLoadWorker = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            ApplicationInfo info;
+            while ((info = pollLoadQueue()) != null) {
+                final AppEntry entry = getOrCreateEntry(info);
+                boolean loaded = false;
+                boolean mountedChanged = false;
+                synchronized (entry) {
+                    if (entry.icon == null || !entry.mounted) {
+                        final boolean mounted = entry.mounted;
+                        loaded = ensureIconLocked(entry);
+                        mountedChanged = entry.mounted != mounted;
+                    }
+                }
+                if (mountedChanged) {
+                    entryChanged(info.packageName);
+                }
+                if (loaded && !mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                    mMainHandler.sendEmptyMessageDelayed(MainHandler.MSG_PACKAGE_ICON_CHANGED,
+                            ICON_PUBLISH_DELAY_MS);
+                }
+            }
+        }
+    };
+
+    /**
+     * Loads the entries, labels and icons of the applications on the load
+     * workers, then sends MSG_ENTRIES_LOADED to the background handler.
+     */
+    void startLoadWorkers(ApplicationInfo[] applications) {
+        synchronized (mLoadQueueLock) {
+            mLoadQueue = applications;
+            mLoadQueuePos = 0;
+            startLoadWorkersLocked();
+        }
+    }
+
+    void startLoadWorkersLocked() {
+        while (mActiveLoadWorkers < LOAD_WORKERS) {
+            mActiveLoadWorkers++;
+            mLoadExecutor.execute(mLoadWorker);
+        }
+    }
+
+    void setVisibleEntries(List<AppEntry> list, int first, int last) {
+        final ArrayList<AppEntry> visible = new ArrayList<AppEntry>();
+        if (list != null) {
+            for (int i=Math.max(0, first); i<=last && i<list.size(); i++) {
+                final AppEntry entry = list.get(i);
+                if (entry.icon == null) {
+                    visible.add(entry);
+                }
+            }
+        }
+        synchronized (mLoadQueueLock) {
+            mVisibleEntries = visible;
+            if (!visible.isEmpty()) {
+                startLoadWorkersLocked();
+            }
+        }
+    }
+
+    /**
+     * Returns the next application for a load worker, or null if there is
+     * none, in which case the worker must stop.
+     */
+    ApplicationInfo pollLoadQueue() {
+        synchronized (mLoadQueueLock) {
+            while (!mVisibleEntries.isEmpty()) {
+                final AppEntry entry = mVisibleEntries.remove(0);
+                if (entry.icon == null) {
+                    return entry.info;
+                }
+            }
+            if (mLoadQueue != null && mLoadQueuePos < mLoadQueue.length) {
+                return mLoadQueue[mLoadQueuePos++];
+            }
+            mActiveLoadWorkers--;
+            if (mActiveLoadWorkers == 0 && mLoadQueue != null) {
+                mLoadQueue = null;
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_ENTRIES_LOADED);
+            }
+            return null;
+        }
+    }
+
     final HandlerThread mThread;
     final BackgroundHandler mBackgroundHandler;
     class BackgroundHandler extends Handler {
         static final int MSG_REBUILD_LIST = 1;
         static final int MSG_LOAD_ENTRIES = 2;
-        static final int MSG_LOAD_ICONS = 3;
+        static final int MSG_ENTRIES_LOADED = 3;
         static final int MSG_LOAD_SIZES = 4;
 
+        // Size requests given to PackageManager at once, so that the
+        // installd round trips overlap.
+        static final int MAX_SIZE_REQUESTS_IN_FLIGHT = 4;
+
         boolean mRunning;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
+                AppSizeCache.Record sizes = null;
+                AppEntry entry = getSnapshot().entriesMap.get(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        // Refresh the view when the cached sizes were right,
+                        // it no longer needs to mark them as stale.
+                        sizeChanged = entry.sizeCached;
+                        entry.sizeCached = false;
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
+                            if (entry.lastUpdateTime != 0) {
+                                sizes = new AppSizeCache.Record(entry.lastUpdateTime, entry);
                             }
                         }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
-                        }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
+                    if (sizes != null) {
+                        mSizeCache.put(stats.packageName, sizes);
+                    }
+                    if (sizeChanged) {
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
+                        mMainHandler.sendMessage(msg);
+                    }
+                }
+                synchronized (mEntriesMap) {
+                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
+                    if (sizeChanged) {
+                        packageChangedLocked(stats.packageName);
+                    }
+                    if (mComputingSizePkgs.remove(stats.packageName)
+                            || mComputingSizePkgs.isEmpty()) {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
@@ -981,100 +1589,73 @@ public class ApplicationsState {
                 case MSG_REBUILD_LIST: {
                 } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                    if (!mRunning) {
+                        mRunning = true;
+                        Message m = mMainHandler.obtainMessage(
+                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                        mMainHandler.sendMessage(m);
+                    }
+                    startLoadWorkers(getSnapshot().applications);
+                } break;
+                case MSG_ENTRIES_LOADED: {
+                    if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
+                        mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+                    }
+                    saveEntryCache();
+                    sendEmptyMessage(MSG_LOAD_SIZES);
+                } break;
+                case MSG_LOAD_SIZES: {
+                    int slots;
                     synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
+                        slots = MAX_SIZE_REQUESTS_IN_FLIGHT - mComputingSizePkgs.size();
+                    }
+                    if (slots <= 0) {
+                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES: currently computing");
+                        return;
+                    }
+
+                    boolean pending = false;
+                    long now = SystemClock.uptimeMillis();
+                    final AppEntry[] entries = getSnapshot().entries;
+                    for (int i=0; i<entries.length && slots > 0; i++) {
+                        AppEntry entry = entries[i];
+                        String packageName = null;
+                        synchronized (entry) {
+                            if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+                                continue;
+                            }
+                            pending = true;
+                            if (entry.sizeLoadStart == 0 ||
+                                    (entry.sizeLoadStart < (now-20*1000))) {
+                                entry.sizeLoadStart = now;
+                                packageName = entry.info.packageName;
+                            }
+                        }
+                        if (packageName != null) {
                             if (!mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
                                         MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
                                 mMainHandler.sendMessage(m);
                             }
-                            ApplicationInfo info = mApplications.get(i);
-                            if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
-                            }
-                        }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
-                    }
-
-                    if (numDone >= 6) {
-                        sendEmptyMessage(MSG_LOAD_ENTRIES);
-                    } else {
-                        sendEmptyMessage(MSG_LOAD_ICONS);
-                    }
-                } break;
-                case MSG_LOAD_ICONS: {
-                    int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
-                                }
+                            synchronized (mEntriesMap) {
+                                mComputingSizePkgs.add(packageName);
                             }
-                        }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
-                    }
-                    if (numDone > 0) {
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
+                            mPm.getPackageSizeInfo(packageName, mStatsObserver);
+                            slots--;
                         }
                     }
-                    if (numDone >= 2) {
-                        sendEmptyMessage(MSG_LOAD_ICONS);
-                    } else {
-                        sendEmptyMessage(MSG_LOAD_SIZES);
+                    if (pending) {
+                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES: now computing");
+                        return;
                     }
-                } break;
-                case MSG_LOAD_SIZES: {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
-                        }
-
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
-                            }
-                        }
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
-                            mRunning = false;
-                            Message m = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
-                            mMainHandler.sendMessage(m);
-                        }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
+                    mSizeCache.save(getSnapshot().entriesMap.keySet());
+                    if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                        mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
+                        mRunning = false;
+                        Message m = mMainHandler.obtainMessage(
+                                MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                        mMainHandler.sendMessage(m);
                     }
                 } break;
             }
@@ -295,6 +295,7 @@ public class ManageApplications extends Fragment implements
                 mApplications = new ApplicationsAdapter(mApplicationsState, this, mFilter);
                 mListView.setAdapter(mApplications);
                 mListView.setRecyclerListener(mApplications);
+                mListView.setOnScrollListener(mApplications);
                 //mColorBar = (LinearColorBar)mListContainer.findViewById(R.id.storage_color_bar);
                 //mStorageChartLabel = (TextView)mListContainer.findViewById(R.id.storageChartLabel);
                 //mUsedStorageText = (TextView)mListContainer.findViewById(R.id.usedStorageText);
@@ -578,7 +579,8 @@ public class ManageApplications extends Fragment implements
      * The order of applications in the list is mirrored in mAppLocalList
      */
     static class ApplicationsAdapter extends BaseAdapter implements Filterable,
-            ApplicationsState.Callbacks, AbsListView.RecyclerListener {
+            ApplicationsState.Callbacks, AbsListView.RecyclerListener,
+            AbsListView.OnScrollListener {
         private final ApplicationsState mState;
         private final ApplicationsState.Session mSession;
         private final TabInfo mTab;
@@ -592,6 +594,9 @@ public class ManageApplications extends Fragment implements
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
         CharSequence mCurFilterPrefix;
+        // Word start index of the labels of mBaseEntries, built on the
+        // first keystroke.
+        private volatile AppPrefixIndex mPrefixIndex;
 
         private Filter mFilter = new Filter() {
             @Override
@@ -728,17 +733,12 @@ public class ManageApplications extends Fragment implements
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
-                final String spacePrefixStr = " " + prefixStr;
-                ArrayList<ApplicationsState.AppEntry> newEntries
-                        = new ArrayList<ApplicationsState.AppEntry>();
-                for (int i=0; i<origEntries.size(); i++) {
-                    ApplicationsState.AppEntry entry = origEntries.get(i);
-                    String nlabel = entry.getNormalizedLabel();
-                    if (nlabel.startsWith(prefixStr) || nlabel.indexOf(spacePrefixStr) != -1) {
-                        newEntries.add(entry);
-                    }
+                AppPrefixIndex index = mPrefixIndex;
+                if (index == null || !index.isIndexOf(origEntries)) {
+                    index = new AppPrefixIndex(origEntries);
+                    mPrefixIndex = index;
                 }
-                return newEntries;
+                return index.filter(prefixStr);
             }
         }
 
@@ -771,8 +771,16 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onPackageIconChanged() {
-            // We ensure icons are loaded when their item is displayed, so
-            // don't care about icons loaded in the background.
+            // Icons are loaded in the background, visible items first, and
+            // published in batches: refresh the items displayed.
+            for (int i=0; i<mActive.size(); i++) {
+                AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
+                synchronized (holder.entry) {
+                    if (holder.entry.icon != null) {
+                        holder.appIcon.setImageDrawable(holder.entry.icon);
+                    }
+                }
+            }
         }
 
         @Override
@@ -834,9 +842,10 @@ public class ManageApplications extends Fragment implements
                 if (entry.label != null) {
                     holder.appName.setText(entry.label);
                 }
-                mState.ensureIcon(entry);
                 if (entry.icon != null) {
                     holder.appIcon.setImageDrawable(entry.icon);
+                } else {
+                    holder.appIcon.setImageDrawable(null);
                 }
                 holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                 if ((entry.info.flags&ApplicationInfo.FLAG_INSTALLED) == 0) {
@@ -866,10 +875,24 @@ public class ManageApplications extends Fragment implements
             mActive.remove(view);
         }
 
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (visibleItemCount > 0) {
+                mSession.setVisibleRange(mEntries, firstVisibleItem,
+                        firstVisibleItem + visibleItemCount - 1);
+            }
+        }
+
         private void releaseApplicationsAdapter() {
             if (mBaseEntries != null) {
                 mBaseEntries.clear();
             }
+            mPrefixIndex = null;
 
             if (mEntries != null) {
                 mEntries.clear();
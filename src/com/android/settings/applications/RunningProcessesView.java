@@ -48,6 +48,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
@@ -58,6 +59,8 @@ public class RunningProcessesView extends FrameLayout
     long SECONDARY_SERVER_MEM;
     
     final HashMap<View, ActiveItem> mActiveItems = new HashMap<View, ActiveItem>();
+    // Sequence of the state update the shown items were last bound for.
+    int mBoundSeq;
 
     ActivityManager mAm;
     
@@ -229,7 +232,8 @@ public class RunningProcessesView extends FrameLayout
                 mShowBackground = showBackground;
                 mState.setWatchingBackgroundItems(showBackground);
                 refreshItems();
-                refreshUi(true);
+                notifyDataSetChanged();
+                refreshUi(false);
             }
         }
 
@@ -237,7 +241,10 @@ public class RunningProcessesView extends FrameLayout
             return mShowBackground;
         }
 
-        void refreshItems() {
+        /**
+         * Returns whether the list of items changed.
+         */
+        boolean refreshItems() {
             ArrayList<RunningState.MergedItem> newItems =
                 mShowBackground ? mState.getCurrentBackgroundItems()
                         : mState.getCurrentMergedItems();
@@ -252,7 +259,9 @@ public class RunningProcessesView extends FrameLayout
                         Collections.sort(mItems, mState.mBackgroundComparator);
                     }
                 }
+                return true;
             }
+            return false;
         }
         
         public boolean hasStableIds() {
@@ -320,8 +329,14 @@ public class RunningProcessesView extends FrameLayout
     void refreshUi(boolean dataChanged) {
         if (dataChanged) {
             ServiceListAdapter adapter = mAdapter;
-            adapter.refreshItems();
-            adapter.notifyDataSetChanged();
+            final int seq = mState.getCurrentSequence();
+            if (adapter.refreshItems()) {
+                adapter.notifyDataSetChanged();
+            } else {
+                // Same items as before; only bind again those that changed.
+                rebindChangedItems();
+            }
+            mBoundSeq = seq;
         }
         
         if (mDataAvail != null) {
@@ -484,6 +499,25 @@ public class RunningProcessesView extends FrameLayout
         return false;
     }
 
+    void rebindChangedItems() {
+        synchronized (mState.mLock) {
+            Iterator<Map.Entry<View, ActiveItem>> it = mActiveItems.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<View, ActiveItem> ent = it.next();
+                ActiveItem ai = ent.getValue();
+                if (ai.mRootView.getWindowToken() == null) {
+                    // Clean out any dead views, just in case.
+                    it.remove();
+                    continue;
+                }
+                RunningState.MergedItem item = (RunningState.MergedItem) ai.mItem;
+                if (item.mChangedSeq > mBoundSeq) {
+                    ent.setValue(ai.mHolder.bind(mState, item, mBuilder));
+                }
+            }
+        }
+    }
+
     void updateTimes() {
         Iterator<ActiveItem> it = mActiveItems.values().iterator();
         while (it.hasNext()) {
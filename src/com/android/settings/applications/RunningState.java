@@ -22,8 +22,11 @@ import com.android.settings.Utils;
 import android.app.ActivityManager;
 import android.app.ActivityManagerNative;
 import android.app.ActivityThread;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageItemInfo;
@@ -42,6 +45,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
 
 import java.util.ArrayList;
@@ -72,6 +76,8 @@ public class RunningState {
 
     static final int MAX_SERVICES = 100;
 
+    static final int MAX_CACHED_LABELS = 256;
+
     final Context mApplicationContext;
     final ActivityManager mAm;
     final PackageManager mPm;
@@ -123,6 +129,30 @@ public class RunningState {
     // Tracking of information about users.
     final SparseArray<UserState> mUsers = new SparseArray<UserState>();
 
+    // Labels of the processes, by uid and process name, so that a process
+    // restarted under a new pid does not look them up again.
+    final LruCache<String, ProcessLabel> mLabelCache
+            = new LruCache<String, ProcessLabel>(MAX_CACHED_LABELS);
+
+    // Drops the cached labels of a package that is updated or changed, as
+    // its label and icon may have changed with it.
+    final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid < 0) {
+                mLabelCache.evictAll();
+                return;
+            }
+            final String prefix = uid + ":";
+            for (String key : mLabelCache.snapshot().keySet()) {
+                if (key.startsWith(prefix)) {
+                    mLabelCache.remove(key);
+                }
+            }
+        }
+    };
+
     static class AppProcessInfo {
         final ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
@@ -209,6 +239,8 @@ public class RunningState {
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mBackgroundItems = new ArrayList<MergedItem>();
     ArrayList<MergedItem> mUserBackgroundItems = new ArrayList<MergedItem>();
+    // Sequence of the update the items above come from.
+    int mItemsSeq;
     
     int mNumBackgroundProcesses;
     long mBackgroundProcessMemory;
@@ -298,6 +330,18 @@ public class RunningState {
         Drawable mIcon;
     }
 
+    static class ProcessLabel {
+        final PackageItemInfo mPackageInfo;
+        final CharSequence mDisplayLabel;
+        final String mLabel;
+
+        ProcessLabel(ProcessItem proc) {
+            mPackageInfo = proc.mPackageInfo;
+            mDisplayLabel = proc.mDisplayLabel;
+            mLabel = proc.mLabel;
+        }
+    }
+
     static class BaseItem {
         final boolean mIsProcess;
         final int mUserId;
@@ -333,6 +377,10 @@ public class RunningState {
         ActivityManager.RunningServiceInfo mRunningService;
         ServiceInfo mServiceInfo;
         boolean mShownAsStarted;
+
+        // Client whose label mDescription currently shows
+        String mClientPackage;
+        int mClientLabel;
         
         MergedItem mMergedItem;
         
@@ -489,21 +537,30 @@ public class RunningState {
                     si.mShownAsStarted = false;
                     changed = true;
                 }
-                try {
-                    Resources clientr = pm.getResourcesForApplication(service.clientPackage);
-                    String label = clientr.getString(service.clientLabel);
-                    si.mDescription = context.getResources().getString(
-                            R.string.service_client_name, label);
-                } catch (PackageManager.NameNotFoundException e) {
-                    si.mDescription = null;
+                // Only load the resources of the client when it changed.
+                if (si.mClientLabel != service.clientLabel
+                        || !service.clientPackage.equals(si.mClientPackage)) {
+                    si.mClientPackage = service.clientPackage;
+                    si.mClientLabel = service.clientLabel;
+                    try {
+                        Resources clientr = pm.getResourcesForApplication(
+                                service.clientPackage);
+                        String label = clientr.getString(service.clientLabel);
+                        si.mDescription = context.getResources().getString(
+                                R.string.service_client_name, label);
+                    } catch (PackageManager.NameNotFoundException e) {
+                        si.mDescription = null;
+                    }
                 }
             } else {
                 if (!si.mShownAsStarted) {
                     si.mShownAsStarted = true;
                     changed = true;
+                    si.mClientPackage = null;
+                    si.mClientLabel = 0;
+                    si.mDescription = context.getResources().getString(
+                            R.string.service_started_by_app);
                 }
-                si.mDescription = context.getResources().getString(
-                        R.string.service_started_by_app);
             }
             
             return changed;
@@ -525,7 +582,7 @@ public class RunningState {
             return false;
         }
         
-        boolean buildDependencyChain(Context context, PackageManager pm, int curSeq) {
+        boolean buildDependencyChain(Context context, RunningState state, int curSeq) {
             final int NP = mDependentProcesses.size();
             boolean changed = false;
             for (int i=0; i<NP; i++) {
@@ -535,8 +592,8 @@ public class RunningState {
                     proc.mClient = this;
                 }
                 proc.mCurSeq = curSeq;
-                proc.ensureLabel(pm);
-                changed |= proc.buildDependencyChain(context, pm, curSeq);
+                state.ensureLabel(proc);
+                changed |= proc.buildDependencyChain(context, state, curSeq);
             }
             
             if (mLastNumDependentProcesses != mDependentProcesses.size()) {
@@ -570,6 +627,9 @@ public class RunningState {
         
         private int mLastNumProcesses = -1, mLastNumServices = -1;
 
+        // Sequence of the last update that changed what this item shows.
+        int mChangedSeq;
+
         MergedItem(int userId) {
             super(false, userId);
         }
@@ -591,7 +651,16 @@ public class RunningState {
             }
         }
 
+        /**
+         * Returns whether the label, description, icon or start time of
+         * this item changed.
+         */
         boolean update(Context context, boolean background) {
+            final boolean lastBackground = mBackground;
+            final PackageItemInfo lastPackageInfo = mPackageInfo;
+            final CharSequence lastDisplayLabel = mDisplayLabel;
+            final String lastDescription = mDescription;
+            final long lastActiveSince = mActiveSince;
             mBackground = background;
 
             if (mUser != null) {
@@ -637,9 +706,28 @@ public class RunningState {
                 }
             }
 
-            return false;
+            return mBackground != lastBackground || mPackageInfo != lastPackageInfo
+                    || mDisplayLabel != lastDisplayLabel || mDescription != lastDescription
+                    || mActiveSince != lastActiveSince;
         }
         
+        /**
+         * Returns whether the other processes of this item are the given
+         * range of processes.
+         */
+        boolean hasOtherProcesses(ArrayList<ProcessItem> processes, int start, int end) {
+            final int N = end > start ? end - start : 0;
+            if (mOtherProcesses.size() != N) {
+                return false;
+            }
+            for (int i=0; i<N; i++) {
+                if (mOtherProcesses.get(i) != processes.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         boolean updateSize(Context context) {
             if (mUser != null) {
                 mSize = 0;
@@ -745,6 +833,13 @@ public class RunningState {
         mBackgroundThread = new HandlerThread("RunningState:Background");
         mBackgroundThread.start();
         mBackgroundHandler = new BackgroundHandler(mBackgroundThread.getLooper());
+
+        // Received on the background thread, which is the one using the labels
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mApplicationContext.registerReceiver(mPackageReceiver, filter, null,
+                mBackgroundHandler);
     }
 
     void resume(OnRefreshUiListener listener) {
@@ -818,6 +913,29 @@ public class RunningState {
         mProcessItems.clear();
         mAllProcessItems.clear();
         mUsers.clear();
+        mLabelCache.evictAll();
+    }
+
+    /**
+     * Loads the label of a process, reusing the one of a previous process
+     * of the same uid and name if there was one.
+     */
+    void ensureLabel(ProcessItem proc) {
+        if (proc.mLabel != null) {
+            return;
+        }
+        final String key = proc.mUid + ":" + proc.mProcessName;
+        final ProcessLabel label = mLabelCache.get(key);
+        if (label != null) {
+            proc.mPackageInfo = label.mPackageInfo;
+            proc.mDisplayLabel = label.mDisplayLabel;
+            proc.mLabel = label.mLabel;
+            return;
+        }
+        proc.ensureLabel(mPm);
+        if (proc.mLabel != null) {
+            mLabelCache.put(key, new ProcessLabel(proc));
+        }
     }
 
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
@@ -854,8 +972,6 @@ public class RunningState {
     }
 
     private boolean update(Context context, ActivityManager am) {
-        final PackageManager pm = context.getPackageManager();
-        
         mSequence++;
         
         boolean changed = false;
@@ -987,12 +1103,23 @@ public class RunningState {
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
             ProcessItem proc = mServiceProcessesByPid.get(pi.pid);
+            if (proc != null && proc.mUid != pi.uid) {
+                // The pid has been reused since the services were last
+                // retrieved: the service process is gone, drop its mapping
+                // so that the pid is not mistaken for it again.
+                mServiceProcessesByPid.remove(pi.pid);
+                proc.mPid = 0;
+                proc = null;
+                changed = true;
+            }
             if (proc == null) {
                 // This process is not one that is a direct container
                 // of a service, so look for it in the secondary
-                // running list.
+                // running list.  Processes are identified by pid and uid,
+                // as a pid may be reused by another process.
                 proc = mRunningProcesses.get(pi.pid);
-                if (proc == null) {
+                if (proc == null || proc.mUid != pi.uid
+                        || !proc.mProcessName.equals(pi.processName)) {
                     changed = true;
                     proc = new ProcessItem(context, pi.uid, pi.processName);
                     proc.mPid = pi.pid;
@@ -1008,7 +1135,7 @@ public class RunningState {
                 }
                 proc.mCurSeq = mSequence;
                 proc.mInteresting = true;
-                proc.ensureLabel(pm);
+                ensureLabel(proc);
             } else {
                 proc.mInteresting = false;
             }
@@ -1046,11 +1173,14 @@ public class RunningState {
             }
         }
         
-        // Remove any old interesting processes.
+        // Remove any old interesting processes.  Processes hosting services
+        // are not in mRunningProcesses, so look at whether they were seen in
+        // this pass rather than at that map, which would drop and add them
+        // back on each update.
         int NHP = mInterestingProcesses.size();
         for (int i=0; i<NHP; i++) {
             ProcessItem proc = mInterestingProcesses.get(i);
-            if (!proc.mInteresting || mRunningProcesses.get(proc.mPid) == null) {
+            if (!proc.mInteresting || proc.mRunningSeq != mSequence) {
                 changed = true;
                 mInterestingProcesses.remove(i);
                 i--;
@@ -1065,7 +1195,7 @@ public class RunningState {
         for (int i=0; i<NAP; i++) {
             ProcessItem proc = mServiceProcessesByPid.valueAt(i);
             if (proc.mCurSeq == mSequence) {
-                changed |= proc.buildDependencyChain(context, pm, mSequence);
+                changed |= proc.buildDependencyChain(context, this, mSequence);
             }
         }
         
@@ -1077,7 +1207,7 @@ public class RunningState {
             while (pit.hasNext()) {
                 ProcessItem pi = pit.next();
                 if (pi.mCurSeq == mSequence) {
-                    pi.ensureLabel(pm);
+                    ensureLabel(pi);
                     if (pi.mPid == 0) {
                         // Sanity: a non-process can't be dependent on
                         // anything.
@@ -1162,7 +1292,7 @@ public class RunningState {
                 
                 // Now add the services running in it.
                 MergedItem mergedItem = null;
-                boolean haveAllMerged = false;
+                boolean haveAllMerged = true;
                 boolean needDivider = false;
                 for (ServiceItem si : pi.mServices.values()) {
                     si.mNeedDivider = needDivider;
@@ -1178,8 +1308,14 @@ public class RunningState {
                     }
                 }
                 
+                // Keep the item shown for the process if neither its services
+                // nor its processes changed, so that only the changed
+                // rows are bound again.
                 if (!haveAllMerged || mergedItem == null
-                        || mergedItem.mServices.size() != pi.mServices.size()) {
+                        || mergedItem.mServices.size() != pi.mServices.size()
+                        || mergedItem.mProcess != pi
+                        || !mergedItem.hasOtherProcesses(mProcessItems, firstProc,
+                                mProcessItems.size()-1)) {
                     // Whoops, we need to build a new MergedItem!
                     mergedItem = new MergedItem(pi.mUserId);
                     for (ServiceItem si : pi.mServices.values()) {
@@ -1193,7 +1329,7 @@ public class RunningState {
                     }
                 }
                 
-                mergedItem.update(context, false);
+                updateMergedItem(context, mergedItem, false);
                 if (mergedItem.mUserId != mMyUserId) {
                     addOtherUserItem(context, newMergedItems, mOtherUserMergedItems, mergedItem);
                 } else {
@@ -1211,7 +1347,7 @@ public class RunningState {
                         proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
                     }
-                    proc.mMergedItem.update(context, false);
+                    updateMergedItem(context, proc.mMergedItem, false);
                     if (proc.mMergedItem.mUserId != mMyUserId) {
                         addOtherUserItem(context, newMergedItems, mOtherUserMergedItems,
                                 proc.mMergedItem);
@@ -1228,13 +1364,17 @@ public class RunningState {
             for (int i=0; i<NU; i++) {
                 MergedItem user = mOtherUserMergedItems.valueAt(i);
                 if (user.mCurSeq == mSequence) {
-                    user.update(context, false);
+                    updateMergedItem(context, user, false);
                 }
             }
 
             synchronized (mLock) {
                 mItems = newItems;
-                mMergedItems = newMergedItems;
+                // Keep the same list while it holds the same items, so that
+                // the views only bind again the items that changed.
+                if (!newMergedItems.equals(mMergedItems)) {
+                    mMergedItems = newMergedItems;
+                }
             }
         }
         
@@ -1314,7 +1454,7 @@ public class RunningState {
                             mergedItem = mBackgroundItems.get(bgIndex);
                         }
                     }
-                    mergedItem.update(context, true);
+                    updateMergedItem(context, mergedItem, true);
                     mergedItem.updateSize(context);
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
@@ -1363,7 +1503,7 @@ public class RunningState {
                 for (int i=0; i<NU; i++) {
                     MergedItem user = mOtherUserBackgroundItems.valueAt(i);
                     if (user.mCurSeq == mSequence) {
-                        user.update(context, true);
+                        updateMergedItem(context, user, true);
                         user.updateSize(context);
                     }
                 }
@@ -1388,6 +1528,7 @@ public class RunningState {
                     changed = true;
                 }
             }
+            mItemsSeq = mSequence;
             if (!mHaveData) {
                 mHaveData = true;
                 mLock.notifyAll();
@@ -1396,6 +1537,12 @@ public class RunningState {
         
         return changed;
     }
+
+    private void updateMergedItem(Context context, MergedItem item, boolean background) {
+        if (item.update(context, background)) {
+            item.mChangedSeq = mSequence;
+        }
+    }
     
     ArrayList<BaseItem> getCurrentItems() {
         synchronized (mLock) {
@@ -1420,4 +1567,10 @@ public class RunningState {
             return mUserBackgroundItems;
         }
     }
+
+    int getCurrentSequence() {
+        synchronized (mLock) {
+            return mItemsSeq;
+        }
+    }
 }
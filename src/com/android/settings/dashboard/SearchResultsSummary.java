@@ -81,10 +81,14 @@ public class SearchResultsSummary extends Fragment {
 
         @Override
         protected void onPostExecute(Cursor cursor) {
+            if (cursor == null) {
+                // Superseded by a newer query
+                return;
+            }
             if (!isCancelled()) {
                 setResultsCursor(cursor);
                 setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
+            } else {
                 cursor.close();
             }
         }
@@ -101,10 +105,14 @@ public class SearchResultsSummary extends Fragment {
 
         @Override
         protected void onPostExecute(Cursor cursor) {
+            if (cursor == null) {
+                // Superseded by a newer query
+                return;
+            }
             if (!isCancelled()) {
                 setSuggestionsCursor(cursor);
                 setSuggestionsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
+            } else {
                 cursor.close();
             }
         }
@@ -358,6 +366,7 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearAllTasks() {
+        Index.getInstance(getActivity()).cancelPendingQueries();
         if (mUpdateSearchResultsTask != null) {
             mUpdateSearchResultsTask.cancel(false);
             mUpdateSearchResultsTask = null;
@@ -16,103 +16,22 @@
 
 package com.android.settings.fuelgauge;
 
-import android.app.AppGlobals;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.IPackageManager;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
 import android.os.BatteryStats;
-import android.os.Handler;
-import android.os.RemoteException;
-import android.os.UserHandle;
 import android.os.UserManager;
-import android.util.Log;
 
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
  * and icon image.
  */
 public class BatteryEntry {
-    public static final int MSG_UPDATE_NAME_ICON = 1;
-    public static final int MSG_REPORT_FULLY_DRAWN = 2;
-
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
-
-    static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
-    static Handler sHandler;
-
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
-
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
-        }
-
-        public void abort() {
-            mAbort = true;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                BatteryEntry be;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
-                            sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
-                        }
-                        mRequestQueue.clear();
-                        return;
-                    }
-                    be = mRequestQueue.remove(0);
-                }
-                be.loadNameAndIcon();
-            }
-        }
-    }
-
-    private static NameAndIconLoader mRequestThread;
-
-    public static void startRequestQueue() {
-        if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
-                    }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
-                }
-            }
-        }
-    }
-
-    public static void stopRequestQueue() {
-        synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
-            }
-        }
-    }
-
-    public static void clearUidCache() {
-        sUidCache.clear();
-    }
-
     public final Context context;
     public final BatterySipper sipper;
 
@@ -121,14 +40,10 @@ public class BatteryEntry {
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
 
-    static class UidToDetail {
-        String name;
-        String packageName;
-        Drawable icon;
-    }
+    // Whether the name and icon are to be resolved by NameAndIconResolver
+    private boolean mNeedsNameAndIcon;
 
-    public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
-        sHandler = handler;
+    public BatteryEntry(Context context, UserManager um, BatterySipper sipper) {
         this.context = context;
         this.sipper = sipper;
         switch (sipper.drainType) {
@@ -207,14 +122,20 @@ public class BatteryEntry {
         return name;
     }
 
+    /**
+     * @return whether the name and icon of the app UID of this entry are yet
+     * to be resolved, see {@link NameAndIconResolver.Session#request}.
+     */
+    boolean needsNameAndIcon() {
+        return mNeedsNameAndIcon;
+    }
+
     void getQuickNameIconForUid(BatteryStats.Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        final NameAndIconResolver.Details details =
+                NameAndIconResolver.getInstance(context).getCached(uid);
+        if (details != null) {
+            applyNameAndIcon(details);
             return;
         }
         PackageManager pm = context.getPackageManager();
@@ -233,101 +154,21 @@ public class BatteryEntry {
         } else {
             //name = packages[0];
         }
-        if (sHandler != null) {
-            synchronized (mRequestQueue) {
-                mRequestQueue.add(this);
-            }
-        }
+        mNeedsNameAndIcon = true;
     }
 
     /**
-     * Loads the app label and icon image and stores into the cache.
+     * Sets the name and icon resolved for the UID of this entry.
      */
-    public void loadNameAndIcon() {
-        // Bail out if the current sipper is not an App sipper.
-        if (sipper.uidObj == null) {
-            return;
-        }
-        PackageManager pm = context.getPackageManager();
-        final int uid = sipper.uidObj.getUid();
-        final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
-        sipper.mPackages = pm.getPackagesForUid(uid);
-        if (sipper.mPackages == null) {
-            name = Integer.toString(uid);
-            return;
-        }
-
-        String[] packageLabels = new String[sipper.mPackages.length];
-        System.arraycopy(sipper.mPackages, 0, packageLabels, 0, sipper.mPackages.length);
-
-        // Convert package names to user-facing labels where possible
-        IPackageManager ipm = AppGlobals.getPackageManager();
-        final int userId = UserHandle.getUserId(uid);
-        for (int i = 0; i < packageLabels.length; i++) {
-            try {
-                final ApplicationInfo ai = ipm.getApplicationInfo(packageLabels[i],
-                        0 /* no flags */, userId);
-                if (ai == null) {
-                    Log.d(PowerUsageSummary.TAG, "Retrieving null app info for package "
-                            + packageLabels[i] + ", user " + userId);
-                    continue;
-                }
-                CharSequence label = ai.loadLabel(pm);
-                if (label != null) {
-                    packageLabels[i] = label.toString();
-                }
-                if (ai.icon != 0) {
-                    defaultPackageName = sipper.mPackages[i];
-                    icon = ai.loadIcon(pm);
-                    break;
-                }
-            } catch (RemoteException e) {
-                Log.d(PowerUsageSummary.TAG, "Error while retrieving app info for package "
-                        + packageLabels[i] + ", user " + userId, e);
-            }
-        }
-        if (icon == null) {
-            icon = defaultActivityIcon;
-        }
-
-        if (packageLabels.length == 1) {
-            name = packageLabels[0];
-        } else {
-            // Look for an official name for this UID.
-            for (String pkgName : sipper.mPackages) {
-                try {
-                    final PackageInfo pi = ipm.getPackageInfo(pkgName, 0 /* no flags */, userId);
-                    if (pi == null) {
-                        Log.d(PowerUsageSummary.TAG, "Retrieving null package info for package "
-                                + pkgName + ", user " + userId);
-                        continue;
-                    }
-                    if (pi.sharedUserLabel != 0) {
-                        final CharSequence nm = pm.getText(pkgName,
-                                pi.sharedUserLabel, pi.applicationInfo);
-                        if (nm != null) {
-                            name = nm.toString();
-                            if (pi.applicationInfo.icon != 0) {
-                                defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
-                            }
-                            break;
-                        }
-                    }
-                } catch (RemoteException e) {
-                    Log.d(PowerUsageSummary.TAG, "Error while retrieving package info for package "
-                            + pkgName + ", user " + userId, e);
-                }
-            }
+    void applyNameAndIcon(NameAndIconResolver.Details details) {
+        mNeedsNameAndIcon = false;
+        sipper.mPackages = details.packages;
+        if (details.name != null) {
+            name = details.name;
         }
-        final String uidString = Integer.toString(sipper.uidObj.getUid());
-        UidToDetail utd = new UidToDetail();
-        utd.name = name;
-        utd.icon = icon;
-        utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (sHandler != null) {
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        if (details.icon != null) {
+            icon = details.icon;
         }
+        defaultPackageName = details.packageName;
     }
 }
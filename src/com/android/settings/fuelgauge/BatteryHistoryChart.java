@@ -19,12 +19,12 @@ package com.android.settings.fuelgauge;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.DashPathEffect;
+import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.provider.Settings;
 import android.text.format.DateFormat;
 import android.text.format.Formatter;
 import android.util.Log;
-import android.util.TimeUtils;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
@@ -37,11 +37,12 @@ import android.graphics.Path;
 import android.graphics.Typeface;
 import android.os.BatteryStats;
 import android.os.SystemClock;
-import android.os.BatteryStats.HistoryItem;
-import android.telephony.ServiceState;
 import android.text.TextPaint;
 import android.util.AttributeSet;
 import android.util.TypedValue;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 import libcore.icu.LocaleData;
 
@@ -53,6 +54,9 @@ public class BatteryHistoryChart extends View {
     static final boolean DEBUG = false;
     static final String TAG = "BatteryHistoryChart";
 
+    // Shortest interval the chart can be zoomed into
+    static final long MIN_ZOOM_DURATION = 5*60*1000;
+
     static final int CHART_DATA_X_MASK = 0x0000ffff;
     static final int CHART_DATA_BIN_MASK = 0xffff0000;
     static final int CHART_DATA_BIN_SHIFT = 16;
@@ -154,6 +158,8 @@ public class BatteryHistoryChart extends View {
     
     BatteryStats mStats;
     Intent mBatteryBroadcast;
+    BatteryHistoryModel mModel;
+    long mRemainingTimeUs;
     long mStatsPeriod;
     int mBatteryLevel;
     String mMaxPercentLabelString;
@@ -205,13 +211,18 @@ public class BatteryHistoryChart extends View {
     int mLevelLeft;
     int mLevelRight;
 
-    int mNumHist;
     long mHistStart;
     long mHistDataEnd;
     long mHistEnd;
     long mStartWallTime;
     long mEndDataWallTime;
     long mEndWallTime;
+    // Interval shown, the whole history unless zoomed
+    long mViewStartWallTime;
+    long mViewEndWallTime;
+    boolean mZoomEnabled;
+    GestureDetector mGestureDetector;
+    ScaleGestureDetector mScaleGestureDetector;
     boolean mDischarging;
     int mBatLow;
     int mBatHigh;
@@ -540,75 +551,169 @@ public class BatteryHistoryChart extends View {
         mChargeDurationString = "";
         setContentDescription(mChargeLabelString);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
+        mRemainingTimeUs = remainingTimeUs;
         mBatLow = 0;
         mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
+        mModel = null;
+        applyModel();
+        new LoadModelTask(stats).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Walks the history of the stats in the background, the chart being laid
+     * out without it meanwhile.
+     */
+    private class LoadModelTask extends AsyncTask<Void, Void, BatteryHistoryModel> {
+        private final BatteryStats mTaskStats;
+
+        LoadModelTask(BatteryStats stats) {
+            mTaskStats = stats;
+        }
+
+        @Override
+        protected BatteryHistoryModel doInBackground(Void... params) {
+            final long start = SystemClock.uptimeMillis();
+            final BatteryHistoryModel model;
+            synchronized (mTaskStats) {
+                model = BatteryHistoryModel.build(mTaskStats);
+            }
+            if (DEBUG) Log.d(TAG, "Loaded " + model.count + " history records in "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+            return model;
+        }
+
+        @Override
+        protected void onPostExecute(BatteryHistoryModel model) {
+            if (mStats != mTaskStats) {
+                // Stats changed meanwhile
+                return;
+            }
+            mModel = model;
+            applyModel();
+            if (mLastWidth > 0 && mLastHeight > 0) {
+                layoutChart(mLastWidth, mLastHeight);
+                invalidate();
             }
         }
-        mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
-        mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
-        mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
-                || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
-                        |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
-                        |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
+    }
+
+    private void applyModel() {
+        final BatteryHistoryModel model = mModel;
+        if (model != null) {
+            mHistStart = model.histStart;
+            mHistDataEnd = model.histDataEnd;
+            mStartWallTime = model.startWallTime;
+            mEndDataWallTime = model.endDataWallTime;
+            mHaveGps = model.haveGps;
+            mHaveWifi = model.haveWifi;
+        } else {
+            mHistStart = 0;
+            mHistDataEnd = 0;
+            mStartWallTime = 0;
+            mEndDataWallTime = 0;
+            mHaveGps = false;
+            mHaveWifi = false;
+        }
+        mHistEnd = mHistDataEnd + (mRemainingTimeUs/1000);
+        mEndWallTime = mEndDataWallTime + (mRemainingTimeUs/1000);
+        mViewStartWallTime = mStartWallTime;
+        mViewEndWallTime = mEndWallTime;
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
             mHavePhoneSignal = true;
         }
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
     }
 
+    /**
+     * Lets the user pinch to zoom into the history, drag to pan the zoomed
+     * interval and double tap to show the whole history again.
+     */
+    void setZoomEnabled(boolean enabled) {
+        mZoomEnabled = enabled;
+        if (enabled && mGestureDetector == null) {
+            mGestureDetector = new GestureDetector(getContext(),
+                    new GestureDetector.SimpleOnGestureListener() {
+                @Override
+                public boolean onDown(MotionEvent e) {
+                    return true;
+                }
+
+                @Override
+                public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX,
+                        float distanceY) {
+                    final long span = mViewEndWallTime - mViewStartWallTime;
+                    final int levelWidth = Math.max(mLevelRight - mLevelLeft, 1);
+                    final long offset = (long) (distanceX * span / levelWidth);
+                    return setViewRange(mViewStartWallTime + offset, span);
+                }
+
+                @Override
+                public boolean onDoubleTap(MotionEvent e) {
+                    return setViewRange(mStartWallTime, mEndWallTime - mStartWallTime);
+                }
+            });
+            mScaleGestureDetector = new ScaleGestureDetector(getContext(),
+                    new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                @Override
+                public boolean onScale(ScaleGestureDetector detector) {
+                    final long span = mViewEndWallTime - mViewStartWallTime;
+                    final int levelWidth = Math.max(mLevelRight - mLevelLeft, 1);
+                    final float focusX = detector.getFocusX() - mLevelLeft;
+                    final long focusTime = mViewStartWallTime
+                            + (long) (focusX * span / levelWidth);
+                    final long newSpan = (long) (span / detector.getScaleFactor());
+                    return setViewRange(focusTime - (long) (focusX * newSpan / levelWidth),
+                            newSpan);
+                }
+            });
+        }
+    }
+
+    /**
+     * Shows the given interval of the history, kept within it and not
+     * shorter than {@link #MIN_ZOOM_DURATION}.
+     *
+     * @return whether the chart changed.
+     */
+    boolean setViewRange(long start, long span) {
+        final long fullSpan = mEndWallTime - mStartWallTime;
+        if (mModel == null || fullSpan <= 0) {
+            return false;
+        }
+        final long minSpan = Math.min(fullSpan, MIN_ZOOM_DURATION);
+        span = Math.max(minSpan, Math.min(fullSpan, span));
+        start = Math.max(mStartWallTime, Math.min(mEndWallTime - span, start));
+        if (start == mViewStartWallTime && start + span == mViewEndWallTime) {
+            return false;
+        }
+        mViewStartWallTime = start;
+        mViewEndWallTime = start + span;
+        if (mLastWidth > 0 && mLastHeight > 0) {
+            layoutChart(mLastWidth, mLastHeight);
+            invalidate();
+        }
+        return true;
+    }
+
+    boolean isZoomed() {
+        return mViewStartWallTime > mStartWallTime || mViewEndWallTime < mEndWallTime;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (!mZoomEnabled) {
+            return super.onTouchEvent(event);
+        }
+        mScaleGestureDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
+        if (getParent() != null) {
+            // Keep the gestures while zoomed or zooming
+            getParent().requestDisallowInterceptTouchEvent(
+                    isZoomed() || mScaleGestureDetector.isInProgress());
+        }
+        return true;
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         mMaxPercentLabelStringWidth = (int)mTextPaint.measureText(mMaxPercentLabelString);
@@ -707,10 +812,18 @@ public class BatteryHistoryChart extends View {
             return;
         }
 
-        if (DEBUG) Log.d(TAG, "Rebuilding chart for: " + w + "x" + h);
-
         mLastWidth = w;
         mLastHeight = h;
+        layoutChart(w, h);
+    }
+
+    /**
+     * Projects the history model, if loaded, and the labels onto the given
+     * size.
+     */
+    void layoutChart(int w, int h) {
+        if (DEBUG) Log.d(TAG, "Rebuilding chart for: " + w + "x" + h);
+
         mBitmap = null;
         mCanvas = null;
 
@@ -783,11 +896,9 @@ public class BatteryHistoryChart extends View {
         mTimeLabels.clear();
         mDateLabels.clear();
 
-        final long walltimeStart = mStartWallTime;
-        final long walltimeChange = mEndWallTime > walltimeStart
-                ? (mEndWallTime-walltimeStart) : 1;
-        long curWalltime = mStartWallTime;
-        long lastRealtime = 0;
+        final long walltimeStart = mViewStartWallTime;
+        final long walltimeChange = mViewEndWallTime > walltimeStart
+                ? (mViewEndWallTime-walltimeStart) : 1;
 
         final int batLow = mBatLow;
         final int batChange = mBatHigh-mBatLow;
@@ -796,197 +907,179 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
-        boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
-        int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
-        final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
-                    x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
-                    if (x < 0) {
-                        x = 0;
+        boolean lastWifiRunning = false, lastCpuRunning = false;
+        final BatteryHistoryModel model = mModel;
+        if (model != null && mEndDataWallTime > mStartWallTime) {
+            // Draw from the summary with buckets of about a pixel, plotting
+            // the lowest and highest levels of each.  When zoomed in past the
+            // finest buckets, draw the records of the visible range instead.
+            final long pixelDuration = walltimeChange / Math.max(levelWidth, 1);
+            final boolean drawRecords = model.bucketDuration > pixelDuration;
+            final int depth = model.getSummaryDepth(pixelDuration);
+            final long bucketDuration = model.bucketDuration << depth;
+            final int[] bucketLevels = model.summaryLevels[depth];
+            final int[] summaryFlags = model.summaryFlags[depth];
+            final int first;
+            final int last;
+            if (drawRecords) {
+                // Along with the records just outside, for the lines to the edges
+                first = Math.max(0, model.findRecord(walltimeStart) - 1);
+                last = Math.min(model.count - 1,
+                        model.findRecord(walltimeStart + walltimeChange + 1));
+            } else {
+                first = (int) Math.max(0,
+                        (walltimeStart - model.startWallTime) / bucketDuration);
+                last = (int) Math.min(bucketLevels.length - 1,
+                        (walltimeStart + walltimeChange - model.startWallTime) / bucketDuration);
+            }
+            final int[] plotLevels = new int[3];
+            for (int i=first; i<=last; i++) {
+                final int bucketFlags;
+                int numLevels = 0;
+                if (drawRecords) {
+                    bucketFlags = model.flags[i];
+                    if ((bucketFlags&BatteryHistoryModel.FLAG_BREAK) == 0) {
+                        x = mLevelLeft + (int)(((model.wallTimes[i]-walltimeStart)*levelWidth)
+                                / walltimeChange);
+                        plotLevels[numLevels++] = model.levels[i] & 0xff;
                     }
-                    if (false) {
-                        StringBuilder sb = new StringBuilder(128);
-                        sb.append("walloff=");
-                        TimeUtils.formatDuration(curWalltime - walltimeStart, sb);
-                        sb.append(" wallchange=");
-                        TimeUtils.formatDuration(walltimeChange, sb);
-                        sb.append(" x=");
-                        sb.append(x);
-                        Log.d("foo", sb.toString());
+                } else {
+                    final int packedLevels = bucketLevels[i];
+                    if ((packedLevels&BatteryHistoryModel.BUCKET_HAS_DATA) == 0) {
+                        continue;
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
-                            else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
-                            else path = null; //mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                if (path != null) {
-                                    path.moveTo(x, y);
-                                }
-                                lastLinePath = path;
-                            } else if (path != null) {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
+                    bucketFlags = summaryFlags[i];
+                    final long curWalltime = model.startWallTime + i*bucketDuration
+                            + bucketDuration/2;
+                    x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)
+                            / walltimeChange);
+
+                    final int minLevel = BatteryHistoryModel.getMinLevel(packedLevels);
+                    final int maxLevel = BatteryHistoryModel.getMaxLevel(packedLevels);
+                    final int lastLevel = BatteryHistoryModel.getLastLevel(packedLevels);
+                    if (lastLevel != maxLevel) {
+                        plotLevels[numLevels++] = maxLevel;
                     }
+                    if (lastLevel != minLevel) {
+                        plotLevels[numLevels++] = minLevel;
+                    }
+                    plotLevels[numLevels++] = lastLevel;
+                }
+                if (x < 0) {
+                    x = 0;
+                } else if (x > w) {
+                    x = w;
+                }
 
-                    if (mLargeMode) {
-                        final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                        if (charging != lastCharging) {
-                            if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
-                            } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
+                for (int j=0; j<numLevels; j++) {
+                    final int level = plotLevels[j];
+                    y = mLevelTop + levelh - ((level-batLow)*(levelh-1))/batChange;
+                    if (lastY != y) {
+                        // Don't plot changes within a pixel.
+                        Path path;
+                        if (level <= mBatteryCriticalLevel) path = mBatCriticalPath;
+                        else if (level <= mBatteryWarnLevel) path = mBatWarnPath;
+                        else path = null; //mBatGoodPath;
+
+                        if (path != lastLinePath) {
+                            if (lastLinePath != null) {
+                                lastLinePath.lineTo(x, y);
                             }
-                            lastCharging = charging;
-                        }
-
-                        final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                        if (screenOn != lastScreenOn) {
-                            if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                            } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
+                            if (path != null) {
+                                path.moveTo(x, y);
                             }
-                            lastScreenOn = screenOn;
+                            lastLinePath = path;
+                        } else if (path != null) {
+                            path.lineTo(x, y);
                         }
 
-                        final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                        if (gpsOn != lastGpsOn) {
-                            if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                            } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                            }
-                            lastGpsOn = gpsOn;
+                        if (curLevelPath == null) {
+                            curLevelPath = mBatLevelPath;
+                            curLevelPath.moveTo(x, y);
+                            startX = x;
+                        } else {
+                            curLevelPath.lineTo(x, y);
                         }
+                        lastX = x;
+                        lastY = y;
+                    }
+                }
 
-                        final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
-                                    >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
-                        boolean wifiRunning;
-                        if (lastWifiSupplState != wifiSupplState) {
-                            lastWifiSupplState = wifiSupplState;
-                            switch (wifiSupplState) {
-                                case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
-                                case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
-                                case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
-                                case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
-                                case BatteryStats.WIFI_SUPPL_STATE_INVALID:
-                                case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
-                                    wifiRunning = lastWifiSupplRunning = false;
-                                    break;
-                                default:
-                                    wifiRunning = lastWifiSupplRunning = true;
-                                    break;
-                            }
+                if (mLargeMode && numLevels > 0) {
+                    final boolean charging =
+                        (bucketFlags&BatteryHistoryModel.FLAG_CHARGING) != 0;
+                    if (charging != lastCharging) {
+                        if (charging) {
+                            mChargingPath.moveTo(x, h-mChargingOffset);
                         } else {
-                            wifiRunning = lastWifiSupplRunning;
-                        }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
-                                |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
-                                |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
-                            wifiRunning = true;
-                        }
-                        if (wifiRunning != lastWifiRunning) {
-                            if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                            } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                            }
-                            lastWifiRunning = wifiRunning;
+                            mChargingPath.lineTo(x, h-mChargingOffset);
                         }
+                        lastCharging = charging;
+                    }
 
-                        final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
-                        if (cpuRunning != lastCpuRunning) {
-                            if (cpuRunning) {
-                                mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
-                            } else {
-                                mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
-                            }
-                            lastCpuRunning = cpuRunning;
+                    final boolean screenOn =
+                        (bucketFlags&BatteryHistoryModel.FLAG_SCREEN_ON) != 0;
+                    if (screenOn != lastScreenOn) {
+                        if (screenOn) {
+                            mScreenOnPath.moveTo(x, h-mScreenOnOffset);
+                        } else {
+                            mScreenOnPath.lineTo(x, h-mScreenOnOffset);
                         }
+                        lastScreenOn = screenOn;
+                    }
 
-                        if (mLargeMode && mHavePhoneSignal) {
-                            int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                    == ServiceState.STATE_POWER_OFF) {
-                                bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                                bin = 1;
-                            } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
-                                        >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
-                                bin += 2;
-                            }
-                            mPhoneSignalChart.addTick(x, bin);
+                    final boolean gpsOn =
+                        (bucketFlags&BatteryHistoryModel.FLAG_GPS_ON) != 0;
+                    if (gpsOn != lastGpsOn) {
+                        if (gpsOn) {
+                            mGpsOnPath.moveTo(x, h-mGpsOnOffset);
+                        } else {
+                            mGpsOnPath.lineTo(x, h-mGpsOnOffset);
                         }
+                        lastGpsOn = gpsOn;
                     }
 
-                } else {
-                    long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
+                    final boolean wifiRunning =
+                        (bucketFlags&BatteryHistoryModel.FLAG_WIFI_RUNNING) != 0;
+                    if (wifiRunning != lastWifiRunning) {
+                        if (wifiRunning) {
+                            mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
                         } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
+                            mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
                         }
-                        lastRealtime = rec.time;
+                        lastWifiRunning = wifiRunning;
                     }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
-                                    || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
-                        if (curLevelPath != null) {
-                            finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                    lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                    lastCpuRunning, lastLinePath);
-                            lastX = lastY = -1;
-                            curLevelPath = null;
-                            lastLinePath = null;
-                            lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
+                    final boolean cpuRunning =
+                        (bucketFlags&BatteryHistoryModel.FLAG_CPU_RUNNING) != 0;
+                    if (cpuRunning != lastCpuRunning) {
+                        if (cpuRunning) {
+                            mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
+                        } else {
+                            mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
                         }
+                        lastCpuRunning = cpuRunning;
+                    }
+
+                    if (mLargeMode && mHavePhoneSignal) {
+                        mPhoneSignalChart.addTick(x,
+                                BatteryHistoryModel.getPhoneSignalBin(bucketFlags));
                     }
                 }
-                
-                i++;
+
+                if ((bucketFlags&BatteryHistoryModel.FLAG_BREAK) != 0 && curLevelPath != null) {
+                    finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                            lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                            lastCpuRunning, lastLinePath);
+                    lastX = lastY = -1;
+                    curLevelPath = null;
+                    lastLinePath = null;
+                    lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
+                }
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
@@ -1033,21 +1126,21 @@ public class BatteryHistoryChart extends View {
             mTimeRemainPath.close();
         }
 
-        if (mStartWallTime > 0 && mEndWallTime > mStartWallTime) {
+        if (mStartWallTime > 0 && mViewEndWallTime > mViewStartWallTime) {
             // Create the time labels at the bottom.
             boolean is24hr = is24Hour();
             Calendar calStart = Calendar.getInstance();
-            calStart.setTimeInMillis(mStartWallTime);
+            calStart.setTimeInMillis(mViewStartWallTime);
             calStart.set(Calendar.MILLISECOND, 0);
             calStart.set(Calendar.SECOND, 0);
             calStart.set(Calendar.MINUTE, 0);
             long startRoundTime = calStart.getTimeInMillis();
-            if (startRoundTime < mStartWallTime) {
+            if (startRoundTime < mViewStartWallTime) {
                 calStart.set(Calendar.HOUR_OF_DAY, calStart.get(Calendar.HOUR_OF_DAY)+1);
                 startRoundTime = calStart.getTimeInMillis();
             }
             Calendar calEnd = Calendar.getInstance();
-            calEnd.setTimeInMillis(mEndWallTime);
+            calEnd.setTimeInMillis(mViewEndWallTime);
             calEnd.set(Calendar.MILLISECOND, 0);
             calEnd.set(Calendar.SECOND, 0);
             calEnd.set(Calendar.MINUTE, 0);
@@ -1055,7 +1148,7 @@ public class BatteryHistoryChart extends View {
             if (startRoundTime < endRoundTime) {
                 addTimeLabel(calStart, mLevelLeft, mLevelRight, is24hr);
                 Calendar calMid = Calendar.getInstance();
-                calMid.setTimeInMillis(mStartWallTime+((mEndWallTime-mStartWallTime)/2));
+                calMid.setTimeInMillis(mViewStartWallTime+((mViewEndWallTime-mViewStartWallTime)/2));
                 calMid.set(Calendar.MILLISECOND, 0);
                 calMid.set(Calendar.SECOND, 0);
                 calMid.set(Calendar.MINUTE, 0);
@@ -1072,7 +1165,7 @@ public class BatteryHistoryChart extends View {
                 boolean isDayFirst = isDayFirst();
                 calStart.set(Calendar.HOUR_OF_DAY, 0);
                 startRoundTime = calStart.getTimeInMillis();
-                if (startRoundTime < mStartWallTime) {
+                if (startRoundTime < mViewStartWallTime) {
                     calStart.set(Calendar.DAY_OF_YEAR, calStart.get(Calendar.DAY_OF_YEAR) + 1);
                     startRoundTime = calStart.getTimeInMillis();
                 }
@@ -1096,7 +1189,7 @@ public class BatteryHistoryChart extends View {
             // If there are fewer than 2 time labels, then they are useless.  Just
             // show an axis label giving the entire duration.
             mDurationString = Formatter.formatShortElapsedTime(getContext(),
-                    mEndWallTime - mStartWallTime);
+                    mViewEndWallTime - mViewStartWallTime);
             mDurationStringWidth = (int)mTextPaint.measureText(mDurationString);
         } else {
             mDurationString = null;
@@ -1105,8 +1198,8 @@ public class BatteryHistoryChart extends View {
     }
 
     void addTimeLabel(Calendar cal, int levelLeft, int levelRight, boolean is24hr) {
-        final long walltimeStart = mStartWallTime;
-        final long walltimeChange = mEndWallTime-walltimeStart;
+        final long walltimeStart = mViewStartWallTime;
+        final long walltimeChange = mViewEndWallTime-walltimeStart;
         mTimeLabels.add(new TimeLabel(mTextPaint,
                 levelLeft + (int)(((cal.getTimeInMillis()-walltimeStart)*(levelRight-levelLeft))
                         / walltimeChange),
@@ -1114,8 +1207,8 @@ public class BatteryHistoryChart extends View {
     }
 
     void addDateLabel(Calendar cal, int levelLeft, int levelRight, boolean isDayFirst) {
-        final long walltimeStart = mStartWallTime;
-        final long walltimeChange = mEndWallTime-walltimeStart;
+        final long walltimeStart = mViewStartWallTime;
+        final long walltimeChange = mViewEndWallTime-walltimeStart;
         mDateLabels.add(new DateLabel(mTextPaint,
                 levelLeft + (int)(((cal.getTimeInMillis()-walltimeStart)*(levelRight-levelLeft))
                         / walltimeChange),
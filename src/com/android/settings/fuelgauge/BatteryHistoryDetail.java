@@ -48,6 +48,7 @@ public class BatteryHistoryDetail extends Fragment {
         BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
                 R.id.battery_history_chart);
         chart.setStats(mStats, mBatteryBroadcast);
+        chart.setZoomEnabled(true);
         return view;
     }
 }
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.telephony.ServiceState;
+
+import java.util.Arrays;
+
+/**
+ * The battery history of a {@link BatteryStats}, as drawn by
+ * {@link BatteryHistoryChart}: one record per history item carrying data,
+ * with its wall clock time, battery level and the states of the chart packed
+ * into an int, and break records where the chart starts a new segment.
+ *
+ * It is built with a single walk of the history, which can be long after
+ * days of uptime and should not be done on the UI thread; the chart is then
+ * projected from the arrays for any width.
+ *
+ * The records are also summarized in time buckets: the finest summary splits
+ * the history in up to {@link #MAX_BUCKETS} buckets, and each coarser one
+ * merges pairs of buckets of the previous one.  A bucket keeps the minimum,
+ * maximum and last battery level of its records, the states that were on in
+ * any of them and the last phone signal, so that any interval of the history
+ * can be drawn from the summary with about one bucket per pixel.  When even
+ * the finest buckets are wider than a pixel, the records themselves are
+ * drawn, from the first one found by {@link #findRecord}.
+ */
+final class BatteryHistoryModel {
+    static final int FLAG_CHARGING = 1<<0;
+    static final int FLAG_SCREEN_ON = 1<<1;
+    static final int FLAG_GPS_ON = 1<<2;
+    static final int FLAG_WIFI_RUNNING = 1<<3;
+    static final int FLAG_CPU_RUNNING = 1<<4;
+    static final int PHONE_SIGNAL_BIN_SHIFT = 8;
+    static final int PHONE_SIGNAL_BIN_MASK = 0xf<<PHONE_SIGNAL_BIN_SHIFT;
+    /**
+     * The chart segment ends here; the record has no level, and the wall time
+     * of the record before it.
+     */
+    static final int FLAG_BREAK = 1<<31;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Number of buckets of the finest summary, at most. */
+    static final int MAX_BUCKETS = 1<<14;
+    /** Duration of the buckets of the finest summary, at least. */
+    static final long MIN_BUCKET_DURATION = 1000;
+
+    // Packing of the levels of a bucket
+    private static final int MIN_LEVEL_SHIFT = 0;
+    private static final int MAX_LEVEL_SHIFT = 8;
+    private static final int LAST_LEVEL_SHIFT = 16;
+    static final int BUCKET_HAS_DATA = 1<<24;
+
+    long histStart;
+    long histDataEnd;
+    long startWallTime;
+    long lastWallTime;
+    long lastRealtime;
+    long endDataWallTime;
+    boolean haveGps;
+    boolean haveWifi;
+
+    int count;
+    long[] wallTimes;
+    byte[] levels;
+    int[] flags;
+
+    /** Duration of the buckets of the finest summary. */
+    long bucketDuration;
+    /**
+     * Summaries from the finest to a single bucket: the packed levels of the
+     * buckets, and their flags with {@link #FLAG_BREAK} if the chart breaks
+     * after their data.
+     */
+    int[][] summaryLevels;
+    int[][] summaryFlags;
+
+    private BatteryHistoryModel() {
+    }
+
+    static int getPhoneSignalBin(int flags) {
+        return (flags&PHONE_SIGNAL_BIN_MASK) >> PHONE_SIGNAL_BIN_SHIFT;
+    }
+
+    static int getMinLevel(int bucketLevels) {
+        return (bucketLevels >> MIN_LEVEL_SHIFT) & 0xff;
+    }
+
+    static int getMaxLevel(int bucketLevels) {
+        return (bucketLevels >> MAX_LEVEL_SHIFT) & 0xff;
+    }
+
+    static int getLastLevel(int bucketLevels) {
+        return (bucketLevels >> LAST_LEVEL_SHIFT) & 0xff;
+    }
+
+    /**
+     * Returns the depth of the coarsest summary whose buckets are not longer
+     * than the given duration, or 0 if none is.
+     */
+    int getSummaryDepth(long maxBucketDuration) {
+        int depth = 0;
+        while (depth < summaryLevels.length - 1
+                && (bucketDuration << (depth + 1)) <= maxBucketDuration) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the index of the first record whose wall time is not before the
+     * given one, or {@link #count} if there is none.  The wall times only go
+     * down across a change of the current time, where the record found may
+     * be off by the records before the change.
+     */
+    int findRecord(long wallTime) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (wallTimes[mid] < wallTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Walks the history of the stats, which must not be iterated meanwhile.
+     */
+    static BatteryHistoryModel build(BatteryStats stats) {
+        final BatteryHistoryModel model = new BatteryHistoryModel();
+        model.walkHistory(stats);
+        model.buildSummaries();
+        return model;
+    }
+
+    private void walkHistory(BatteryStats stats) {
+        // Realtime of the records, and the current time of the time changes;
+        // the wall times are only known once the start wall time is.
+        long[] times = new long[INITIAL_CAPACITY];
+        long[] currentTimes = new long[INITIAL_CAPACITY];
+        byte[] levelsOrCmds = new byte[INITIAL_CAPACITY];
+        int[] states = new int[INITIAL_CAPACITY];
+        int n = 0;
+        int lastInteresting = 0;
+
+        long lastWallTime = 0;
+        long lastRealtime = 0;
+        int aggrStates = 0;
+        int aggrStates2 = 0;
+        int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
+        boolean lastWifiSupplRunning = false;
+        boolean first = true;
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            while (stats.getNextHistoryLocked(rec)) {
+                if (first) {
+                    first = false;
+                    histStart = rec.time;
+                }
+                if (rec.cmd == HistoryItem.CMD_OVERFLOW) {
+                    // Nothing to draw
+                    continue;
+                }
+                if (n == times.length) {
+                    final int size = n * 2;
+                    times = Arrays.copyOf(times, size);
+                    currentTimes = Arrays.copyOf(currentTimes, size);
+                    levelsOrCmds = Arrays.copyOf(levelsOrCmds, size);
+                    states = Arrays.copyOf(states, size);
+                }
+                times[n] = rec.time;
+                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                        || rec.cmd == HistoryItem.CMD_RESET) {
+                    // If there is a ridiculously large jump in time, then we won't be
+                    // able to create a good chart with that data, so just ignore the
+                    // times we got before and pretend like our data extends back from
+                    // the time we have now.
+                    // Also, if we are getting a time change and we are less than 5 minutes
+                    // since the start of the history real time, then also use this new
+                    // time to compute the base time, since whatever time we had before is
+                    // pretty much just noise.
+                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
+                            || rec.time < (histStart+(5*60*1000L))) {
+                        startWallTime = 0;
+                    }
+                    lastWallTime = rec.currentTime;
+                    lastRealtime = rec.time;
+                    if (startWallTime == 0) {
+                        startWallTime = lastWallTime - (lastRealtime-histStart);
+                    }
+                    currentTimes[n] = rec.currentTime;
+                }
+                if (rec.isDeltaData()) {
+                    histDataEnd = rec.time;
+                    aggrStates |= rec.states;
+                    aggrStates2 |= rec.states2;
+
+                    int flags = 0;
+                    if ((rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0) {
+                        flags |= FLAG_CHARGING;
+                    }
+                    if ((rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0) {
+                        flags |= FLAG_SCREEN_ON;
+                    }
+                    if ((rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0) {
+                        flags |= FLAG_GPS_ON;
+                    }
+                    if ((rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0) {
+                        flags |= FLAG_CPU_RUNNING;
+                    }
+
+                    final int wifiSupplState =
+                        ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                                >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
+                    if (lastWifiSupplState != wifiSupplState) {
+                        lastWifiSupplState = wifiSupplState;
+                        switch (wifiSupplState) {
+                            case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
+                            case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
+                            case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
+                            case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
+                            case BatteryStats.WIFI_SUPPL_STATE_INVALID:
+                            case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
+                                lastWifiSupplRunning = false;
+                                break;
+                            default:
+                                lastWifiSupplRunning = true;
+                                break;
+                        }
+                    }
+                    if (lastWifiSupplRunning || (rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                            |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+                            |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
+                        flags |= FLAG_WIFI_RUNNING;
+                    }
+
+                    int bin;
+                    if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                            == ServiceState.STATE_POWER_OFF) {
+                        bin = 0;
+                    } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                        bin = 1;
+                    } else {
+                        bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
+                        bin += 2;
+                    }
+                    flags |= (bin<<PHONE_SIGNAL_BIN_SHIFT)&PHONE_SIGNAL_BIN_MASK;
+
+                    levelsOrCmds[n] = rec.batteryLevel;
+                    states[n] = flags;
+                    lastInteresting = n + 1;
+                } else {
+                    levelsOrCmds[n] = rec.cmd;
+                    states[n] = FLAG_BREAK;
+                }
+                n++;
+            }
+            stats.finishIteratingHistoryLocked();
+        }
+
+        this.lastWallTime = lastWallTime;
+        this.lastRealtime = lastRealtime;
+        endDataWallTime = lastWallTime + histDataEnd - lastRealtime;
+        haveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+        haveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
+                || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+                        |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
+
+        // Now that the start wall time is known, turn the realtimes into wall
+        // times in place, and keep only the commands breaking the chart.
+        long curWalltime = startWallTime;
+        long curRealtime = 0;
+        int out = 0;
+        for (int i=0; i<lastInteresting; i++) {
+            if ((states[i]&FLAG_BREAK) == 0) {
+                curWalltime += times[i]-curRealtime;
+                curRealtime = times[i];
+                times[out] = curWalltime;
+                levelsOrCmds[out] = levelsOrCmds[i];
+                states[out] = states[i];
+                out++;
+            } else {
+                final byte cmd = levelsOrCmds[i];
+                final long lastWalltime = curWalltime;
+                if (cmd == HistoryItem.CMD_CURRENT_TIME || cmd == HistoryItem.CMD_RESET) {
+                    if (currentTimes[i] >= startWallTime) {
+                        curWalltime = currentTimes[i];
+                    } else {
+                        curWalltime = startWallTime + (times[i]-histStart);
+                    }
+                    curRealtime = times[i];
+                }
+                if (cmd != HistoryItem.CMD_CURRENT_TIME
+                        || Math.abs(lastWalltime-curWalltime) > (60*60*1000)) {
+                    times[out] = lastWalltime;
+                    levelsOrCmds[out] = 0;
+                    states[out] = FLAG_BREAK;
+                    out++;
+                }
+            }
+        }
+        count = out;
+        wallTimes = Arrays.copyOf(times, out);
+        levels = Arrays.copyOf(levelsOrCmds, out);
+        flags = Arrays.copyOf(states, out);
+    }
+
+    private void buildSummaries() {
+        final long span = Math.max(endDataWallTime - startWallTime, 1);
+        int buckets = 1;
+        while (buckets < MAX_BUCKETS && span / buckets > MIN_BUCKET_DURATION) {
+            buckets <<= 1;
+        }
+        bucketDuration = (span + buckets - 1) / buckets;
+
+        int depths = 1;
+        for (int n = buckets; n > 1; n >>= 1) {
+            depths++;
+        }
+        summaryLevels = new int[depths][];
+        summaryFlags = new int[depths][];
+
+        // Finest summary from the records
+        int[] bucketLevels = new int[buckets];
+        int[] bucketFlags = new int[buckets];
+        int bucket = -1;
+        for (int i=0; i<count; i++) {
+            final int recFlags = flags[i];
+            if ((recFlags&FLAG_BREAK) != 0) {
+                // Breaks after the data of the bucket of the previous record
+                if (bucket >= 0) {
+                    bucketFlags[bucket] |= FLAG_BREAK;
+                }
+                continue;
+            }
+            bucket = (int) Math.max(0, Math.min(buckets - 1,
+                    (wallTimes[i] - startWallTime) / bucketDuration));
+            final int level = levels[i] & 0xff;
+            final int packed = bucketLevels[bucket];
+            int minLevel = level;
+            int maxLevel = level;
+            if ((packed&BUCKET_HAS_DATA) != 0) {
+                minLevel = Math.min(minLevel, getMinLevel(packed));
+                maxLevel = Math.max(maxLevel, getMaxLevel(packed));
+            }
+            bucketLevels[bucket] = packLevels(minLevel, maxLevel, level);
+            bucketFlags[bucket] = ((bucketFlags[bucket] | recFlags) & ~PHONE_SIGNAL_BIN_MASK)
+                    | (recFlags&PHONE_SIGNAL_BIN_MASK);
+        }
+        summaryLevels[0] = bucketLevels;
+        summaryFlags[0] = bucketFlags;
+
+        // Coarser summaries from pairs of buckets
+        for (int depth=1; depth<depths; depth++) {
+            final int[] finerLevels = summaryLevels[depth - 1];
+            final int[] finerFlags = summaryFlags[depth - 1];
+            bucketLevels = new int[finerLevels.length / 2];
+            bucketFlags = new int[finerLevels.length / 2];
+            for (int i=0; i<bucketLevels.length; i++) {
+                final int first = finerLevels[2*i];
+                final int second = finerLevels[2*i + 1];
+                if ((first&BUCKET_HAS_DATA) == 0) {
+                    bucketLevels[i] = second;
+                    bucketFlags[i] = finerFlags[2*i + 1] | finerFlags[2*i];
+                } else if ((second&BUCKET_HAS_DATA) == 0) {
+                    bucketLevels[i] = first;
+                    bucketFlags[i] = finerFlags[2*i] | finerFlags[2*i + 1];
+                } else {
+                    bucketLevels[i] = packLevels(
+                            Math.min(getMinLevel(first), getMinLevel(second)),
+                            Math.max(getMaxLevel(first), getMaxLevel(second)),
+                            getLastLevel(second));
+                    bucketFlags[i] = ((finerFlags[2*i] | finerFlags[2*i + 1])
+                            & ~PHONE_SIGNAL_BIN_MASK)
+                            | (finerFlags[2*i + 1]&PHONE_SIGNAL_BIN_MASK);
+                }
+            }
+            summaryLevels[depth] = bucketLevels;
+            summaryFlags[depth] = bucketFlags;
+        }
+    }
+
+    private static int packLevels(int minLevel, int maxLevel, int lastLevel) {
+        return BUCKET_HAS_DATA | (minLevel << MIN_LEVEL_SHIFT) | (maxLevel << MAX_LEVEL_SHIFT)
+                | (lastLevel << LAST_LEVEL_SHIFT);
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.app.AppGlobals;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the names and icons of the app UIDs of {@link BatteryEntry}s on a
+ * small shared pool of threads, and keeps them in a cache bounded by their
+ * estimated memory, shared by the battery screens.
+ *
+ * Requests are made through a {@link Session} per screen, which delivers the
+ * resolved entries on the main thread and drops its pending requests when
+ * cancelled.  Requests for the same UID share one resolution, and requests
+ * with a lower priority, such as rows further down a list, are resolved
+ * after those with a higher one.  The requests of the rows scrolled into
+ * view are moved ahead of all the others with {@link Session#setVisible}.
+ */
+final class NameAndIconResolver {
+    private static final String TAG = "NameAndIconResolver";
+
+    private static final int MAX_THREADS = 2;
+    private static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+
+    // Estimated size of an icon whose memory is not known
+    private static final int DEFAULT_ICON_BYTES = 16 * 1024;
+
+    // Priority of the requests of the entries on screen, before any rank
+    private static final int PRIORITY_VISIBLE = -1;
+
+    /**
+     * Resolved name and icon of an UID.
+     */
+    static final class Details {
+        /** The name of the UID, or null if it has no better name than its package. */
+        final String name;
+        final String packageName;
+        final Drawable icon;
+        final String[] packages;
+
+        Details(String name, String packageName, Drawable icon, String[] packages) {
+            this.name = name;
+            this.packageName = packageName;
+            this.icon = icon;
+            this.packages = packages;
+        }
+    }
+
+    interface Callback {
+        /** The name and icon of the entry have been resolved. */
+        void onResolved(BatteryEntry entry);
+        /** All the entries requested so far have been resolved. */
+        void onAllResolved();
+    }
+
+    private static NameAndIconResolver sInstance;
+
+    private final Context mContext;
+    private final LruCache<Integer, Details> mCache;
+    private final ThreadPoolExecutor mExecutor;
+
+    // Synchronize on this for the following
+    private final SparseArray<ResolveTask> mPending = new SparseArray<ResolveTask>();
+    private long mSequence;
+
+    static synchronized NameAndIconResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NameAndIconResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NameAndIconResolver(Context context) {
+        mContext = context;
+        mCache = new LruCache<Integer, Details>(MAX_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Integer uid, Details details) {
+                return estimateBytes(details);
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 1, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the cached details of an UID, or null.
+     */
+    Details getCached(int uid) {
+        return mCache.get(uid);
+    }
+
+    void clearCache() {
+        mCache.evictAll();
+    }
+
+    Session newSession(Callback callback) {
+        return new Session(callback);
+    }
+
+    /**
+     * Requests of a screen, whose results are delivered to its callback on
+     * the main thread until cancelled.
+     */
+    final class Session {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        // Only changed on the main thread
+        private Callback mCallback;
+        private int mOutstanding;
+
+        private Session(Callback callback) {
+            mCallback = callback;
+        }
+
+        /**
+         * Resolves the name and icon of an entry, unless already known.
+         *
+         * @param priority the rank of the entry, lower ones first.
+         */
+        void request(BatteryEntry entry, int priority) {
+            if (mCallback == null || entry.sipper.uidObj == null) {
+                return;
+            }
+            final int uid = entry.sipper.uidObj.getUid();
+            Details details = getCached(uid);
+            if (details == null) {
+                synchronized (NameAndIconResolver.this) {
+                    // The pending task may have been done since
+                    details = getCached(uid);
+                    if (details == null) {
+                        mOutstanding++;
+                        enqueueLocked(entry, uid, priority);
+                        return;
+                    }
+                }
+            }
+            entry.applyNameAndIcon(details);
+            mCallback.onResolved(entry);
+        }
+
+        private void enqueueLocked(BatteryEntry entry, int uid, int priority) {
+            ResolveTask task = mPending.get(uid);
+            if (task == null) {
+                task = new ResolveTask(uid, priority, mSequence++);
+                mPending.put(uid, task);
+                task.waiters.add(new Waiter(this, entry));
+                mExecutor.execute(task);
+            } else {
+                task.waiters.add(new Waiter(this, entry));
+                raisePriorityLocked(task, priority);
+            }
+        }
+
+        /**
+         * Resolves the given entries, shown on screen, before any other
+         * pending request.
+         */
+        void setVisible(List<BatteryEntry> entries) {
+            synchronized (NameAndIconResolver.this) {
+                for (int i = 0; i < entries.size(); i++) {
+                    final BatteryEntry entry = entries.get(i);
+                    if (entry.sipper.uidObj == null) {
+                        continue;
+                    }
+                    final ResolveTask task = mPending.get(entry.sipper.uidObj.getUid());
+                    if (task != null) {
+                        raisePriorityLocked(task, PRIORITY_VISIBLE);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Drops the pending requests; the callback is no longer called.
+         */
+        void cancel() {
+            mCallback = null;
+            mHandler.removeCallbacksAndMessages(null);
+            synchronized (NameAndIconResolver.this) {
+                for (int i = mPending.size() - 1; i >= 0; i--) {
+                    final ResolveTask task = mPending.valueAt(i);
+                    for (int j = task.waiters.size() - 1; j >= 0; j--) {
+                        if (task.waiters.get(j).session == this) {
+                            task.waiters.remove(j);
+                        }
+                    }
+                    if (task.waiters.isEmpty() && mExecutor.remove(task)) {
+                        mPending.removeAt(i);
+                    }
+                }
+            }
+        }
+
+        private void deliver(final BatteryEntry entry, final Details details) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCallback == null) {
+                        return;
+                    }
+                    entry.applyNameAndIcon(details);
+                    mCallback.onResolved(entry);
+                    if (--mOutstanding == 0) {
+                        mCallback.onAllResolved();
+                    }
+                }
+            });
+        }
+    }
+
+    private void raisePriorityLocked(ResolveTask task, int priority) {
+        if (priority < task.priority && mExecutor.remove(task)) {
+            // Move up the queue
+            task.priority = priority;
+            mExecutor.execute(task);
+        }
+    }
+
+    private static final class Waiter {
+        final Session session;
+        final BatteryEntry entry;
+
+        Waiter(Session session, BatteryEntry entry) {
+            this.session = session;
+            this.entry = entry;
+        }
+    }
+
+    private final class ResolveTask implements Runnable, Comparable<ResolveTask> {
+        final int uid;
+        final long sequence;
+        int priority;
+        final ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+
+        ResolveTask(int uid, int priority, long sequence) {
+            this.uid = uid;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(ResolveTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            final Details details = loadNameAndIcon(uid);
+            final ArrayList<Waiter> waiters;
+            synchronized (NameAndIconResolver.this) {
+                if (details.packageName != null || details.name != null) {
+                    mCache.put(uid, details);
+                }
+                mPending.remove(uid);
+                waiters = new ArrayList<Waiter>(this.waiters);
+            }
+            for (int i = 0; i < waiters.size(); i++) {
+                final Waiter waiter = waiters.get(i);
+                waiter.session.deliver(waiter.entry, details);
+            }
+        }
+    }
+
+    /**
+     * Loads the app label and icon image of an UID.
+     */
+    private Details loadNameAndIcon(int uid) {
+        final PackageManager pm = mContext.getPackageManager();
+        final String[] packages = pm.getPackagesForUid(uid);
+        if (packages == null) {
+            return new Details(Integer.toString(uid), null, pm.getDefaultActivityIcon(), null);
+        }
+
+        String name = null;
+        String defaultPackageName = null;
+        Drawable icon = null;
+
+        String[] packageLabels = new String[packages.length];
+        System.arraycopy(packages, 0, packageLabels, 0, packages.length);
+
+        // Convert package names to user-facing labels where possible
+        IPackageManager ipm = AppGlobals.getPackageManager();
+        final int userId = UserHandle.getUserId(uid);
+        for (int i = 0; i < packageLabels.length; i++) {
+            try {
+                final ApplicationInfo ai = ipm.getApplicationInfo(packageLabels[i],
+                        0 /* no flags */, userId);
+                if (ai == null) {
+                    Log.d(TAG, "Retrieving null app info for package "
+                            + packageLabels[i] + ", user " + userId);
+                    continue;
+                }
+                CharSequence label = ai.loadLabel(pm);
+                if (label != null) {
+                    packageLabels[i] = label.toString();
+                }
+                if (ai.icon != 0) {
+                    defaultPackageName = packages[i];
+                    icon = ai.loadIcon(pm);
+                    break;
+                }
+            } catch (RemoteException e) {
+                Log.d(TAG, "Error while retrieving app info for package "
+                        + packageLabels[i] + ", user " + userId, e);
+            }
+        }
+        if (icon == null) {
+            icon = pm.getDefaultActivityIcon();
+        }
+
+        if (packageLabels.length == 1) {
+            name = packageLabels[0];
+        } else {
+            // Look for an official name for this UID.
+            for (String pkgName : packages) {
+                try {
+                    final PackageInfo pi = ipm.getPackageInfo(pkgName, 0 /* no flags */, userId);
+                    if (pi == null) {
+                        Log.d(TAG, "Retrieving null package info for package "
+                                + pkgName + ", user " + userId);
+                        continue;
+                    }
+                    if (pi.sharedUserLabel != 0) {
+                        final CharSequence nm = pm.getText(pkgName,
+                                pi.sharedUserLabel, pi.applicationInfo);
+                        if (nm != null) {
+                            name = nm.toString();
+                            if (pi.applicationInfo.icon != 0) {
+                                defaultPackageName = pkgName;
+                                icon = pi.applicationInfo.loadIcon(pm);
+                            }
+                            break;
+                        }
+                    }
+                } catch (RemoteException e) {
+                    Log.d(TAG, "Error while retrieving package info for package "
+                            + pkgName + ", user " + userId, e);
+                }
+            }
+        }
+        return new Details(name, defaultPackageName, icon, packages);
+    }
+
+    /**
+     * @return the approximate memory used by the details, mostly by the
+     * bitmap of their icon.
+     */
+    private static int estimateBytes(Details details) {
+        int bytes = 64;
+        if (details.icon instanceof BitmapDrawable
+                && ((BitmapDrawable) details.icon).getBitmap() != null) {
+            bytes += ((BitmapDrawable) details.icon).getBitmap().getByteCount();
+        } else if (details.icon != null) {
+            bytes += DEFAULT_ICON_BYTES;
+        }
+        if (details.name != null) {
+            bytes += details.name.length() * 2;
+        }
+        return bytes;
+    }
+}
@@ -368,7 +368,13 @@ public class PowerUsageDetail extends Fragment implements Button.OnClickListener
         String iconPackage = args.getString(EXTRA_ICON_PACKAGE);
         int iconId = args.getInt(EXTRA_ICON_ID, 0);
         mShowLocationButton = args.getBoolean(EXTRA_SHOW_LOCATION_BUTTON);
-        if (!TextUtils.isEmpty(iconPackage)) {
+        // Reuse the icon resolved for the list when still cached
+        final NameAndIconResolver.Details details = args.containsKey(EXTRA_UID)
+                ? NameAndIconResolver.getInstance(getActivity()).getCached(mUid) : null;
+        if (details != null && details.icon != null && !TextUtils.isEmpty(iconPackage)
+                && iconPackage.equals(details.packageName)) {
+            mAppIcon = details.icon;
+        } else if (!TextUtils.isEmpty(iconPackage)) {
             try {
                 final PackageManager pm = getActivity().getPackageManager();
                 ApplicationInfo ai = pm.getPackageInfo(iconPackage, 0).applicationInfo;
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.graphics.drawable.Drawable;
+import android.os.BatteryStats;
+import android.os.Bundle;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.preference.PreferenceManager;
+
+import com.android.internal.os.BatterySipper;
+import com.android.internal.os.BatteryStatsHelper;
+import com.android.internal.os.PowerProfile;
+import com.android.settings.DevelopmentSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loader of the apps and subsystems listed by {@link PowerUsageSummary}:
+ * computes the power usage and wraps the significant sippers into
+ * {@link BatteryEntry}s off the main thread.
+ *
+ * The helper is not thread safe, so each load computes with its own
+ * {@link BatteryStatsHelper}, which it hands over in its {@link Result} for
+ * the screen to use from then on.
+ */
+public class PowerUsageLoader extends AsyncTaskLoader<PowerUsageLoader.Result> {
+    private static final String KEY_STATS_TYPE = "stats_type";
+    private static final String KEY_CLEAR_STATS = "clear_stats";
+
+    private static final int MIN_POWER_THRESHOLD_MILLI_AMP = 5;
+    private static final int MAX_ITEMS_TO_LIST = 10;
+    private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
+    private static final int SECONDS_IN_HOUR = 60 * 60;
+
+    private final Result mLastResult;
+    private final Bundle mArgs;
+
+    /**
+     * A sipper to list, with its position in the list.
+     */
+    public static class Item {
+        public final String key;
+        public final BatteryEntry entry;
+        public final Drawable badgedIcon;
+        public final CharSequence contentDescription;
+        public final double percentOfMax;
+        public final double percentOfTotal;
+        public final int order;
+
+        Item(String key, BatteryEntry entry, Drawable badgedIcon,
+                CharSequence contentDescription, double percentOfMax, double percentOfTotal,
+                int order) {
+            this.key = key;
+            this.entry = entry;
+            this.badgedIcon = badgedIcon;
+            this.contentDescription = contentDescription;
+            this.percentOfMax = percentOfMax;
+            this.percentOfTotal = percentOfTotal;
+            this.order = order;
+        }
+    }
+
+    public static class Result {
+        /** The helper the usage has been computed with, no longer used by the loader. */
+        public final BatteryStatsHelper helper;
+        public final BatteryStats stats;
+        public final Intent batteryBroadcast;
+        public final ArrayList<Item> items;
+
+        Result(BatteryStatsHelper helper, BatteryStats stats, Intent batteryBroadcast,
+                ArrayList<Item> items) {
+            this.helper = helper;
+            this.stats = stats;
+            this.batteryBroadcast = batteryBroadcast;
+            this.items = items;
+        }
+    }
+
+    /**
+     * @param clearStats whether to load the stats again rather than use the
+     *      ones of the last computation.
+     */
+    public static Bundle buildArgs(int statsType, boolean clearStats) {
+        final Bundle args = new Bundle();
+        args.putInt(KEY_STATS_TYPE, statsType);
+        args.putBoolean(KEY_CLEAR_STATS, clearStats);
+        return args;
+    }
+
+    /**
+     * Returns the key of the preference of a sipper, the UID for the sippers
+     * of an UID as the name and icon updates expect.
+     */
+    static String getKey(BatterySipper sipper) {
+        if (sipper.uidObj != null) {
+            return Integer.toString(sipper.uidObj.getUid());
+        }
+        return sipper.drainType + ":" + sipper.userId;
+    }
+
+    /**
+     * @param lastResult the result of the last load, whose stats are only
+     *      read, or null.
+     */
+    public PowerUsageLoader(Context context, Result lastResult, Bundle args) {
+        super(context);
+        mLastResult = lastResult;
+        mArgs = args;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        forceLoad();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+    }
+
+    @Override
+    public Result loadInBackground() {
+        final int statsType = mArgs.getInt(KEY_STATS_TYPE);
+        final Context context = getContext();
+        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+
+        final SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean showUnacAndOvercounted = sp.getBoolean(
+                DevelopmentSettings.SHOW_UNAC_AND_OVERCOUNTED_STATS, false);
+
+        final ArrayList<Item> items = new ArrayList<Item>();
+        // Compute again from the stats of the last load unless they are stale
+        final boolean reuseStats = mLastResult != null && mLastResult.stats != null
+                && !mArgs.getBoolean(KEY_CLEAR_STATS);
+        final BatteryStatsHelper helper = new BatteryStatsHelper(context, !reuseStats);
+        if (reuseStats) {
+            helper.create(mLastResult.stats);
+        } else {
+            helper.create((Bundle) null);
+        }
+        final PowerProfile powerProfile = helper.getPowerProfile();
+        final BatteryStats stats = helper.getStats();
+        final double averagePower = powerProfile.getAveragePower(
+                PowerProfile.POWER_SCREEN_FULL);
+        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
+            final List<UserHandle> profiles = um.getUserProfiles();
+
+            helper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
+
+            final List<BatterySipper> usageList = helper.getUsageList();
+
+            final int dischargeAmount = stats != null
+                    ? stats.getDischargeAmount(statsType) : 0;
+            final int numSippers = usageList.size();
+            for (int i = 0; i < numSippers; i++) {
+                if (isLoadInBackgroundCanceled()) {
+                    return null;
+                }
+                final BatterySipper sipper = usageList.get(i);
+                if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
+                    continue;
+                }
+                final double percentOfTotal =
+                        ((sipper.value / helper.getTotalPower()) * dischargeAmount);
+                if (((int) (percentOfTotal + .5)) < 1) {
+                    continue;
+                }
+                if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
+                    // Don't show over-counted unless it is at least 2/3 the size of
+                    // the largest real entry, and its percent of total is more significant
+                    if (sipper.value < ((helper.getMaxRealPower()*2)/3)) {
+                        continue;
+                    }
+                    if (percentOfTotal < 10) {
+                        continue;
+                    }
+                    if (!showUnacAndOvercounted) {
+                        continue;
+                    }
+                }
+                if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
+                    // Don't show unacccounted unless it is at least 1/2 the size of
+                    // the largest real entry, and its percent of total is more significant
+                    if (sipper.value < (helper.getMaxRealPower()/2)) {
+                        continue;
+                    }
+                    if (percentOfTotal < 5) {
+                        continue;
+                    }
+                    if (!showUnacAndOvercounted) {
+                        continue;
+                    }
+                }
+                final UserHandle userHandle =
+                        new UserHandle(UserHandle.getUserId(sipper.getUid()));
+                final BatteryEntry entry = new BatteryEntry(context, um, sipper);
+                final Drawable badgedIcon = um.getBadgedIconForUser(entry.getIcon(),
+                        userHandle);
+                final CharSequence contentDescription = um.getBadgedLabelForUser(
+                        entry.getLabel(), userHandle);
+
+                final double percentOfMax = (sipper.value * 100) / helper.getMaxPower();
+                sipper.percent = percentOfTotal;
+                items.add(new Item(getKey(sipper), entry, badgedIcon, contentDescription,
+                        percentOfMax, percentOfTotal, i + 1));
+                if (items.size() > MAX_ITEMS_TO_LIST) {
+                    break;
+                }
+            }
+        }
+        final Intent batteryBroadcast = reuseStats
+                ? mLastResult.batteryBroadcast : helper.getBatteryBroadcast();
+        return new Result(helper, stats, batteryBroadcast, items);
+    }
+}
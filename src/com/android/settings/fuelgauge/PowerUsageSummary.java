@@ -17,37 +17,37 @@
 package com.android.settings.fuelgauge;
 
 import android.app.Activity;
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
-import android.graphics.drawable.Drawable;
+import android.content.Loader;
 import android.os.BatteryStats;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
-import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
 import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.widget.AbsListView;
+import android.widget.ListView;
 
-import com.android.internal.os.BatterySipper;
 import com.android.internal.os.BatteryStatsHelper;
-import com.android.internal.os.PowerProfile;
-import com.android.settings.DevelopmentSettings;
 import com.android.settings.HelpUtils;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
-import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Displays a list of apps and subsystems that consume power, ordered by how much power was
@@ -68,21 +68,33 @@ public class PowerUsageSummary extends PreferenceFragment {
     private static final int MENU_BATTERY_SAVER = Menu.FIRST + 2;
     private static final int MENU_HELP = Menu.FIRST + 3;
 
+    private static final int LOADER_USAGE = 1;
+
+    // Delay of the refresh after the battery level or status changed
+    private static final long BATTERY_CHANGED_REFRESH_DELAY = 500;
+
     private UserManager mUm;
 
     private BatteryHistoryPreference mHistPref;
+    private Preference mNotAvailablePref;
     private PreferenceGroup mAppListGroup;
     private String mBatteryLevel;
     private String mBatteryStatus;
 
     private int mStatsType = BatteryStats.STATS_SINCE_CHARGED;
 
-    private static final int MIN_POWER_THRESHOLD_MILLI_AMP = 5;
-    private static final int MAX_ITEMS_TO_LIST = 10;
-    private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
-    private static final int SECONDS_IN_HOUR = 60 * 60;
-
+    // Helper of the usage shown, handed over by the loader; only used on the
+    // main thread.
     private BatteryStatsHelper mStatsHelper;
+    private PowerUsageLoader.Result mUsage;
+    // Whether the stats must be loaded again on the next refresh
+    private boolean mStatsStale;
+    // Battery changes do not refresh the stats more often than this
+    private long mMinRefreshInterval;
+    private long mLastRefreshTime;
+
+    // Resolves the names and icons of the listed apps while resumed
+    private NameAndIconResolver.Session mResolverSession;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -92,7 +104,9 @@ public class PowerUsageSummary extends PreferenceFragment {
             if (Intent.ACTION_BATTERY_CHANGED.equals(action)
                     && updateBatteryStatus(intent)) {
                 if (!mHandler.hasMessages(MSG_REFRESH_STATS)) {
-                    mHandler.sendEmptyMessageDelayed(MSG_REFRESH_STATS, 500);
+                    final long delay = Math.max(BATTERY_CHANGED_REFRESH_DELAY,
+                            mLastRefreshTime + mMinRefreshInterval - SystemClock.uptimeMillis());
+                    mHandler.sendEmptyMessageDelayed(MSG_REFRESH_STATS, delay);
                 }
             }
         }
@@ -109,16 +123,24 @@ public class PowerUsageSummary extends PreferenceFragment {
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
         mStatsHelper.create(icicle);
+        mMinRefreshInterval = getResources().getInteger(
+                R.integer.power_usage_min_refresh_interval);
 
         addPreferencesFromResource(R.xml.power_usage_summary);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
         setHasOptionsMenu(true);
     }
 
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        getListView().setOnScrollListener(mScrollListener);
+    }
+
     @Override
     public void onStart() {
         super.onStart();
-        mStatsHelper.clearStats();
+        mStatsStale = true;
     }
 
     @Override
@@ -129,15 +151,17 @@ public class PowerUsageSummary extends PreferenceFragment {
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
         if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
             mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
+            mStatsStale = true;
         }
+        mResolverSession = NameAndIconResolver.getInstance(getActivity())
+                .newSession(mResolverCallback);
         refreshStats();
     }
 
     @Override
     public void onPause() {
-        BatteryEntry.stopRequestQueue();
-        mHandler.removeMessages(BatteryEntry.MSG_UPDATE_NAME_ICON);
+        mResolverSession.cancel();
+        mResolverSession = null;
         getActivity().unregisterReceiver(mBatteryInfoReceiver);
         super.onPause();
     }
@@ -153,18 +177,18 @@ public class PowerUsageSummary extends PreferenceFragment {
         super.onDestroy();
         if (getActivity().isChangingConfigurations()) {
             mStatsHelper.storeState();
-            BatteryEntry.clearUidCache();
+            NameAndIconResolver.getInstance(getActivity()).clearCache();
         }
     }
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
-            mStatsHelper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
             Bundle args = new Bundle();
+            mStatsHelper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
+            args.putParcelable(BatteryHistoryDetail.EXTRA_BROADCAST, mUsage != null
+                    ? mUsage.batteryBroadcast : mStatsHelper.getBatteryBroadcast());
             args.putString(BatteryHistoryDetail.EXTRA_STATS, BATTERY_HISTORY_FILE);
-            args.putParcelable(BatteryHistoryDetail.EXTRA_BROADCAST,
-                    mStatsHelper.getBatteryBroadcast());
             SettingsActivity sa = (SettingsActivity) getActivity();
             sa.startPreferencePanel(BatteryHistoryDetail.class.getName(), args,
                     R.string.history_details_title, null, null, 0);
@@ -175,8 +199,8 @@ public class PowerUsageSummary extends PreferenceFragment {
         }
         PowerGaugePreference pgp = (PowerGaugePreference) preference;
         BatteryEntry entry = pgp.getInfo();
-        PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(), mStatsHelper,
-                mStatsType, entry, true);
+        PowerUsageDetail.startBatteryDetailPage((SettingsActivity) getActivity(),
+                mStatsHelper, mStatsType, entry, true);
         return super.onPreferenceTreeClick(preferenceScreen, preference);
     }
 
@@ -215,7 +239,7 @@ public class PowerUsageSummary extends PreferenceFragment {
                 refreshStats();
                 return true;
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
+                mStatsStale = true;
                 refreshStats();
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
@@ -229,13 +253,6 @@ public class PowerUsageSummary extends PreferenceFragment {
         }
     }
 
-    private void addNotAvailableMessage() {
-        Preference notAvailable = new Preference(getActivity());
-        notAvailable.setTitle(R.string.power_usage_not_available);
-        mHistPref.setHideLabels(true);
-        mAppListGroup.addPreference(notAvailable);
-    }
-
     private boolean updateBatteryStatus(Intent intent) {
         if (intent != null) {
             String batteryLevel = com.android.settings.Utils.getBatteryPercentage(intent);
@@ -250,98 +267,170 @@ public class PowerUsageSummary extends PreferenceFragment {
         return false;
     }
 
+    /**
+     * Computes the power usage again in the background, loading the stats
+     * again if they are stale.
+     */
     private void refreshStats() {
-        mAppListGroup.removeAll();
+        mLastRefreshTime = SystemClock.uptimeMillis();
+        final boolean clearStats = mStatsStale;
+        mStatsStale = false;
+        getLoaderManager().restartLoader(LOADER_USAGE,
+                PowerUsageLoader.buildArgs(mStatsType, clearStats), mUsageCallbacks);
+    }
+
+    private final LoaderCallbacks<PowerUsageLoader.Result> mUsageCallbacks =
+            new LoaderCallbacks<PowerUsageLoader.Result>() {
+        @Override
+        public Loader<PowerUsageLoader.Result> onCreateLoader(int id, Bundle args) {
+            return new PowerUsageLoader(getActivity(), mUsage, args);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<PowerUsageLoader.Result> loader,
+                PowerUsageLoader.Result result) {
+            if (result != null) {
+                mUsage = result;
+                mStatsHelper = result.helper;
+                bindUsage(result);
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<PowerUsageLoader.Result> loader) {
+            // Keep the last usage shown
+        }
+    };
+
+    /**
+     * Updates the list to the given usage: the preferences of the sippers
+     * still listed are kept, and only changed if their percentage, label,
+     * icon or position did.
+     */
+    private void bindUsage(PowerUsageLoader.Result result) {
         mAppListGroup.setOrderingAsAdded(false);
-        mHistPref = new BatteryHistoryPreference(getActivity(), mStatsHelper.getStats(),
-                mStatsHelper.getBatteryBroadcast());
-        mHistPref.setOrder(-1);
-        mAppListGroup.addPreference(mHistPref);
-        boolean addedSome = false;
-
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getActivity());
-        final boolean showUnacAndOvercounted = sp.getBoolean(
-                DevelopmentSettings.SHOW_UNAC_AND_OVERCOUNTED_STATS, false);
-
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
-        final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
-        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-
-            mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
-
-            final List<BatterySipper> usageList = mStatsHelper.getUsageList();
-
-            final int dischargeAmount = stats != null ? stats.getDischargeAmount(mStatsType) : 0;
-            final int numSippers = usageList.size();
-            for (int i = 0; i < numSippers; i++) {
-                final BatterySipper sipper = usageList.get(i);
-                if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
-                    continue;
-                }
-                final double percentOfTotal =
-                        ((sipper.value / mStatsHelper.getTotalPower()) * dischargeAmount);
-                if (((int) (percentOfTotal + .5)) < 1) {
-                    continue;
-                }
-                if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
-                    // Don't show over-counted unless it is at least 2/3 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < ((mStatsHelper.getMaxRealPower()*2)/3)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 10) {
-                        continue;
-                    }
-                    if (!showUnacAndOvercounted) {
-                        continue;
-                    }
-                }
-                if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
-                    // Don't show unacccounted unless it is at least 1/2 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < (mStatsHelper.getMaxRealPower()/2)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 5) {
-                        continue;
-                    }
-                    if (!showUnacAndOvercounted) {
-                        continue;
-                    }
-                }
-                final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
-                final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
-                        userHandle);
-                final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
-                        userHandle);
-                final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
-                        badgedIcon, contentDescription, entry);
-
-                final double percentOfMax = (sipper.value * 100) / mStatsHelper.getMaxPower();
-                sipper.percent = percentOfTotal;
-                pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-                }
-                addedSome = true;
+        if (mHistPref == null || mHistPref.getStats() != result.stats) {
+            if (mHistPref != null) {
+                mAppListGroup.removePreference(mHistPref);
+            }
+            mHistPref = new BatteryHistoryPreference(getActivity(), result.stats,
+                    result.batteryBroadcast);
+            mHistPref.setOrder(-1);
+            mAppListGroup.addPreference(mHistPref);
+        }
+
+        final HashMap<String, PowerGaugePreference> oldPrefs =
+                new HashMap<String, PowerGaugePreference>();
+        for (int i = mAppListGroup.getPreferenceCount() - 1; i >= 0; i--) {
+            final Preference pref = mAppListGroup.getPreference(i);
+            if (pref instanceof PowerGaugePreference) {
+                oldPrefs.put(pref.getKey(), (PowerGaugePreference) pref);
+            }
+        }
+
+        final int numItems = result.items.size();
+        for (int i = 0; i < numItems; i++) {
+            final PowerUsageLoader.Item item = result.items.get(i);
+            PowerGaugePreference pref = oldPrefs.remove(item.key);
+            if (pref == null) {
+                pref = new PowerGaugePreference(getActivity(), item.badgedIcon,
+                        item.contentDescription, item.entry);
+                pref.setKey(item.key);
+                pref.setTitle(item.entry.getLabel());
+                pref.setOrder(item.order);
+                pref.setPercent(item.percentOfMax, item.percentOfTotal);
                 mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST + 1)) {
-                    break;
-                }
+                continue;
+            }
+            if (pref.getInfo().getIcon() != item.entry.getIcon()) {
+                pref.setIcon(item.badgedIcon);
             }
+            pref.setInfo(item.entry);
+            pref.setTitle(item.entry.getLabel());
+            pref.setOrder(item.order);
+            pref.setPercent(item.percentOfMax, item.percentOfTotal);
         }
-        if (!addedSome) {
-            addNotAvailableMessage();
+        for (PowerGaugePreference pref : oldPrefs.values()) {
+            mAppListGroup.removePreference(pref);
+        }
+
+        if (numItems == 0) {
+            if (mNotAvailablePref == null) {
+                mNotAvailablePref = new Preference(getActivity());
+                mNotAvailablePref.setTitle(R.string.power_usage_not_available);
+                mAppListGroup.addPreference(mNotAvailablePref);
+            }
+        } else if (mNotAvailablePref != null) {
+            mAppListGroup.removePreference(mNotAvailablePref);
+            mNotAvailablePref = null;
         }
+        mHistPref.setHideLabels(numItems == 0);
 
-        BatteryEntry.startRequestQueue();
+        // The rows are listed by decreasing usage, resolve the top ones first
+        for (int i = 0; i < numItems; i++) {
+            final BatteryEntry entry = result.items.get(i).entry;
+            if (entry.needsNameAndIcon() && mResolverSession != null) {
+                mResolverSession.request(entry, i);
+            }
+        }
     }
 
+    /**
+     * Has the names and icons of the rows on screen resolved first, as the
+     * list is laid out or scrolled.
+     */
+    private final AbsListView.OnScrollListener mScrollListener =
+            new AbsListView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (mResolverSession == null || visibleItemCount == 0) {
+                return;
+            }
+            final ListView listView = (ListView) view;
+            final ArrayList<BatteryEntry> visible = new ArrayList<BatteryEntry>();
+            for (int i = firstVisibleItem; i < firstVisibleItem + visibleItemCount; i++) {
+                final Object item = listView.getItemAtPosition(i);
+                if (item instanceof PowerGaugePreference) {
+                    final BatteryEntry entry = ((PowerGaugePreference) item).getInfo();
+                    if (entry.needsNameAndIcon()) {
+                        visible.add(entry);
+                    }
+                }
+            }
+            if (!visible.isEmpty()) {
+                mResolverSession.setVisible(visible);
+            }
+        }
+    };
+
+    private final NameAndIconResolver.Callback mResolverCallback =
+            new NameAndIconResolver.Callback() {
+        @Override
+        public void onResolved(BatteryEntry entry) {
+            PowerGaugePreference pgp = (PowerGaugePreference) findPreference(
+                    Integer.toString(entry.sipper.uidObj.getUid()));
+            if (pgp != null) {
+                final int userId = UserHandle.getUserId(entry.sipper.getUid());
+                final UserHandle userHandle = new UserHandle(userId);
+                pgp.setIcon(mUm.getBadgedIconForUser(entry.getIcon(), userHandle));
+                pgp.setTitle(entry.name);
+            }
+        }
+
+        @Override
+        public void onAllResolved() {
+            Activity activity = getActivity();
+            if (activity != null) {
+                activity.reportFullyDrawn();
+            }
+        }
+    };
+
     static final int MSG_REFRESH_STATS = 100;
 
     Handler mHandler = new Handler() {
@@ -349,26 +438,8 @@ public class PowerUsageSummary extends PreferenceFragment {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case BatteryEntry.MSG_UPDATE_NAME_ICON:
-                    BatteryEntry entry = (BatteryEntry) msg.obj;
-                    PowerGaugePreference pgp =
-                            (PowerGaugePreference) findPreference(
-                                    Integer.toString(entry.sipper.uidObj.getUid()));
-                    if (pgp != null) {
-                        final int userId = UserHandle.getUserId(entry.sipper.getUid());
-                        final UserHandle userHandle = new UserHandle(userId);
-                        pgp.setIcon(mUm.getBadgedIconForUser(entry.getIcon(), userHandle));
-                        pgp.setTitle(entry.name);
-                    }
-                    break;
-                case BatteryEntry.MSG_REPORT_FULLY_DRAWN:
-                    Activity activity = getActivity();
-                    if (activity != null) {
-                        activity.reportFullyDrawn();
-                    }
-                    break;
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
+                    mStatsStale = true;
                     refreshStats();
             }
             super.handleMessage(msg);
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.net.NetworkStats;
+import android.os.UserHandle;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Data usage of a cycle collapsed into {@link AppItem}s: one per app UID of
+ * the current user and its profiles, one per other user, and the system,
+ * removed and tethering items. The items are sorted as displayed, most used
+ * first within their category.
+ */
+public class AppUsageSummary {
+    public final ArrayList<AppItem> items;
+    public final long largest;
+
+    private AppUsageSummary(ArrayList<AppItem> items, long largest) {
+        this.items = items;
+        this.largest = largest;
+    }
+
+    /**
+     * Collapse the given per-UID stats. The totals are accumulated in
+     * primitive maps keyed by collapse key, and the items only created once
+     * all the entries have been walked.
+     *
+     * @param stats the summary of all UIDs, or {@code null}.
+     * @param restrictedUids UIDs with background data restricted.
+     * @param currentUserId the foreground user.
+     * @param profiles the profiles of the foreground user, including itself.
+     */
+    public static AppUsageSummary aggregate(NetworkStats stats, int[] restrictedUids,
+            int currentUserId, List<UserHandle> profiles) {
+        final SparseBooleanArray profileIds = new SparseBooleanArray(profiles.size());
+        for (UserHandle profile : profiles) {
+            profileIds.put(profile.getIdentifier(), true);
+        }
+
+        final SparseLongArray totals = new SparseLongArray();
+        final SparseIntArray categories = new SparseIntArray();
+        // Pairs of collapse key and UID, an UID being in up to two items
+        int[] keyUids = new int[64];
+        int keyUidCount = 0;
+
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final long bytes = entry.rxBytes + entry.txBytes;
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (profileIds.get(userId)) {
+                    if (userId != currentUserId) {
+                        // Add to a managed user item.
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        keyUids = accumulate(totals, categories, keyUids, keyUidCount,
+                                managedKey, AppItem.CATEGORY_USER, uid, bytes);
+                        keyUidCount += 2;
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    // Add to other user item.
+                    collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                    category = AppItem.CATEGORY_USER;
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            keyUids = accumulate(totals, categories, keyUids, keyUidCount,
+                    collapseKey, category, uid, bytes);
+            keyUidCount += 2;
+        }
+
+        final ArrayList<AppItem> items = new ArrayList<AppItem>(totals.size() + 1);
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>(totals.size());
+        long largest = 0;
+        for (int i = 0; i < totals.size(); i++) {
+            final AppItem item = new AppItem(totals.keyAt(i));
+            item.category = categories.valueAt(i);
+            item.total = totals.valueAt(i);
+            if (largest < item.total) {
+                largest = item.total;
+            }
+            items.add(item);
+            knownItems.put(item.key, item);
+        }
+        for (int i = 0; i < keyUidCount; i += 2) {
+            knownItems.get(keyUids[i]).addUid(keyUids[i + 1]);
+        }
+
+        final int restrictedUidsMax = restrictedUids.length;
+        for (int i = 0; i < restrictedUidsMax; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!profileIds.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        if (!items.isEmpty()) {
+            final AppItem title = new AppItem();
+            title.category = AppItem.CATEGORY_APP_TITLE;
+            items.add(title);
+        }
+
+        Collections.sort(items);
+        return new AppUsageSummary(items, largest);
+    }
+
+    /**
+     * Accumulate the bytes of an UID into the total of a collapse key, and
+     * record the UID as part of it.
+     *
+     * @return the pairs of collapse key and UID, grown if needed.
+     */
+    private static int[] accumulate(SparseLongArray totals, SparseIntArray categories,
+            int[] keyUids, int keyUidCount, int collapseKey, int category, int uid,
+            long bytes) {
+        final int index = totals.indexOfKey(collapseKey);
+        if (index >= 0) {
+            totals.put(collapseKey, totals.valueAt(index) + bytes);
+        } else {
+            totals.put(collapseKey, bytes);
+            categories.put(collapseKey, category);
+        }
+        if (keyUidCount + 2 > keyUids.length) {
+            final int[] grown = new int[keyUids.length * 2];
+            System.arraycopy(keyUids, 0, grown, 0, keyUidCount);
+            keyUids = grown;
+        }
+        keyUids[keyUidCount] = collapseKey;
+        keyUids[keyUidCount + 1] = uid;
+        return keyUids;
+    }
+}
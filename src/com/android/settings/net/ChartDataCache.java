@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+import android.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import libcore.util.Objects;
+
+/**
+ * Process wide LRU cache of the {@link NetworkStatsHistory} loaded by
+ * {@link ChartDataLoader}, bounded by the estimated size of the histories.
+ * It is keyed by template, UID, set and fields, so that switching between
+ * tabs, cycles and apps reuses the histories already loaded.
+ *
+ * The histories are only valid for the generation of the stats they have
+ * been loaded in; {@link #invalidate()} starts a new one once the stats have
+ * been updated. Cached histories are shared, and must not be modified.
+ */
+public class ChartDataCache {
+    private static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+
+    private static ChartDataCache sInstance;
+
+    private final LruCache<Key, NetworkStatsHistory> mCache;
+    private int mGeneration;
+
+    private final AtomicInteger mHitCount = new AtomicInteger(0);
+    private final AtomicInteger mMissCount = new AtomicInteger(0);
+
+    public static synchronized ChartDataCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new ChartDataCache(MAX_CACHE_BYTES);
+        }
+        return sInstance;
+    }
+
+    ChartDataCache(int maxBytes) {
+        mCache = new LruCache<Key, NetworkStatsHistory>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, NetworkStatsHistory history) {
+                return estimateBytes(history, key.fields);
+            }
+        };
+    }
+
+    /**
+     * @return the generation of the cached histories, to be given back to
+     * {@link #put} along with the histories loaded meanwhile.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return the cached history, or null if it has not been loaded in the
+     * current generation.
+     */
+    public NetworkStatsHistory get(NetworkTemplate template, int uid, int set, int fields) {
+        final NetworkStatsHistory history;
+        synchronized (this) {
+            history = mCache.get(new Key(template, uid, set, fields));
+        }
+        if (history == null) {
+            mMissCount.incrementAndGet();
+        } else {
+            mHitCount.incrementAndGet();
+        }
+        return history;
+    }
+
+    /**
+     * Caches a history, unless the cache has been invalidated since it
+     * started being loaded.
+     */
+    public void put(NetworkTemplate template, int uid, int set, int fields,
+            NetworkStatsHistory history, int generation) {
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCache.put(new Key(template, uid, set, fields), history);
+            }
+        }
+    }
+
+    /**
+     * Drops all the histories, to be called when the stats have been updated.
+     */
+    public synchronized void invalidate() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    public synchronized int getSizeBytes() {
+        return mCache.size();
+    }
+
+    /**
+     * @return the approximate memory used by the buckets of a history: their
+     * start times and one long per field.
+     */
+    static int estimateBytes(NetworkStatsHistory history, int fields) {
+        return 64 + history.size() * 8 * (1 + Integer.bitCount(fields));
+    }
+
+    private static final class Key {
+        final NetworkTemplate template;
+        final int uid;
+        final int set;
+        final int fields;
+
+        Key(NetworkTemplate template, int uid, int set, int fields) {
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.fields = fields;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return uid == other.uid && set == other.set && fields == other.fields
+                        && Objects.equal(template, other.template);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(template, uid, set, fields);
+        }
+    }
+}
@@ -16,9 +16,11 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.SET_FOREGROUND;
 import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
 import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
@@ -30,19 +32,43 @@ import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Loader for historical chart data for both network and UID details.
  */
 public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
+    private static final String TAG = "ChartDataLoader";
+    private static final boolean LOGD = Log.isLoggable(TAG, Log.DEBUG);
+
+    // Binder threads used to collect the histories of the UIDs of an app
+    // item in parallel, shared by all the loaders.
+    private static final int UID_HISTORY_THREADS = 4;
+    private static final ThreadPoolExecutor sUidHistoryExecutor = new ThreadPoolExecutor(
+            UID_HISTORY_THREADS, UID_HISTORY_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sUidHistoryExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
     private final INetworkStatsSession mSession;
     private final Bundle mArgs;
+    private final ChartDataCache mCache = ChartDataCache.getInstance();
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
         return buildArgs(template, app, FIELD_RX_BYTES | FIELD_TX_BYTES);
@@ -85,21 +111,33 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
 
     private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
             throws RemoteException {
+        final int generation = mCache.getGeneration();
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        data.network = mCache.get(template, UID_ALL, SET_ALL, fields);
+        if (data.network == null) {
+            data.network = mSession.getHistoryForNetwork(template, fields);
+            mCache.put(template, UID_ALL, SET_ALL, fields, data.network, generation);
+        }
 
         if (app != null) {
             // load stats for current uid and template
+            final long start = SystemClock.elapsedRealtime();
             final int size = app.uids.size();
-            for (int i = 0; i < size; i++) {
-                final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+            final NetworkStatsHistory[] detailDefault = new NetworkStatsHistory[size];
+            final NetworkStatsHistory[] detailForeground = new NetworkStatsHistory[size];
+            if (size == 1) {
+                final int uid = app.uids.keyAt(0);
+                detailDefault[0] = collectHistoryForUid(template, uid, SET_DEFAULT, generation);
+                detailForeground[0] = collectHistoryForUid(
+                        template, uid, SET_FOREGROUND, generation);
+            } else if (size > 1) {
+                collectHistoriesForUids(template, app, generation, detailDefault,
+                        detailForeground);
             }
 
             if (size > 0) {
+                data.detailDefault = mergeHistories(detailDefault);
+                data.detailForeground = mergeHistories(detailForeground);
                 data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
                 data.detail.recordEntireHistory(data.detailDefault);
                 data.detail.recordEntireHistory(data.detailForeground);
@@ -108,8 +146,12 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
                 data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
                 data.detail = new NetworkStatsHistory(HOUR_IN_MILLIS);
             }
+            if (LOGD) Log.d(TAG, "loaded detail of " + size + " uids in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
         }
 
+        if (LOGD) Log.d(TAG, "history cache hits=" + mCache.getHitCount() + " misses="
+                + mCache.getMissCount() + " bytes=" + mCache.getSizeBytes());
         return data;
     }
 
@@ -126,20 +168,81 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     }
 
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Collect {@link NetworkStatsHistory} for the requested UID from the
+     * cache, or from the stats session on a miss. The returned history may
+     * be shared and must not be modified.
      */
     private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
+            NetworkTemplate template, int uid, int set, int generation)
             throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
-
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
+        final int fields = FIELD_RX_BYTES | FIELD_TX_BYTES;
+        NetworkStatsHistory history = mCache.get(template, uid, set, fields);
+        if (history == null) {
+            history = mSession.getHistoryForUid(template, uid, set, TAG_NONE, fields);
+            mCache.put(template, uid, set, fields, history, generation);
+        }
+        return history;
+    }
+
+    /**
+     * Collect the default and foreground histories of all the UIDs of an app
+     * item, the lookups missing the cache running on the shared executor.
+     */
+    private void collectHistoriesForUids(final NetworkTemplate template, AppItem app,
+            final int generation, NetworkStatsHistory[] detailDefault,
+            NetworkStatsHistory[] detailForeground) throws RemoteException {
+        final int size = app.uids.size();
+        @SuppressWarnings("unchecked")
+        final Future<NetworkStatsHistory>[] futures = new Future[size * 2];
+        for (int i = 0; i < size * 2; i++) {
+            final int uid = app.uids.keyAt(i / 2);
+            final int set = (i % 2 == 0) ? SET_DEFAULT : SET_FOREGROUND;
+            futures[i] = sUidHistoryExecutor.submit(new Callable<NetworkStatsHistory>() {
+                @Override
+                public NetworkStatsHistory call() throws RemoteException {
+                    return collectHistoryForUid(template, uid, set, generation);
+                }
+            });
+        }
+
+        try {
+            for (int i = 0; i < size * 2; i++) {
+                final NetworkStatsHistory history = futures[i].get();
+                if (i % 2 == 0) {
+                    detailDefault[i / 2] = history;
+                } else {
+                    detailForeground[i / 2] = history;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("interrupted reading network stats", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RuntimeException("problem reading network stats", e.getCause());
+        } finally {
+            for (Future<NetworkStatsHistory> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Combine the given histories into a new {@link NetworkStatsHistory},
+     * or return the only one. The histories are recorded straight into the
+     * result, without copying them first.
+     */
+    private static NetworkStatsHistory mergeHistories(NetworkStatsHistory[] histories) {
+        if (histories.length == 1) {
+            return histories[0];
+        }
+        final NetworkStatsHistory merged = new NetworkStatsHistory(
+                histories[0].getBucketDuration(), histories[0].size(),
+                FIELD_RX_BYTES | FIELD_TX_BYTES);
+        for (NetworkStatsHistory history : histories) {
+            merged.recordEntireHistory(history);
         }
+        return merged;
     }
 }
@@ -16,15 +16,24 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
+import android.net.NetworkPolicyManager;
 import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.UserManager;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+/**
+ * Loader of the data usage of all UIDs over a cycle, collapsed into sorted
+ * app items off the main thread.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<AppUsageSummary> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
@@ -53,16 +62,24 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public AppUsageSummary loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        final NetworkStats stats;
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            stats = mSession.getSummaryForAllUid(template, start, end, false);
         } catch (RemoteException e) {
             return null;
         }
+
+        final Context context = getContext();
+        final int[] restrictedUids = NetworkPolicyManager.from(context).getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
+        return AppUsageSummary.aggregate(stats, restrictedUids,
+                ActivityManager.getCurrentUser(), um.getUserProfiles());
     }
 
     @Override
@@ -17,7 +17,10 @@
 package com.android.settings.net;
 
 import android.app.AppGlobals;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.content.pm.PackageInfo;
@@ -25,6 +28,8 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
@@ -33,19 +38,45 @@ import android.os.UserHandle;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.SparseArray;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
 
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
+ *
+ * Details are kept in a LRU cache bounded by the estimated size of their
+ * labels and icons, and can be prefetched on a small worker pool. The
+ * provider returned by {@link #getInstance(Context)} is shared by the
+ * screens listing UIDs, and drops the details of the UIDs whose packages
+ * are installed, removed or updated.
  */
 public class UidDetailProvider {
     private static final String TAG = "DataUsage";
+
+    private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final int PREFETCH_THREADS = 2;
+
+    private static UidDetailProvider sInstance;
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final LruCache<Integer, UidDetail> mUidDetailCache;
+    private final ThreadPoolExecutor mPrefetchExecutor = new ThreadPoolExecutor(
+            PREFETCH_THREADS, PREFETCH_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    // UIDs queued for prefetch, and the locale of the cached details.
+    // Synchronize on mUidDetailCache.
+    private final SparseBooleanArray mPrefetching = new SparseBooleanArray();
+    private Locale mLocale;
 
     public static final int OTHER_USER_RANGE_START = -2000;
 
@@ -61,17 +92,160 @@ public class UidDetailProvider {
         return OTHER_USER_RANGE_START - key;
     }
 
+    /**
+     * Return the provider shared by the screens of the process.
+     */
+    public static synchronized UidDetailProvider getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidDetailProvider(context);
+            sInstance.registerPackageReceiver();
+        }
+        return sInstance;
+    }
+
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+        mUidDetailCache = new LruCache<Integer, UidDetail>(MAX_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Integer uid, UidDetail detail) {
+                return estimateBytes(detail);
+            }
+        };
+        mPrefetchExecutor.allowCoreThreadTimeOut(true);
     }
 
     public void clearCache() {
         synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
+            mUidDetailCache.evictAll();
         }
     }
 
+    /**
+     * Drop the cached details of the given UIDs.
+     */
+    public void evict(int[] uids) {
+        synchronized (mUidDetailCache) {
+            for (int uid : uids) {
+                mUidDetailCache.remove(uid);
+            }
+        }
+    }
+
+    /**
+     * Keep the shared cache in sync with the packages and users, as it lives
+     * as long as the process.
+     */
+    private void registerPackageReceiver() {
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final String action = intent.getAction();
+                if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                        || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                    final int[] uids = intent.getIntArrayExtra(Intent.EXTRA_CHANGED_UID_LIST);
+                    if (uids != null) {
+                        evict(uids);
+                    }
+                } else if (Intent.ACTION_USER_INFO_CHANGED.equals(action)) {
+                    final int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE,
+                            UserHandle.USER_NULL);
+                    evict(new int[] { buildKeyForUser(userId) });
+                } else {
+                    final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                    if (uid != -1) {
+                        evict(new int[] { uid });
+                    }
+                }
+            }
+        };
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(receiver, packageFilter);
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        filter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        filter.addAction(Intent.ACTION_USER_INFO_CHANGED);
+        mContext.registerReceiver(receiver, filter);
+    }
+
+    /**
+     * Resolve the details of the given UIDs in the background, so that they
+     * are cached by the time they are needed.
+     */
+    public void prefetch(int[] uids) {
+        for (final int uid : uids) {
+            synchronized (mUidDetailCache) {
+                checkLocaleLocked();
+                if (mUidDetailCache.get(uid) != null || mPrefetching.get(uid)) {
+                    continue;
+                }
+                mPrefetching.put(uid, true);
+            }
+            mPrefetchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getUidDetail(uid, true);
+                    } finally {
+                        synchronized (mUidDetailCache) {
+                            mPrefetching.delete(uid);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop the cached labels when the locale changed since they were built.
+     */
+    private void checkLocaleLocked() {
+        final Locale locale = Locale.getDefault();
+        if (!locale.equals(mLocale)) {
+            mUidDetailCache.evictAll();
+            mLocale = locale;
+        }
+    }
+
+    /**
+     * Estimate the memory held by a {@link UidDetail}, mostly its icon.
+     */
+    private static int estimateBytes(UidDetail detail) {
+        int bytes = 64;
+        bytes += estimateBytes(detail.label) + estimateBytes(detail.contentDescription);
+        if (detail.detailLabels != null) {
+            for (CharSequence label : detail.detailLabels) {
+                bytes += estimateBytes(label);
+            }
+        }
+        if (detail.detailContentDescriptions != null) {
+            for (CharSequence description : detail.detailContentDescriptions) {
+                bytes += estimateBytes(description);
+            }
+        }
+        final Drawable icon = detail.icon;
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                bytes += bitmap.getByteCount();
+            }
+        } else if (icon != null) {
+            bytes += Math.max(0, icon.getIntrinsicWidth())
+                    * Math.max(0, icon.getIntrinsicHeight()) * 4;
+        }
+        return bytes;
+    }
+
+    private static int estimateBytes(CharSequence text) {
+        return text != null ? 2 * text.length() : 0;
+    }
+
     /**
      * Resolve best descriptive label for the given UID.
      */
@@ -79,6 +253,7 @@ public class UidDetailProvider {
         UidDetail detail;
 
         synchronized (mUidDetailCache) {
+            checkLocaleLocked();
             detail = mUidDetailCache.get(uid);
         }
 
@@ -231,6 +231,9 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     }
 
     private void handlePackageAvailable(String packageName) {
+        // Providers of the package are only re-indexed if their fingerprint changed
+        Index.getInstance(mContext).updateFromPackage(packageName);
+
         if (!mAccessibilityServices.contains(packageName)) {
             final Intent intent = getAccessibilityServiceIntent(packageName);
             if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
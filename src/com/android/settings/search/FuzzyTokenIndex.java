@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * A BK-tree of tokens for finding the tokens within a bounded edit distance of a query token,
+ * so that typos like "bluetoth" or "wfi" still find "bluetooth" and "wifi".
+ *
+ * The edit distance is the Levenshtein distance. Each token is identified by an id given when
+ * adding it.
+ */
+final class FuzzyTokenIndex {
+
+    // Query tokens shorter than this are not matched fuzzily
+    private static final int MIN_FUZZY_LENGTH = 3;
+    // Query tokens up to this length are allowed one edit, longer ones two edits
+    private static final int MAX_ONE_EDIT_LENGTH = 5;
+
+    private Node mRoot;
+    private int mSize;
+
+    private static final class Node {
+        final String token;
+        final int id;
+        // Children indexed by their distance to this node
+        Node[] children;
+
+        Node(String token, int id) {
+            this.token = token;
+            this.id = id;
+        }
+    }
+
+    public void add(String token, int id) {
+        final Node node = new Node(token, id);
+        mSize++;
+        if (mRoot == null) {
+            mRoot = node;
+            return;
+        }
+        Node current = mRoot;
+        while (true) {
+            final int distance = distance(current.token, token, Integer.MAX_VALUE);
+            if (distance == 0) {
+                mSize--;
+                return;
+            }
+            if (current.children == null || current.children.length <= distance) {
+                final Node[] children = new Node[distance + 1];
+                if (current.children != null) {
+                    System.arraycopy(current.children, 0, children, 0, current.children.length);
+                }
+                current.children = children;
+            }
+            final Node child = current.children[distance];
+            if (child == null) {
+                current.children[distance] = node;
+                return;
+            }
+            current = child;
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the max edit distance allowed for a query token, 0 meaning no fuzzy matching.
+     */
+    public static int getMaxDistance(String queryToken) {
+        final int length = queryToken.length();
+        if (length < MIN_FUZZY_LENGTH) {
+            return 0;
+        }
+        return (length <= MAX_ONE_EDIT_LENGTH) ? 1 : 2;
+    }
+
+    /**
+     * Find the tokens within the max edit distance of the query token.
+     *
+     * @param queryToken the query token.
+     * @param maxDistance the max edit distance.
+     * @param result the ids of the matching tokens are set into it.
+     */
+    public void lookup(String queryToken, int maxDistance, BitSet result) {
+        if (mRoot == null || maxDistance <= 0) {
+            return;
+        }
+        final ArrayList<Node> pending = new ArrayList<Node>();
+        pending.add(mRoot);
+        while (!pending.isEmpty()) {
+            final Node node = pending.remove(pending.size() - 1);
+            // The distance is only exact up to the highest child distance that can match
+            final int bound = maxDistance + ((node.children != null) ? node.children.length : 0);
+            final int distance = distance(node.token, queryToken, bound);
+            if (distance <= maxDistance) {
+                result.set(node.id);
+            }
+            if (node.children == null) {
+                continue;
+            }
+            final int from = Math.max(1, distance - maxDistance);
+            final int to = Math.min(node.children.length - 1, distance + maxDistance);
+            for (int d = from; d <= to; d++) {
+                if (node.children[d] != null) {
+                    pending.add(node.children[d]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the Levenshtein distance of the two strings, or any value greater than the bound
+     * if the distance is greater than the bound.
+     */
+    static int distance(String a, String b, int bound) {
+        final int lengthA = a.length();
+        final int lengthB = b.length();
+        if (Math.abs(lengthA - lengthB) > bound) {
+            return bound + 1;
+        }
+        int[] previous = new int[lengthB + 1];
+        int[] current = new int[lengthB + 1];
+        for (int j = 0; j <= lengthB; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= lengthA; i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            final char c = a.charAt(i - 1);
+            for (int j = 1; j <= lengthB; j++) {
+                final int cost = (c == b.charAt(j - 1)) ? 0 : 1;
+                int value = previous[j - 1] + cost;
+                if (previous[j] + 1 < value) {
+                    value = previous[j] + 1;
+                }
+                if (current[j - 1] + 1 < value) {
+                    value = current[j - 1] + 1;
+                }
+                current[j] = value;
+                if (value < rowMin) {
+                    rowMin = value;
+                }
+            }
+            if (rowMin > bound) {
+                return bound + 1;
+            }
+            final int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[lengthB];
+    }
+}
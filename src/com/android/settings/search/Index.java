@@ -28,10 +28,12 @@ import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -45,18 +47,30 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Field;
-import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_RAW_RANK;
@@ -104,12 +118,14 @@ public class Index {
     public static final int COLUMN_INDEX_INTENT_ACTION_TARGET_CLASS = 11;
     public static final int COLUMN_INDEX_ENABLED = 12;
     public static final int COLUMN_INDEX_KEY = 13;
-    public static final int COLUMN_INDEX_USER_ID = 14;
+    public static final int COLUMN_INDEX_TITLE_NORMALIZED = 14;
+    public static final int COLUMN_INDEX_SUMMARY_ON_NORMALIZED = 15;
+    public static final int COLUMN_INDEX_SUMMARY_OFF_NORMALIZED = 16;
 
     public static final String ENTRIES_SEPARATOR = "|";
 
     // If you change the order of columns here, you SHOULD change the COLUMN_INDEX_XXX values
-    private static final String[] SELECT_COLUMNS = new String[] {
+    static final String[] SELECT_COLUMNS = new String[] {
             IndexColumns.DATA_RANK,               // 0
             IndexColumns.DATA_TITLE,              // 1
             IndexColumns.DATA_SUMMARY_ON,         // 2
@@ -123,7 +139,10 @@ public class Index {
             IndexColumns.INTENT_TARGET_PACKAGE,   // 10
             IndexColumns.INTENT_TARGET_CLASS,     // 11
             IndexColumns.ENABLED,                 // 12
-            IndexColumns.DATA_KEY_REF             // 13
+            IndexColumns.DATA_KEY_REF,                  // 13
+            IndexColumns.DATA_TITLE_NORMALIZED,         // 14
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,    // 15
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED    // 16
     };
 
     private static final String[] MATCH_COLUMNS_PRIMARY = {
@@ -144,12 +163,22 @@ public class Index {
     private static long MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
+    // Max number of queries whose results are cached
+    private static final int MAX_CACHED_QUERIES = 32;
+    // Below this number of exact search results, the fuzzy matches are added
+    private static final int MIN_EXACT_SEARCH_RESULTS = 3;
+    // The update transaction is committed once at least this number of rows have been written
+    private static final int MIN_ROWS_PER_COMMIT = 512;
 
     private static final String BASE_AUTHORITY = "com.android.settings";
 
-    private static final String EMPTY = "";
-    private static final String NON_BREAKING_HYPHEN = "\u2011";
-    private static final String HYPHEN = "-";
+    // Max number of SearchIndexablesProvider(s) queried at the same time
+    private static final int MAX_REMOTE_PROVIDER_THREADS = 4;
+    private static final long REMOTE_PROVIDER_THREAD_KEEP_ALIVE_SECONDS = 10;
+    // The SearchIndexablesProvider(s) not answering within this time of being queried are skipped
+    private static final long REMOTE_PROVIDER_TIMEOUT_MILLIS = 5000;
+    // A SearchIndexablesProvider answering slower than this is logged
+    private static final long SLOW_REMOTE_PROVIDER_MILLIS = 500;
 
     private static final String FIELD_NAME_SEARCH_INDEX_DATA_PROVIDER =
             "SEARCH_INDEX_DATA_PROVIDER";
@@ -162,8 +191,11 @@ public class Index {
 
     private static Index sInstance;
 
-    private static final Pattern REMOVE_DIACRITICALS_PATTERN
-            = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static ExecutorService sRemoteProvidersExecutor;
+
+    // Authorities of the SearchIndexablesProvider(s) whose query has not returned yet.
+    // Synchronize on it.
+    private static final Set<String> sRemoteProvidersInFlight = new HashSet<String>();
 
     /**
      * A private class to describe the update data for the Index database
@@ -200,7 +232,39 @@ public class Index {
         }
     }
 
+    /**
+     * A private class to describe the data collected from one SearchIndexablesProvider
+     */
+    private static class RemoteIndexables {
+        public final String packageName;
+        public final String authority;
+        public List<SearchIndexableData> data;
+        public List<String> nonIndexableKeys;
+        public long latency;
+
+        public RemoteIndexables(String packageName, String authority) {
+            this.packageName = packageName;
+            this.authority = authority;
+        }
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
+    // Incremented each time the content of the Index database changes
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+    private final AtomicBoolean mIsLoadingPrefixIndex = new AtomicBoolean(false);
+    private volatile SearchPrefixIndex mPrefixIndex;
+    // Incremented each time a search query is saved
+    private final AtomicInteger mSavedQueriesGeneration = new AtomicInteger(0);
+    private final SearchResultsCache mSearchResultsCache =
+            new SearchResultsCache(MAX_CACHED_QUERIES);
+    private final SearchResultsCache mSuggestionsCache =
+            new SearchResultsCache(MAX_CACHED_QUERIES);
+    private volatile SearchScorer mSearchScorer = new RelevanceScorer();
+    private final SearchMetrics mMetrics = new SearchMetrics();
+    // Saved queries used for scoring, reloaded when the saved queries generation changes
+    private String[][] mSavedQueries;
+    private long[] mSavedTimeStamps;
+    private int mSavedQueriesLoadedGeneration;
     private final UpdateData mDataToProcess = new UpdateData();
     private Context mContext;
     private final String mBaseAuthority;
@@ -230,7 +294,168 @@ public class Index {
         return mIsAvailable.get();
     }
 
+    /**
+     * Search the Index. The results of the recent queries are cached.
+     *
+     * @param query the query.
+     * @return a Cursor on the results, or null if a newer search superseded this one before it
+     * completed.
+     */
     public Cursor search(String query) {
+        final long start = SearchMetrics.start();
+        final String localeStr = Locale.getDefault().toString();
+        final int generation = mGeneration.get();
+        final long request = mSearchResultsCache.newRequest();
+
+        final Cursor cached = mSearchResultsCache.get(localeStr, query, generation);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Use the in memory prefix index if it is up to date, otherwise query the database
+        final Cursor cursor;
+        final SearchPrefixIndex prefixIndex = mPrefixIndex;
+        if (prefixIndex != null && prefixIndex.isValidFor(localeStr, generation)) {
+            cursor = prefixIndex.search(query);
+            mMetrics.increment(SearchMetrics.COUNTER_PREFIX_INDEX_SEARCHES, 1);
+        } else {
+            loadPrefixIndex(localeStr);
+            cursor = searchDatabase(query, request);
+            if (cursor == null) {
+                return null;
+            }
+            mMetrics.increment(SearchMetrics.COUNTER_DATABASE_SEARCHES, 1);
+        }
+        Cursor results = rankResults(query, cursor);
+
+        // Tolerate typos when the exact search finds too few rows. The fuzzy matches are ranked
+        // separately so that they always come after the exact ones
+        if (prefixIndex != null && prefixIndex.isValidFor(localeStr, generation) &&
+                results.getCount() < MIN_EXACT_SEARCH_RESULTS) {
+            final Cursor fuzzy = prefixIndex.searchFuzzy(query);
+            mMetrics.increment(SearchMetrics.COUNTER_FUZZY_SEARCHES, 1);
+            if (fuzzy.getCount() > 0) {
+                results = new MergeCursor(new Cursor[] { results, rankResults(query, fuzzy) });
+            } else {
+                fuzzy.close();
+            }
+        }
+        results = mSearchResultsCache.put(localeStr, query, generation, results);
+        mMetrics.record(SearchMetrics.STAGE_QUERY, start);
+        return results;
+    }
+
+    /**
+     * Set the scorer used for ordering the search results.
+     *
+     * @param scorer the scorer, or null for keeping the order of the static ranks.
+     */
+    public void setSearchScorer(SearchScorer scorer) {
+        mSearchScorer = scorer;
+        mSearchResultsCache.invalidate();
+    }
+
+    /**
+     * Order the results by decreasing score. The rows are scored in a single pass; rows with
+     * the same score keep their order.
+     */
+    private Cursor rankResults(String query, Cursor cursor) {
+        final SearchScorer scorer = mSearchScorer;
+        if (scorer == null) {
+            return cursor;
+        }
+
+        final SearchScorer.Query scorerQuery = getScorerQuery(query);
+        final SearchScorer.Candidate candidate = new SearchScorer.Candidate();
+        final String[] columnNames = cursor.getColumnNames();
+        final int columnCount = columnNames.length;
+
+        final List<Object[]> rows = new ArrayList<Object[]>(cursor.getCount());
+        final List<Float> scores = new ArrayList<Float>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                final Object[] row = new Object[columnCount];
+                for (int n = 0; n < columnCount; n++) {
+                    row[n] = cursor.getString(n);
+                }
+                candidate.rank = cursor.getInt(COLUMN_INDEX_RANK);
+                candidate.title = cursor.getString(COLUMN_INDEX_TITLE);
+                candidate.keywords = cursor.getString(COLUMN_INDEX_KEYWORDS);
+                candidate.summaryOn = cursor.getString(COLUMN_INDEX_SUMMARY_ON);
+                candidate.summaryOff = cursor.getString(COLUMN_INDEX_SUMMARY_OFF);
+                candidate.entries = cursor.getString(COLUMN_INDEX_ENTRIES);
+                candidate.normalizedTitle = cursor.getString(COLUMN_INDEX_TITLE_NORMALIZED);
+                candidate.normalizedSummaryOn =
+                        cursor.getString(COLUMN_INDEX_SUMMARY_ON_NORMALIZED);
+                candidate.normalizedSummaryOff =
+                        cursor.getString(COLUMN_INDEX_SUMMARY_OFF_NORMALIZED);
+
+                rows.add(row);
+                scores.add(scorer.score(scorerQuery, candidate));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final int count = rows.size();
+        final Integer[] order = new Integer[count];
+        for (int n = 0; n < count; n++) {
+            order[n] = n;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final int result = Float.compare(scores.get(rhs), scores.get(lhs));
+                return (result != 0) ? result : lhs - rhs;
+            }
+        });
+
+        final MatrixCursor result = new MatrixCursor(columnNames, count);
+        for (int n = 0; n < count; n++) {
+            result.addRow(rows.get(order[n]));
+        }
+        return result;
+    }
+
+    private SearchScorer.Query getScorerQuery(String query) {
+        final int generation = mSavedQueriesGeneration.get();
+        if (mSavedQueries == null || mSavedQueriesLoadedGeneration != generation) {
+            final List<String[]> queries = new ArrayList<String[]>();
+            final List<Long> timeStamps = new ArrayList<Long>();
+            Cursor cursor = null;
+            try {
+                cursor = getReadableDatabase().query(Tables.TABLE_SAVED_QUERIES,
+                        new String[] { IndexDatabaseHelper.SavedQueriesColums.QUERY,
+                                IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP },
+                        null, null, null, null, "rowId DESC");
+                while (cursor.moveToNext()) {
+                    queries.add(SearchPrefixIndex.tokenize(cursor.getString(0)));
+                    timeStamps.add(cursor.getLong(1));
+                }
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "Cannot read saved Search queries", e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            final long[] savedTimeStamps = new long[timeStamps.size()];
+            for (int n = 0; n < savedTimeStamps.length; n++) {
+                savedTimeStamps[n] = timeStamps.get(n);
+            }
+            mSavedQueries = queries.toArray(new String[queries.size()][]);
+            mSavedTimeStamps = savedTimeStamps;
+            mSavedQueriesLoadedGeneration = generation;
+        }
+        return new SearchScorer.Query(query, mSavedQueries, mSavedTimeStamps,
+                System.currentTimeMillis());
+    }
+
+    private Cursor searchDatabase(String query, long request) {
+        if (mSearchResultsCache.isSuperseded(request)) {
+            return null;
+        }
+
         final SQLiteDatabase database = getReadableDatabase();
         final Cursor[] cursors = new Cursor[2];
 
@@ -238,6 +463,11 @@ public class Index {
         Log.d(LOG_TAG, "Search primary query: " + primarySql);
         cursors[0] = database.rawQuery(primarySql, null);
 
+        if (mSearchResultsCache.isSuperseded(request)) {
+            cursors[0].close();
+            return null;
+        }
+
         // We need to use an EXCEPT operator as negate MATCH queries do not work.
         StringBuilder sql = new StringBuilder(
                 buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
@@ -251,10 +481,108 @@ public class Index {
         return new MergeCursor(cursors);
     }
 
+    private void loadPrefixIndex(final String localeStr) {
+        if (!isAvailable() || !mIsLoadingPrefixIndex.compareAndSet(false, true)) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final int generation = mGeneration.get();
+                    final SearchPrefixIndex prefixIndex =
+                            SearchPrefixIndex.load(getReadableDatabase(), localeStr, generation);
+                    if (generation == mGeneration.get()) {
+                        mPrefixIndex = prefixIndex;
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Cannot load the search prefix index", e);
+                } finally {
+                    mIsLoadingPrefixIndex.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the saved queries matching a query. The results of the recent queries are cached.
+     *
+     * @param query the query.
+     * @return a Cursor on the suggestions, or null if a newer call superseded this one before it
+     * reached the database.
+     */
     public Cursor getSuggestions(String query) {
+        final String localeStr = Locale.getDefault().toString();
+        final int generation = mSavedQueriesGeneration.get();
+        final long request = mSuggestionsCache.newRequest();
+
+        final Cursor cached = mSuggestionsCache.get(localeStr, query, generation);
+        if (cached != null) {
+            return cached;
+        }
+        if (mSuggestionsCache.isSuperseded(request)) {
+            return null;
+        }
+
         final String sql = buildSuggestionsSQL(query);
         Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+        final Cursor cursor = getReadableDatabase().rawQuery(sql, null);
+        return mSuggestionsCache.put(localeStr, query, generation, cursor);
+    }
+
+    /**
+     * Supersede the searches and suggestions in flight, so that they return before reaching the
+     * database. Typically called when the query changes.
+     */
+    public void cancelPendingQueries() {
+        mSearchResultsCache.newRequest();
+        mSuggestionsCache.newRequest();
+    }
+
+    /**
+     * @return the number of searches and suggestions answered from the cache.
+     */
+    public int getCacheHitCount() {
+        return mSearchResultsCache.getHitCount() + mSuggestionsCache.getHitCount();
+    }
+
+    /**
+     * @return the number of searches and suggestions not found in the cache.
+     */
+    public int getCacheMissCount() {
+        return mSearchResultsCache.getMissCount() + mSuggestionsCache.getMissCount();
+    }
+
+    /**
+     * @return the number of searches and suggestions superseded by a newer one while in flight.
+     */
+    public int getCancelCount() {
+        return mSearchResultsCache.getCancelCount() + mSuggestionsCache.getCancelCount();
+    }
+
+    /**
+     * @return the counters and latency histograms of the indexing and search stages.
+     */
+    public SearchMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Reset the metrics along with the cache counters.
+     */
+    public void resetMetrics() {
+        mMetrics.reset();
+        mSearchResultsCache.resetCounts();
+        mSuggestionsCache.resetCounts();
+    }
+
+    public void dump(PrintWriter writer) {
+        mMetrics.dump(writer);
+        writer.println("  Cache: hits=" + getCacheHitCount() + " misses=" + getCacheMissCount() +
+                " cancels=" + getCancelCount());
+        final SearchPrefixIndex prefixIndex = mPrefixIndex;
+        writer.println("  Prefix index: " + ((prefixIndex != null) ? "loaded" : "not loaded") +
+                ", generation " + mGeneration.get());
     }
 
     private String buildSuggestionsSQL(String query) {
@@ -299,9 +627,46 @@ public class Index {
 
     public void update() {
         final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
+        addIndexablesFromRemoteProviders(intent);
+        updateInternal();
+    }
+
+    /**
+     * Update the Index for the SearchIndexablesProvider(s) of a package that has been installed,
+     * upgraded or enabled. Only the providers whose fingerprint changed are indexed again.
+     *
+     * The providers are queried in the background, so this can be called from the main thread.
+     *
+     * @param packageName the package name.
+     */
+    public void updateFromPackage(String packageName) {
+        new UpdateFromPackageTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                packageName);
+    }
+
+    /**
+     * Query the well known SearchIndexablesProvider(s) resolved for the intent.
+     *
+     * The providers are queried in parallel on a bounded pool of threads, and the ones not
+     * answering within a common timeout are skipped, so that a slow provider cannot stall the
+     * whole update. A provider whose previous query is still stuck is not queried again, so
+     * that it holds at most one thread.
+     * The results are then merged in the order of the providers list.
+     *
+     * @return the number of providers whose data has been added.
+     */
+    private int addIndexablesFromRemoteProviders(Intent intent) {
         List<ResolveInfo> list =
                 mContext.getPackageManager().queryIntentContentProviders(intent, 0);
 
+        final ExecutorService executor = getRemoteProvidersExecutor();
+        final List<Future<RemoteIndexables>> futures = new ArrayList<Future<RemoteIndexables>>();
+        final List<String> authorities = new ArrayList<String>();
+
+        // A single deadline for all the providers, which are queried in parallel
+        final long start = SystemClock.elapsedRealtime();
+        final long deadline = start + REMOTE_PROVIDER_TIMEOUT_MILLIS;
+
         final int size = list.size();
         for (int n = 0; n < size; n++) {
             final ResolveInfo info = list.get(n);
@@ -311,14 +676,122 @@ public class Index {
             final String authority = info.providerInfo.authority;
             final String packageName = info.providerInfo.packageName;
 
-            addIndexablesFromRemoteProvider(packageName, authority);
-            addNonIndexablesKeysFromRemoteProvider(packageName, authority);
+            synchronized (sRemoteProvidersInFlight) {
+                if (!sRemoteProvidersInFlight.add(authority)) {
+                    Log.w(LOG_TAG, "Skipping SearchIndexablesProvider '" + authority +
+                            "' still answering a previous query");
+                    continue;
+                }
+            }
+            // The provider is released by the query, or when the query is cancelled before
+            // having started, whichever comes first.
+            final AtomicBoolean started = new AtomicBoolean();
+            final FutureTask<RemoteIndexables> task = new FutureTask<RemoteIndexables>(
+                    new Callable<RemoteIndexables>() {
+                @Override
+                public RemoteIndexables call() {
+                    if (!started.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    try {
+                        return queryRemoteProvider(packageName, authority);
+                    } finally {
+                        releaseRemoteProvider(authority);
+                    }
+                }
+            }) {
+                @Override
+                protected void done() {
+                    if (isCancelled() && started.compareAndSet(false, true)) {
+                        releaseRemoteProvider(authority);
+                    }
+                }
+            };
+            executor.execute(task);
+            futures.add(task);
+            authorities.add(authority);
+        }
+
+        int count = 0;
+        final int futuresCount = futures.size();
+        for (int n = 0; n < futuresCount; n++) {
+            final Future<RemoteIndexables> future = futures.get(n);
+            final String authority = authorities.get(n);
+            final RemoteIndexables indexables;
+            try {
+                final long remaining = Math.max(0, deadline - SystemClock.elapsedRealtime());
+                indexables = future.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                mMetrics.increment(SearchMetrics.COUNTER_REMOTE_PROVIDER_TIMEOUTS, 1);
+                Log.w(LOG_TAG, "Skipping SearchIndexablesProvider '" + authority +
+                        "' not answering after " + (SystemClock.elapsedRealtime() - start) +
+                        " millis");
+                continue;
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Interrupted while querying SearchIndexablesProvider '" +
+                        authority + "'", e);
+                for (int i = n; i < futuresCount; i++) {
+                    futures.get(i).cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Cannot query SearchIndexablesProvider '" + authority + "'",
+                        e.getCause());
+                continue;
+            }
+
+            if (indexables.latency >= SLOW_REMOTE_PROVIDER_MILLIS) {
+                Log.w(LOG_TAG, "SearchIndexablesProvider '" + indexables.authority +
+                        "' took " + indexables.latency + " millis");
+            }
+            if (indexables.data != null) {
+                addIndexableData(indexables.data);
+            }
+            addNonIndexableKeys(indexables.packageName, indexables.nonIndexableKeys);
+            count++;
         }
+        return count;
+    }
 
-        updateInternal();
+    private static synchronized ExecutorService getRemoteProvidersExecutor() {
+        if (sRemoteProvidersExecutor == null) {
+            // The queries waiting for a thread past the deadline are cancelled along with the
+            // stuck ones.
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    MAX_REMOTE_PROVIDER_THREADS, MAX_REMOTE_PROVIDER_THREADS,
+                    REMOTE_PROVIDER_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            sRemoteProvidersExecutor = executor;
+        }
+        return sRemoteProvidersExecutor;
+    }
+
+    private static void releaseRemoteProvider(String authority) {
+        synchronized (sRemoteProvidersInFlight) {
+            sRemoteProvidersInFlight.remove(authority);
+        }
+    }
+
+    private RemoteIndexables queryRemoteProvider(String packageName, String authority) {
+        final long start = SearchMetrics.start();
+
+        final RemoteIndexables result = new RemoteIndexables(packageName, authority);
+        final List<SearchIndexableData> data = new ArrayList<SearchIndexableData>();
+        if (addIndexablesFromRemoteProvider(packageName, authority, data)) {
+            result.data = data;
+        }
+        result.nonIndexableKeys = getNonIndexablesKeysFromRemoteProvider(packageName, authority);
+
+        result.latency = SystemClock.elapsedRealtime() - start;
+        mMetrics.record(SearchMetrics.STAGE_REMOTE_PROVIDER, start);
+        return result;
     }
 
-    private boolean addIndexablesFromRemoteProvider(String packageName, String authority) {
+    private boolean addIndexablesFromRemoteProvider(String packageName, String authority,
+            List<SearchIndexableData> result) {
         try {
             final int baseRank = Ranking.getBaseRankForAuthority(authority);
 
@@ -327,11 +800,11 @@ public class Index {
 
             final Uri uriForResources = buildUriForXmlResources(authority);
             addIndexablesForXmlResourceUri(context, packageName, uriForResources,
-                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank);
+                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank, result);
 
             final Uri uriForRawData = buildUriForRawData(authority);
             addIndexablesForRawDataUri(context, packageName, uriForRawData,
-                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank);
+                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank, result);
             return true;
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(LOG_TAG, "Could not create context for " + packageName + ": "
@@ -340,13 +813,6 @@ public class Index {
         }
     }
 
-    private void addNonIndexablesKeysFromRemoteProvider(String packageName,
-                                                        String authority) {
-        final List<String> keys =
-                getNonIndexablesKeysFromRemoteProvider(packageName, authority);
-        addNonIndexableKeys(packageName, keys);
-    }
-
     private List<String> getNonIndexablesKeysFromRemoteProvider(String packageName,
                                                                 String authority) {
         try {
@@ -394,6 +860,12 @@ public class Index {
         }
     }
 
+    private void addIndexableData(List<SearchIndexableData> list) {
+        synchronized (mDataToProcess) {
+            mDataToProcess.dataToUpdate.addAll(list);
+        }
+    }
+
     public void addIndexableData(SearchIndexableResource[] array) {
         synchronized (mDataToProcess) {
             final int count = array.length;
@@ -455,7 +927,9 @@ public class Index {
     }
 
     private void updateFromRemoteProvider(String packageName, String authority) {
-        if (addIndexablesFromRemoteProvider(packageName, authority)) {
+        final List<SearchIndexableData> data = new ArrayList<SearchIndexableData>();
+        if (addIndexablesFromRemoteProvider(packageName, authority, data)) {
+            addIndexableData(data);
             updateInternal();
         }
     }
@@ -495,6 +969,70 @@ public class Index {
         updateInternal();
     }
 
+    /**
+     * Index the static XML resources of {@link SearchIndexableResources} from the rows of the
+     * prebuilt index, the same way they are indexed at runtime through the Settings
+     * SearchIndexablesProvider.
+     *
+     * @param database the database to write to.
+     * @param localeStr the locale of the rows.
+     * @param rows the prebuilt rows, by name of the XML resource they come from.
+     * @return the number of rows written.
+     */
+    int indexPrebuiltResources(SQLiteDatabase database, String localeStr,
+            Map<String, List<String[]>> rows) {
+        final int baseRank = Ranking.getBaseRankForAuthority(mBaseAuthority);
+        final Map<String, List<String>> nonIndexableKeys = Collections.emptyMap();
+
+        final IndexFingerprints fingerprints = new IndexFingerprints(mContext, localeStr);
+        final IndexRowWriter writer = new IndexRowWriter(database);
+
+        for (SearchIndexableResource res : SearchIndexableResources.values()) {
+            if (res.xmlResId <= SearchIndexableResources.NO_DATA_RES_ID) {
+                continue;
+            }
+            final List<String[]> resourceRows =
+                    rows.get(mContext.getResources().getResourceEntryName(res.xmlResId));
+            if (resourceRows == null) {
+                // Left to the runtime indexing
+                continue;
+            }
+            final SearchIndexableResource sir = new SearchIndexableResource(mContext);
+            sir.rank = (res.rank > 0) ? baseRank + res.rank : baseRank;
+            sir.xmlResId = res.xmlResId;
+            sir.className = res.className;
+            sir.packageName = mContext.getPackageName();
+            sir.iconResId = res.iconResId;
+
+            final List<String> keys = getNonIndexableKeys(sir, nonIndexableKeys);
+            writer.setProviderKey(fingerprints.getProviderKey(sir));
+            for (String[] row : resourceRows) {
+                final String key = row[PrebuiltIndex.ROW_KEY];
+                if (keys.contains(key)) {
+                    continue;
+                }
+                updateOneRowWithFilteredData(writer, localeStr,
+                        row[PrebuiltIndex.ROW_TITLE],
+                        row[PrebuiltIndex.ROW_SUMMARY_ON],
+                        row[PrebuiltIndex.ROW_SUMMARY_OFF],
+                        row[PrebuiltIndex.ROW_ENTRIES],
+                        sir.className,
+                        row[PrebuiltIndex.ROW_SCREEN_TITLE],
+                        sir.iconResId,
+                        sir.rank,
+                        row[PrebuiltIndex.ROW_KEYWORDS],
+                        sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
+                        true, key, -1 /* default user id */);
+            }
+            fingerprints.setIndexed(sir, fingerprints.computeFingerprint(sir, keys));
+        }
+
+        final int count = writer.getRowCount();
+        writer.close();
+        fingerprints.save(database);
+        return count;
+    }
+
     private SQLiteDatabase getReadableDatabase() {
         return IndexDatabaseHelper.getInstance(mContext).getReadableDatabase();
     }
@@ -528,7 +1066,7 @@ public class Index {
     }
 
     private void addIndexablesForXmlResourceUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> result) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -566,7 +1104,7 @@ public class Index {
                     sir.intentTargetPackage = targetPackage;
                     sir.intentTargetClass = targetClass;
 
-                    addIndexableData(sir);
+                    result.add(sir);
                 }
             }
         } finally {
@@ -575,7 +1113,7 @@ public class Index {
     }
 
     private void addIndexablesForRawDataUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> result) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -629,7 +1167,7 @@ public class Index {
                     data.key = key;
                     data.userId = userId;
 
-                    addIndexableData(data);
+                    result.add(data);
                 }
             }
         } finally {
@@ -694,23 +1232,66 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
-            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
+    private void indexOneSearchIndexableData(IndexRowWriter writer, String localeStr,
+            SearchIndexableData data, List<String> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(writer, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            final long start = SearchMetrics.start();
+            final long insertTime = writer.getInsertTime();
+            indexOneRaw(writer, localeStr, (SearchIndexableRaw) data);
+            recordIndexing(SearchMetrics.STAGE_RAW_DATA, start, writer, insertTime);
+        }
+    }
+
+    /**
+     * Record the latency of an indexing stage, less the time its rows took to be inserted,
+     * which is recorded as part of {@link SearchMetrics#STAGE_DB_WRITE}.
+     */
+    private void recordIndexing(int stage, long start, IndexRowWriter writer, long insertTime) {
+        final long insertMillis = (writer.getInsertTime() - insertTime) / 1000000;
+        mMetrics.recordMillis(stage, SystemClock.elapsedRealtime() - start - insertMillis);
+    }
+
+    /**
+     * Gather the non indexable keys for the data. For a Local provider implementing a
+     * SEARCH_INDEX_DATA_PROVIDER field, the provider itself is asked for its keys.
+     */
+    private List<String> getNonIndexableKeys(SearchIndexableData data,
+            Map<String, List<String>> nonIndexableKeysFromResource) {
+        if (!(data instanceof SearchIndexableResource)) {
+            return EMPTY_LIST;
+        }
+        final SearchIndexableResource sir = (SearchIndexableResource) data;
+        final List<String> nonIndexableKeys = new ArrayList<String>();
+
+        if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
+            List<String> resNonIndxableKeys = nonIndexableKeysFromResource.get(sir.packageName);
+            if (resNonIndxableKeys != null && resNonIndxableKeys.size() > 0) {
+                nonIndexableKeys.addAll(resNonIndxableKeys);
+            }
+        } else if (!TextUtils.isEmpty(sir.className)) {
+            final Class<?> clazz = getIndexableClass(sir.className);
+            final Indexable.SearchIndexProvider provider =
+                    (clazz != null) ? getSearchIndexProvider(clazz) : null;
+            if (provider != null) {
+                List<String> providerNonIndexableKeys = provider.getNonIndexableKeys(sir.context);
+                if (providerNonIndexableKeys != null && providerNonIndexableKeys.size() > 0) {
+                    nonIndexableKeys.addAll(providerNonIndexableKeys);
+                }
+            }
         }
+        return nonIndexableKeys;
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(IndexRowWriter writer, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(writer, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -743,26 +1324,22 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
-            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
+    private void indexOneResource(IndexRowWriter writer, String localeStr,
+            SearchIndexableResource sir, List<String> nonIndexableKeys) {
 
         if (sir == null) {
             Log.e(LOG_TAG, "Cannot index a null resource!");
             return;
         }
 
-        final List<String> nonIndexableKeys = new ArrayList<String>();
-
         if (sir.xmlResId > SearchIndexableResources.NO_DATA_RES_ID) {
-            List<String> resNonIndxableKeys = nonIndexableKeysFromResource.get(sir.packageName);
-            if (resNonIndxableKeys != null && resNonIndxableKeys.size() > 0) {
-                nonIndexableKeys.addAll(resNonIndxableKeys);
-            }
-
-            indexFromResource(sir.context, database, localeStr,
+            final long start = SearchMetrics.start();
+            final long insertTime = writer.getInsertTime();
+            indexFromResource(sir.context, writer, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
+            recordIndexing(SearchMetrics.STAGE_XML_PARSE, start, writer, insertTime);
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
@@ -780,13 +1357,11 @@ public class Index {
             // SEARCH_INDEX_DATA_PROVIDER field
             final Indexable.SearchIndexProvider provider = getSearchIndexProvider(clazz);
             if (provider != null) {
-                List<String> providerNonIndexableKeys = provider.getNonIndexableKeys(sir.context);
-                if (providerNonIndexableKeys != null && providerNonIndexableKeys.size() > 0) {
-                    nonIndexableKeys.addAll(providerNonIndexableKeys);
-                }
-
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
+                final long start = SearchMetrics.start();
+                final long insertTime = writer.getInsertTime();
+                indexFromProvider(mContext, writer, localeStr, provider, sir.className,
                         sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+                recordIndexing(SearchMetrics.STAGE_RAW_DATA, start, writer, insertTime);
             }
         }
     }
@@ -811,7 +1386,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, IndexRowWriter writer, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -851,7 +1426,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(writer, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -883,7 +1458,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(writer, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -895,7 +1470,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(writer, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -911,7 +1486,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, IndexRowWriter writer, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -936,7 +1511,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(writer, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -972,7 +1547,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, writer, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -980,22 +1555,22 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(IndexRowWriter writer, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
             String intentAction, String intentTargetPackage, String intentTargetClass,
             boolean enabled, String key, int userId) {
 
-        final String updatedTitle = normalizeHyphen(title);
-        final String updatedSummaryOn = normalizeHyphen(summaryOn);
-        final String updatedSummaryOff = normalizeHyphen(summaryOff);
+        final String updatedTitle = writer.normalizeHyphen(title);
+        final String updatedSummaryOn = writer.normalizeHyphen(summaryOn);
+        final String updatedSummaryOff = writer.normalizeHyphen(summaryOff);
 
-        final String normalizedTitle = normalizeString(updatedTitle);
-        final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
-        final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
+        final String normalizedTitle = writer.normalizeString(updatedTitle);
+        final String normalizedSummaryOn = writer.normalizeString(updatedSummaryOn);
+        final String normalizedSummaryOff = writer.normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(writer, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1003,18 +1578,7 @@ public class Index {
                 key, userId);
     }
 
-    private static String normalizeHyphen(String input) {
-        return (input != null) ? input.replaceAll(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
-    }
-
-    private static String normalizeString(String input) {
-        final String nohyphen = (input != null) ? input.replaceAll(HYPHEN, EMPTY) : EMPTY;
-        final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
-
-        return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
-    }
-
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(IndexRowWriter writer, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1032,29 +1596,13 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        writer.insertRow(docId, locale, rank,
+                updatedTitle, normalizedTitle,
+                updatedSummaryOn, normalizedSummaryOn,
+                updatedSummaryOff, normalizedSummaryOff,
+                entries, keywords, className, screenTitle,
+                intentAction, intentTargetPackage, intentTargetClass,
+                iconResId, enabled, key, userId);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1150,6 +1698,9 @@ public class Index {
      */
     private class UpdateIndexTask extends AsyncTask<UpdateData, Integer, Void> {
 
+        // Time spent deleting and committing rows during the update, in nanoseconds
+        private long mWriteTime;
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
@@ -1173,18 +1724,29 @@ public class Index {
             final SQLiteDatabase database = getWritableDatabase();
             final String localeStr = Locale.getDefault().toString();
 
+            final long start = SearchMetrics.start();
+            boolean changed = false;
             try {
                 database.beginTransaction();
                 if (dataToDelete.size() > 0) {
-                    processDataToDelete(database, localeStr, dataToDelete);
+                    changed |= processDataToDelete(database, localeStr, dataToDelete);
                 }
                 if (dataToUpdate.size() > 0) {
-                    processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                    changed |= processDataToUpdate(database, localeStr, dataToUpdate,
+                            nonIndexableKeys, forceUpdate);
                 }
                 database.setTransactionSuccessful();
             } finally {
+                final long commitStart = SystemClock.elapsedRealtimeNanos();
                 database.endTransaction();
+                mWriteTime += SystemClock.elapsedRealtimeNanos() - commitStart;
+                // When no row was written or deleted, the cached results are still current
+                if (changed) {
+                    mGeneration.incrementAndGet();
+                    mPrefixIndex = null;
+                }
+                mMetrics.recordMillis(SearchMetrics.STAGE_DB_WRITE, mWriteTime / 1000000);
+                mMetrics.record(SearchMetrics.STAGE_UPDATE, start);
             }
 
             return null;
@@ -1194,28 +1756,76 @@ public class Index {
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
                 boolean forceUpdate) {
 
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
-
             boolean result = false;
             final long current = System.currentTimeMillis();
 
+            // Only the providers whose fingerprint changed need to be indexed again
+            final IndexFingerprints fingerprints = new IndexFingerprints(mContext, localeStr);
+            fingerprints.load(database);
+
+            int skipped = 0;
+            int reindexed = 0;
+            int deletedRowCount = 0;
+            int commits = 0;
+            int committedRowCount = 0;
+
+            // All rows go through one compiled statement, which outlives the batch commits
+            final IndexRowWriter writer = new IndexRowWriter(database);
+
             final int count = dataToUpdate.size();
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
                 try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
+                    final List<String> keys = getNonIndexableKeys(data, nonIndexableKeys);
+                    final String fingerprint = fingerprints.computeFingerprint(data, keys);
+                    if (!forceUpdate && fingerprints.isUnchanged(data, fingerprint)) {
+                        skipped++;
+                        continue;
+                    }
+                    // Drop the rows of the previous indexing, as some of them may be gone
+                    final String providerKey = fingerprints.getProviderKey(data);
+                    if (fingerprints.isIndexed(data)) {
+                        final long deleteStart = SystemClock.elapsedRealtimeNanos();
+                        deletedRowCount += deleteProviderRows(database, localeStr, providerKey);
+                        mWriteTime += SystemClock.elapsedRealtimeNanos() - deleteStart;
+                    }
+                    writer.setProviderKey(providerKey);
+                    indexOneSearchIndexableData(writer, localeStr, data, keys);
+                    fingerprints.setIndexed(data, fingerprint);
+                    reindexed++;
                 } catch (Exception e) {
                     Log.e(LOG_TAG,
                             "Cannot index: " + data.className + " for locale: " + localeStr, e);
                 }
+
+                // Commit between providers, so that the journal and the locks of a full
+                // reindex stay bounded. The fingerprints are saved along with their rows.
+                if (writer.getRowCount() - committedRowCount >= MIN_ROWS_PER_COMMIT) {
+                    final long commitStart = SystemClock.elapsedRealtimeNanos();
+                    fingerprints.save(database);
+                    database.setTransactionSuccessful();
+                    database.endTransaction();
+                    database.beginTransaction();
+                    mWriteTime += SystemClock.elapsedRealtimeNanos() - commitStart;
+                    committedRowCount = writer.getRowCount();
+                    commits++;
+                }
             }
 
+            writer.close();
+            final long saveStart = SystemClock.elapsedRealtimeNanos();
+            fingerprints.save(database);
+            mWriteTime += writer.getInsertTime() + SystemClock.elapsedRealtimeNanos() - saveStart;
+
+            mMetrics.increment(SearchMetrics.COUNTER_PROVIDERS_REINDEXED, reindexed);
+            mMetrics.increment(SearchMetrics.COUNTER_PROVIDERS_SKIPPED, skipped);
+            mMetrics.increment(SearchMetrics.COUNTER_ROWS_WRITTEN, writer.getRowCount());
+
             final long now = System.currentTimeMillis();
             Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+                    (now - current) + " millis (" + reindexed + " provider(s) reindexed, " +
+                    skipped + " skipped, " + (commits + 1) + " commit(s))");
+            result = (writer.getRowCount() > 0 || deletedRowCount > 0);
             return result;
         }
 
@@ -1232,48 +1842,87 @@ public class Index {
                     continue;
                 }
                 if (!TextUtils.isEmpty(data.className)) {
-                    delete(database, IndexColumns.CLASS_NAME, data.className);
+                    result |= delete(database, IndexColumns.CLASS_NAME, data.className) > 0;
                 } else  {
                     if (data instanceof SearchIndexableRaw) {
                         final SearchIndexableRaw raw = (SearchIndexableRaw) data;
                         if (!TextUtils.isEmpty(raw.title)) {
-                            delete(database, IndexColumns.DATA_TITLE, raw.title);
+                            result |= delete(database, IndexColumns.DATA_TITLE, raw.title) > 0;
                         }
                     }
                 }
             }
 
             final long now = System.currentTimeMillis();
+            mWriteTime += (now - current) * 1000000;
             Log.d(LOG_TAG, "Deleting data for locale '" + localeStr + "' took " +
                     (now - current) + " millis");
             return result;
         }
 
+        private int deleteProviderRows(SQLiteDatabase database, String localeStr,
+                String providerKey) {
+            final String whereClause = IndexColumns.PROVIDER_KEY + " = ? AND " +
+                    IndexColumns.LOCALE + " = ?";
+            final String[] whereArgs = new String[] { providerKey, localeStr };
+
+            return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+        }
+
         private int delete(SQLiteDatabase database, String columName, String value) {
             final String whereClause = columName + "=?";
             final String[] whereArgs = new String[] { value };
 
+            deleteFingerprints(database, whereClause, whereArgs);
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
 
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
+        /**
+         * Delete the fingerprints of the providers of the rows about to be deleted, otherwise
+         * they would be skipped as unchanged when they are indexed again.
+         */
+        private void deleteFingerprints(SQLiteDatabase database, String whereClause,
+                String[] whereArgs) {
+            final List<String[]> providers = new ArrayList<String[]>();
             Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
             try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
+                cursor = database.query(true, Tables.TABLE_PREFS_INDEX,
+                        new String[] { IndexColumns.PROVIDER_KEY, IndexColumns.LOCALE },
+                        whereClause, whereArgs, null, null, null, null);
+                while (cursor.moveToNext()) {
+                    if (!cursor.isNull(0)) {
+                        providers.add(new String[] { cursor.getString(0), cursor.getString(1) });
+                    }
+                }
             } finally {
                 if (cursor != null) {
                     cursor.close();
                 }
             }
-            return result;
+            for (String[] provider : providers) {
+                IndexFingerprints.delete(database, provider[0], provider[1]);
+            }
+        }
+    }
+
+    /**
+     * A private class for querying the SearchIndexablesProvider(s) of a package off the main
+     * thread, before updating the Index database
+     */
+    private class UpdateFromPackageTask extends AsyncTask<String, Void, Integer> {
+
+        @Override
+        protected Integer doInBackground(String... params) {
+            final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
+            intent.setPackage(params[0]);
+            return addIndexablesFromRemoteProviders(intent);
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            if (count > 0) {
+                updateInternal();
+            }
         }
     }
 
@@ -1312,6 +1961,10 @@ public class Index {
                 }
             } catch (Exception e) {
                 Log.d(LOG_TAG, "Cannot update saved Search queries", e);
+            } finally {
+                mSavedQueriesGeneration.incrementAndGet();
+                // The saved queries are used for scoring the search results
+                mSearchResultsCache.invalidate();
             }
 
             return lastInsertedRowId;
@@ -28,12 +28,13 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 116;
+    static final int DATABASE_VERSION = 118;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_FINGERPRINTS = "fingerprints";
     }
 
     public interface IndexColumns {
@@ -57,6 +58,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String ENABLED = "enabled";
         public static final String DATA_KEY_REF = "data_key_reference";
         public static final String USER_ID = "user_id";
+        public static final String PROVIDER_KEY = "provider_key";
     }
 
     public interface MetaColumns {
@@ -68,6 +70,12 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String TIME_STAMP = "timestamp";
     }
 
+    public interface FingerprintsColumns {
+        public static final String PROVIDER = "provider";
+        public static final String LOCALE = "locale";
+        public static final String FINGERPRINT = "fingerprint";
+    }
+
     private static final String CREATE_INDEX_TABLE =
             "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
                     "(" +
@@ -108,6 +116,8 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     IndexColumns.DATA_KEY_REF +
                     ", " +
                     IndexColumns.USER_ID +
+                    ", " +
+                    IndexColumns.PROVIDER_KEY +
                     ");";
 
     private static final String CREATE_META_TABLE =
@@ -124,6 +134,19 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    private static final String CREATE_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_FINGERPRINTS +
+                    "(" +
+                    FingerprintsColumns.PROVIDER + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintsColumns.LOCALE + " TEXT NOT NULL" +
+                    ", " +
+                    FingerprintsColumns.FINGERPRINT + " TEXT NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + FingerprintsColumns.PROVIDER + ", " +
+                    FingerprintsColumns.LOCALE + ")" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
@@ -140,8 +163,11 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         return sSingleton;
     }
 
+    private final Context mContext;
+
     public IndexDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
     }
 
     @Override
@@ -150,11 +176,19 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void bootstrapDB(SQLiteDatabase db) {
+        createTables(db);
+        Log.i(TAG, "Bootstrapped database");
+
+        // Only the dynamic data will then need to be indexed at runtime
+        PrebuiltIndex.load(mContext, db);
+    }
+
+    static void createTables(SQLiteDatabase db) {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_FINGERPRINTS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
-        Log.i(TAG, "Bootstrapped database");
     }
 
     @Override
@@ -195,7 +229,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         bootstrapDB(db);
     }
 
-    private String getBuildVersion(SQLiteDatabase db) {
+    static String getBuildVersion(SQLiteDatabase db) {
         String version = null;
         Cursor cursor = null;
         try {
@@ -219,5 +253,6 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_FINGERPRINTS);
     }
 }
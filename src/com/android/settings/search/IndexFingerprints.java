@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.provider.SearchIndexableData;
+import android.provider.SearchIndexableResource;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.android.settings.search.IndexDatabaseHelper.FingerprintsColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Per provider fingerprints of the indexed data for one locale.
+ *
+ * A fingerprint is computed from the XML resource id, the versionCode of the package providing
+ * the data, the locale and the non indexable keys. A provider whose fingerprint did not change
+ * since the last indexing does not need to be indexed again. The resources of Settings can
+ * change with the build while keeping the same versionCode, so its fingerprints also contain
+ * the build.
+ */
+final class IndexFingerprints {
+
+    private static final String SEPARATOR = "/";
+
+    private final Context mContext;
+    private final String mLocale;
+
+    private final Map<String, String> mFingerprints = new HashMap<String, String>();
+    private final Map<String, String> mUpdatedFingerprints = new HashMap<String, String>();
+    private final Map<String, Integer> mVersionCodes = new HashMap<String, Integer>();
+
+    public IndexFingerprints(Context context, String locale) {
+        mContext = context;
+        mLocale = locale;
+    }
+
+    public void load(SQLiteDatabase database) {
+        mFingerprints.clear();
+        Cursor cursor = null;
+        try {
+            cursor = database.query(Tables.TABLE_FINGERPRINTS,
+                    new String[] { FingerprintsColumns.PROVIDER, FingerprintsColumns.FINGERPRINT },
+                    FingerprintsColumns.LOCALE + " = ?", new String[] { mLocale },
+                    null, null, null);
+            while (cursor.moveToNext()) {
+                mFingerprints.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    public void save(SQLiteDatabase database) {
+        final ContentValues values = new ContentValues();
+        for (Map.Entry<String, String> entry : mUpdatedFingerprints.entrySet()) {
+            values.clear();
+            values.put(FingerprintsColumns.PROVIDER, entry.getKey());
+            values.put(FingerprintsColumns.LOCALE, mLocale);
+            values.put(FingerprintsColumns.FINGERPRINT, entry.getValue());
+            database.replaceOrThrow(Tables.TABLE_FINGERPRINTS, null, values);
+        }
+        mFingerprints.putAll(mUpdatedFingerprints);
+        mUpdatedFingerprints.clear();
+    }
+
+    /**
+     * Delete the fingerprint of a provider whose rows have been deleted, so that it is indexed
+     * again when it comes back.
+     */
+    public static void delete(SQLiteDatabase database, String providerKey, String locale) {
+        database.delete(Tables.TABLE_FINGERPRINTS,
+                FingerprintsColumns.PROVIDER + " = ? AND " + FingerprintsColumns.LOCALE + " = ?",
+                new String[] { providerKey, locale });
+    }
+
+    /**
+     * @return true if the data has already been indexed with the same fingerprint.
+     */
+    public boolean isUnchanged(SearchIndexableData data, String fingerprint) {
+        return fingerprint.equals(mFingerprints.get(getProviderKey(data)));
+    }
+
+    /**
+     * @return true if the data has already been indexed, whatever its fingerprint.
+     */
+    public boolean isIndexed(SearchIndexableData data) {
+        return mFingerprints.containsKey(getProviderKey(data));
+    }
+
+    public void setIndexed(SearchIndexableData data, String fingerprint) {
+        mUpdatedFingerprints.put(getProviderKey(data), fingerprint);
+    }
+
+    public String computeFingerprint(SearchIndexableData data, List<String> nonIndexableKeys) {
+        final StringBuilder sb = new StringBuilder();
+        final String packageName = getPackageName(data);
+        sb.append(getVersionCode(packageName));
+        if (packageName.equals(mContext.getPackageName())) {
+            sb.append('@');
+            sb.append(Build.VERSION.INCREMENTAL);
+        }
+        sb.append(SEPARATOR);
+        sb.append(mLocale);
+        sb.append(SEPARATOR);
+        sb.append(data.rank);
+        sb.append(SEPARATOR);
+        sb.append(data.iconResId);
+        sb.append(SEPARATOR);
+        sb.append(data.enabled);
+        sb.append(SEPARATOR);
+        if (data instanceof SearchIndexableResource) {
+            sb.append(((SearchIndexableResource) data).xmlResId);
+        } else if (data instanceof SearchIndexableRaw) {
+            sb.append(getContentHash((SearchIndexableRaw) data));
+        }
+        sb.append(SEPARATOR);
+        sb.append((nonIndexableKeys != null) ? nonIndexableKeys.hashCode() : 0);
+        return sb.toString();
+    }
+
+    /**
+     * @return the key identifying the provider of the data, also stored with its index rows.
+     */
+    public String getProviderKey(SearchIndexableData data) {
+        final StringBuilder sb = new StringBuilder(getPackageName(data));
+        sb.append(SEPARATOR);
+        sb.append(data.className);
+        if (data instanceof SearchIndexableResource) {
+            sb.append(SEPARATOR);
+            sb.append(((SearchIndexableResource) data).xmlResId);
+        } else if (data instanceof SearchIndexableRaw) {
+            final SearchIndexableRaw raw = (SearchIndexableRaw) data;
+            sb.append(SEPARATOR);
+            sb.append((raw.key != null) ? raw.key : raw.title);
+            sb.append(SEPARATOR);
+            sb.append(raw.userId);
+        }
+        return sb.toString();
+    }
+
+    private String getPackageName(SearchIndexableData data) {
+        if (data.packageName != null) {
+            return data.packageName;
+        }
+        return (data.context != null) ? data.context.getPackageName() : mContext.getPackageName();
+    }
+
+    private int getVersionCode(String packageName) {
+        Integer versionCode = mVersionCodes.get(packageName);
+        if (versionCode == null) {
+            try {
+                versionCode = mContext.getPackageManager().getPackageInfo(packageName, 0)
+                        .versionCode;
+            } catch (PackageManager.NameNotFoundException e) {
+                versionCode = -1;
+            }
+            mVersionCodes.put(packageName, versionCode);
+        }
+        return versionCode;
+    }
+
+    private static int getContentHash(SearchIndexableRaw raw) {
+        int hash = 17;
+        hash = 31 * hash + hashOf(raw.title);
+        hash = 31 * hash + hashOf(raw.summaryOn);
+        hash = 31 * hash + hashOf(raw.summaryOff);
+        hash = 31 * hash + hashOf(raw.entries);
+        hash = 31 * hash + hashOf(raw.keywords);
+        hash = 31 * hash + hashOf(raw.screenTitle);
+        hash = 31 * hash + hashOf(raw.intentAction);
+        hash = 31 * hash + hashOf(raw.intentTargetPackage);
+        hash = 31 * hash + hashOf(raw.intentTargetClass);
+        return hash;
+    }
+
+    private static int hashOf(String s) {
+        return (s != null) ? s.hashCode() : 0;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * Writes rows into the Index database through a single compiled statement.
+ *
+ * The writer is meant to be used inside the transaction of an Index update: no ContentValues
+ * are allocated per row and the normalized strings are cached, as the same titles and summaries
+ * are seen many times while indexing all the SearchIndexableResources.
+ */
+final class IndexRowWriter {
+
+    private static final String LOG_TAG = "IndexRowWriter";
+
+    // Number of rows between two trims of the normalized strings cache
+    private static final int BATCH_SIZE = 256;
+    private static final int MAX_CACHED_STRINGS = 1024;
+
+    private static final String EMPTY = "";
+    private static final String NON_BREAKING_HYPHEN = "\u2011";
+    private static final String HYPHEN = "-";
+
+    private static final Pattern REMOVE_DIACRITICALS_PATTERN
+            = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    // If you change the order of columns here, you SHOULD change the bind indices in insertRow()
+    private static final String INSERT_SQL =
+            "INSERT OR REPLACE INTO " + Tables.TABLE_PREFS_INDEX +
+                    "(" +
+                    IndexColumns.DOCID + ", " +                         // 1
+                    IndexColumns.LOCALE + ", " +                        // 2
+                    IndexColumns.DATA_RANK + ", " +                     // 3
+                    IndexColumns.DATA_TITLE + ", " +                    // 4
+                    IndexColumns.DATA_TITLE_NORMALIZED + ", " +         // 5
+                    IndexColumns.DATA_SUMMARY_ON + ", " +               // 6
+                    IndexColumns.DATA_SUMMARY_ON_NORMALIZED + ", " +    // 7
+                    IndexColumns.DATA_SUMMARY_OFF + ", " +              // 8
+                    IndexColumns.DATA_SUMMARY_OFF_NORMALIZED + ", " +   // 9
+                    IndexColumns.DATA_ENTRIES + ", " +                  // 10
+                    IndexColumns.DATA_KEYWORDS + ", " +                 // 11
+                    IndexColumns.CLASS_NAME + ", " +                    // 12
+                    IndexColumns.SCREEN_TITLE + ", " +                  // 13
+                    IndexColumns.INTENT_ACTION + ", " +                 // 14
+                    IndexColumns.INTENT_TARGET_PACKAGE + ", " +         // 15
+                    IndexColumns.INTENT_TARGET_CLASS + ", " +           // 16
+                    IndexColumns.ICON + ", " +                          // 17
+                    IndexColumns.ENABLED + ", " +                       // 18
+                    IndexColumns.DATA_KEY_REF + ", " +                  // 19
+                    IndexColumns.USER_ID + ", " +                       // 20
+                    IndexColumns.PROVIDER_KEY +                         // 21
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final SQLiteDatabase mDatabase;
+    private SQLiteStatement mStatement;
+    private String mProviderKey;
+
+    private final HashMap<String, String> mHyphenCache = new HashMap<String, String>();
+    private final HashMap<String, String> mNormalizedCache = new HashMap<String, String>();
+
+    private int mRowCount;
+    private long mInsertTime;
+
+    public IndexRowWriter(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Set the key of the provider whose rows are inserted next, so that they can be deleted
+     * when the provider is indexed again.
+     */
+    public void setProviderKey(String providerKey) {
+        mProviderKey = providerKey;
+    }
+
+    public void insertRow(int docId, String locale, int rank,
+            String title, String normalizedTitle,
+            String summaryOn, String normalizedSummaryOn,
+            String summaryOff, String normalizedSummaryOff,
+            String entries, String keywords, String className, String screenTitle,
+            String intentAction, String intentTargetPackage, String intentTargetClass,
+            int iconResId, boolean enabled, String key, int userId) {
+
+        final long start = SystemClock.elapsedRealtimeNanos();
+
+        if (mStatement == null) {
+            mStatement = mDatabase.compileStatement(INSERT_SQL);
+        }
+        final SQLiteStatement statement = mStatement;
+        statement.bindLong(1, docId);
+        bindString(statement, 2, locale);
+        statement.bindLong(3, rank);
+        bindString(statement, 4, title);
+        bindString(statement, 5, normalizedTitle);
+        bindString(statement, 6, summaryOn);
+        bindString(statement, 7, normalizedSummaryOn);
+        bindString(statement, 8, summaryOff);
+        bindString(statement, 9, normalizedSummaryOff);
+        bindString(statement, 10, entries);
+        bindString(statement, 11, keywords);
+        bindString(statement, 12, className);
+        bindString(statement, 13, screenTitle);
+        bindString(statement, 14, intentAction);
+        bindString(statement, 15, intentTargetPackage);
+        bindString(statement, 16, intentTargetClass);
+        statement.bindLong(17, iconResId);
+        statement.bindLong(18, enabled ? 1 : 0);
+        bindString(statement, 19, key);
+        statement.bindLong(20, userId);
+        bindString(statement, 21, mProviderKey);
+        statement.executeInsert();
+
+        mInsertTime += SystemClock.elapsedRealtimeNanos() - start;
+        if (++mRowCount % BATCH_SIZE == 0) {
+            trimCaches();
+        }
+    }
+
+    /**
+     * Replace the non breaking hyphens by regular ones.
+     */
+    public String normalizeHyphen(String input) {
+        if (input == null) {
+            return EMPTY;
+        }
+        String result = mHyphenCache.get(input);
+        if (result == null) {
+            result = input.replace(NON_BREAKING_HYPHEN, HYPHEN);
+            mHyphenCache.put(input, result);
+        }
+        return result;
+    }
+
+    /**
+     * Remove the hyphens and the diacritical marks, and lower case the input.
+     */
+    public String normalizeString(String input) {
+        if (input == null) {
+            return EMPTY;
+        }
+        String result = mNormalizedCache.get(input);
+        if (result == null) {
+            final String nohyphen = input.replace(HYPHEN, EMPTY);
+            final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
+            result = REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
+            mNormalizedCache.put(input, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of rows inserted so far.
+     */
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * @return the time spent inserting rows so far, in nanoseconds.
+     */
+    public long getInsertTime() {
+        return mInsertTime;
+    }
+
+    public void close() {
+        if (mStatement != null) {
+            mStatement.close();
+            mStatement = null;
+        }
+        mHyphenCache.clear();
+        mNormalizedCache.clear();
+
+        if (mRowCount > 0) {
+            final long millis = mInsertTime / 1000000;
+            final long rowsPerSecond = (mInsertTime > 0) ?
+                    (mRowCount * 1000000000L) / mInsertTime : mRowCount;
+            Log.d(LOG_TAG, "Inserted " + mRowCount + " row(s) in " + millis + " millis (" +
+                    rowsPerSecond + " rows/s)");
+        }
+    }
+
+    private void trimCaches() {
+        // Keep the memory bounded while indexing a large number of resources
+        if (mHyphenCache.size() > MAX_CACHED_STRINGS) {
+            mHyphenCache.clear();
+        }
+        if (mNormalizedCache.size() > MAX_CACHED_STRINGS) {
+            mNormalizedCache.clear();
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A prebuilt search index shipped in the assets.
+ *
+ * The prebuilt index contains the strings of the static XML resources of Settings for every
+ * locale of its resources. It is generated at build time by the SearchIndexGenerator host
+ * tool (see tools/searchindex) and loaded when the Index database is created, so that only
+ * the dynamic providers need to be indexed at runtime: the providers whose fingerprint still
+ * matches are skipped by the Index update.
+ *
+ * The prebuilt index is only valid for the build it has been generated with, as the
+ * resources of Settings and of its overlays can change between builds sharing the same
+ * versionCode. It has been generated for a device without keys.
+ *
+ * There is one asset per locale. It starts with the version of its format and the build
+ * number, followed by the XML resources: their name and their rows. A row is made of the
+ * title, summaryOn, summaryOff, entries, keywords, screen title and key, each written as a
+ * boolean telling whether it is not null, followed by its modified UTF-8 value.
+ */
+public final class PrebuiltIndex {
+
+    private static final String LOG_TAG = "PrebuiltIndex";
+
+    // Must match SearchIndexGenerator
+    private static final String ASSET_DIR = "search_index";
+    private static final int FORMAT_VERSION = 1;
+    private static final String DEFAULT_LOCALE_NAME = "default";
+    private static final int ROW_LENGTH = 7;
+
+    static final int ROW_TITLE = 0;
+    static final int ROW_SUMMARY_ON = 1;
+    static final int ROW_SUMMARY_OFF = 2;
+    static final int ROW_ENTRIES = 3;
+    static final int ROW_KEYWORDS = 4;
+    static final int ROW_SCREEN_TITLE = 5;
+    static final int ROW_KEY = 6;
+
+    private PrebuiltIndex() {
+    }
+
+    /**
+     * Load the prebuilt index of the current locale from the assets into the Index database,
+     * if there is one for this build.
+     *
+     * @return the number of index rows loaded.
+     */
+    static int load(Context context, SQLiteDatabase database) {
+        final long start = SystemClock.elapsedRealtime();
+
+        if (context.getResources().getConfiguration().keyboard
+                != Configuration.KEYBOARD_NOKEYS) {
+            Log.d(LOG_TAG, "No prebuilt index for a device with keys");
+            return 0;
+        }
+
+        final Locale locale = Locale.getDefault();
+        final Map<String, List<String[]>> rows;
+        try {
+            rows = read(context, locale);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read prebuilt index", e);
+            return 0;
+        }
+        if (rows == null) {
+            return 0;
+        }
+
+        final int count = Index.getInstance(context).indexPrebuiltResources(database,
+                locale.toString(), rows);
+
+        Log.i(LOG_TAG, "Loaded " + count + " prebuilt row(s) in " +
+                (SystemClock.elapsedRealtime() - start) + " millis");
+        return count;
+    }
+
+    /**
+     * @return the prebuilt rows for a locale, by name of the XML resource they come from, or
+     * null if there are none for this build.
+     */
+    private static Map<String, List<String[]>> read(Context context, Locale locale)
+            throws IOException {
+        // The locales are the ones of the resources: fall back to the language, then to the
+        // default resources, like the resources do.
+        final List<String> names = new ArrayList<String>(3);
+        if (!locale.getCountry().isEmpty()) {
+            names.add(locale.getLanguage() + "_" + locale.getCountry());
+        }
+        names.add(locale.getLanguage());
+        names.add(DEFAULT_LOCALE_NAME);
+        DataInputStream in = null;
+        for (String name : names) {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        context.getAssets().open(ASSET_DIR + "/" + name)));
+                break;
+            } catch (FileNotFoundException e) {
+                // Try the next one
+            }
+        }
+        if (in == null) {
+            Log.d(LOG_TAG, "No prebuilt index");
+            return null;
+        }
+
+        try {
+            final int version = in.readInt();
+            final String build = in.readUTF();
+            if (version != FORMAT_VERSION || !Build.VERSION.INCREMENTAL.equals(build)) {
+                Log.w(LOG_TAG, "Ignoring prebuilt index version " + version + " for '" + build +
+                        "' instead of '" + Build.VERSION.INCREMENTAL + "'");
+                return null;
+            }
+
+            final int resourceCount = in.readInt();
+            final Map<String, List<String[]>> rows =
+                    new HashMap<String, List<String[]>>(resourceCount);
+            for (int i = 0; i < resourceCount; i++) {
+                final String name = in.readUTF();
+                final int rowCount = in.readInt();
+                final List<String[]> resourceRows = new ArrayList<String[]>(rowCount);
+                for (int j = 0; j < rowCount; j++) {
+                    final String[] row = new String[ROW_LENGTH];
+                    for (int n = 0; n < ROW_LENGTH; n++) {
+                        row[n] = in.readBoolean() ? in.readUTF() : null;
+                    }
+                    resourceRows.add(row);
+                }
+                rows.put(name, resourceRows);
+            }
+            return rows;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+/**
+ * Default {@link SearchScorer}.
+ *
+ * The score combines:
+ *
+ * - the column where the query matched (title, then keywords, then summaries and entries),
+ *   either as written or normalized like in the Index (without hyphens nor diacritical marks)
+ * - the position of the match in that column and whether whole words matched
+ * - how much of the title is covered by the query
+ * - the static rank of the data (see {@link Ranking})
+ * - the recent saved queries matching the title
+ */
+public class RelevanceScorer implements SearchScorer {
+
+    private static final float WEIGHT_TITLE = 8f;
+    private static final float WEIGHT_KEYWORDS = 4f;
+    private static final float WEIGHT_SUMMARY = 2f;
+    private static final float WEIGHT_ENTRIES = 1f;
+    private static final float WEIGHT_COVERAGE = 3f;
+    private static final float WEIGHT_RANK = 2f;
+    private static final float WEIGHT_SAVED_QUERIES = 2f;
+
+    // A prefix match of a token is worth less than a whole word match
+    private static final float PREFIX_MATCH_FACTOR = 0.7f;
+    // Each token before the match lowers its value by this factor
+    private static final float POSITION_DECAY = 0.15f;
+    // Ranks up to this value are considered, higher ones are worth nothing
+    private static final float MAX_RANK = Ranking.RANK_OTHERS;
+    // Max value of the saved queries matching the title
+    private static final float MAX_SAVED_QUERIES_SCORE = 2f;
+    // Time after which a saved query is worth half of a new one
+    private static final long SAVED_QUERY_HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String[] EMPTY_TOKENS = new String[0];
+
+    @Override
+    public float score(Query query, Candidate candidate) {
+        final String[] queryTokens = query.tokens;
+        if (queryTokens.length == 0) {
+            return 0;
+        }
+
+        final String[] titleTokens = SearchPrefixIndex.tokenize(candidate.title);
+        final String[] normalizedTitleTokens =
+                SearchPrefixIndex.tokenize(candidate.normalizedTitle);
+
+        float score = WEIGHT_TITLE * matchScore(queryTokens, titleTokens, normalizedTitleTokens);
+        score += WEIGHT_KEYWORDS * matchScore(queryTokens,
+                SearchPrefixIndex.tokenize(candidate.keywords), EMPTY_TOKENS);
+        score += WEIGHT_SUMMARY * matchScore(queryTokens,
+                SearchPrefixIndex.tokenize(candidate.summaryOn, candidate.summaryOff),
+                SearchPrefixIndex.tokenize(candidate.normalizedSummaryOn,
+                        candidate.normalizedSummaryOff));
+        score += WEIGHT_ENTRIES * matchScore(queryTokens,
+                SearchPrefixIndex.tokenize(candidate.entries), EMPTY_TOKENS);
+
+        score += WEIGHT_COVERAGE * Math.max(coverage(queryTokens, titleTokens),
+                coverage(queryTokens, normalizedTitleTokens));
+        score += WEIGHT_RANK * rankScore(candidate.rank);
+        score += WEIGHT_SAVED_QUERIES *
+                savedQueriesScore(query, titleTokens, normalizedTitleTokens);
+        return score;
+    }
+
+    /**
+     * @return the average over the query tokens of their best match in the column tokens or
+     * in the normalized column tokens, in [0, 1].
+     */
+    private static float matchScore(String[] queryTokens, String[] tokens,
+            String[] normalizedTokens) {
+        if (tokens.length == 0 && normalizedTokens.length == 0) {
+            return 0;
+        }
+        float total = 0;
+        for (String queryToken : queryTokens) {
+            total += Math.max(bestMatch(queryToken, tokens),
+                    bestMatch(queryToken, normalizedTokens));
+        }
+        return total / queryTokens.length;
+    }
+
+    /**
+     * @return the value of the best match of a query token in the column tokens, in [0, 1].
+     */
+    private static float bestMatch(String queryToken, String[] tokens) {
+        float best = 0;
+        for (int n = 0; n < tokens.length; n++) {
+            final float value;
+            if (tokens[n].equals(queryToken)) {
+                value = 1f;
+            } else if (tokens[n].startsWith(queryToken)) {
+                value = PREFIX_MATCH_FACTOR;
+            } else {
+                continue;
+            }
+            final float positioned = value / (1f + POSITION_DECAY * n);
+            if (positioned > best) {
+                best = positioned;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the fraction of the title tokens matched by the query, in [0, 1].
+     */
+    private static float coverage(String[] queryTokens, String[] titleTokens) {
+        if (titleTokens.length == 0) {
+            return 0;
+        }
+        int covered = 0;
+        for (String titleToken : titleTokens) {
+            for (String queryToken : queryTokens) {
+                if (titleToken.startsWith(queryToken)) {
+                    covered++;
+                    break;
+                }
+            }
+        }
+        return (float) covered / titleTokens.length;
+    }
+
+    /**
+     * @return the value of a static rank, in [0, 1]. The lower the rank, the higher the value.
+     */
+    private static float rankScore(int rank) {
+        if (rank <= 0 || rank >= MAX_RANK) {
+            return 0;
+        }
+        return 1f - (float) Math.log(rank) / (float) Math.log(MAX_RANK);
+    }
+
+    /**
+     * @return the sum, over the saved queries matching the title, of their recency.
+     */
+    private static float savedQueriesScore(Query query, String[] titleTokens,
+            String[] normalizedTitleTokens) {
+        if (query.savedQueries == null ||
+                (titleTokens.length == 0 && normalizedTitleTokens.length == 0)) {
+            return 0;
+        }
+        float score = 0;
+        final int count = query.savedQueries.length;
+        for (int n = 0; n < count; n++) {
+            final String[] savedTokens = query.savedQueries[n];
+            if (savedTokens.length == 0 || (coverage(savedTokens, titleTokens) == 0 &&
+                    coverage(savedTokens, normalizedTitleTokens) == 0)) {
+                continue;
+            }
+            final long age = Math.max(0, query.now - query.savedTimeStamps[n]);
+            score += (float) Math.pow(0.5, (double) age / SAVED_QUERY_HALF_LIFE_MILLIS);
+        }
+        return Math.min(score, MAX_SAVED_QUERIES_SCORE);
+    }
+}
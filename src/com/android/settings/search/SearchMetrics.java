@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Counters and latency histograms of the indexing and search stages of the {@link Index}.
+ *
+ * The histograms have power of two buckets in milliseconds: [0, 1), [1, 2), [2, 4), ... and a
+ * last bucket for everything above. Recording is cheap enough to stay enabled in the field; the
+ * metrics are dumped with:
+ *
+ *   adb shell dumpsys activity provider com.android.settings/.search.SettingsSearchIndexablesProvider
+ *
+ * and reset by adding the "reset" argument.
+ */
+public final class SearchMetrics {
+
+    /** Parsing one XML resource into rows, without writing them */
+    public static final int STAGE_XML_PARSE = 0;
+    /** Collecting the raw data rows of one provider, without writing them */
+    public static final int STAGE_RAW_DATA = 1;
+    /** Querying one remote SearchIndexablesProvider */
+    public static final int STAGE_REMOTE_PROVIDER = 2;
+    /** Writing, deleting and committing the rows of one update of the Index database */
+    public static final int STAGE_DB_WRITE = 3;
+    /** One search query not answered from the cache, including the ranking */
+    public static final int STAGE_QUERY = 4;
+    /** One whole update of the Index database, parsing and writing included */
+    public static final int STAGE_UPDATE = 5;
+
+    private static final String[] STAGE_NAMES = new String[] {
+        "xml_parse", "raw_data", "remote_provider", "db_write", "query", "update"
+    };
+
+    public static final int COUNTER_PROVIDERS_REINDEXED = 0;
+    public static final int COUNTER_PROVIDERS_SKIPPED = 1;
+    public static final int COUNTER_REMOTE_PROVIDER_TIMEOUTS = 2;
+    public static final int COUNTER_ROWS_WRITTEN = 3;
+    public static final int COUNTER_PREFIX_INDEX_SEARCHES = 4;
+    public static final int COUNTER_DATABASE_SEARCHES = 5;
+    public static final int COUNTER_FUZZY_SEARCHES = 6;
+
+    private static final String[] COUNTER_NAMES = new String[] {
+        "providers_reindexed", "providers_skipped", "remote_provider_timeouts", "rows_written",
+        "prefix_index_searches", "database_searches", "fuzzy_searches"
+    };
+
+    // Buckets up to 2^(BUCKETS - 2) millis, the last one holds anything longer
+    private static final int BUCKETS = 14;
+
+    private final long[] mCounters = new long[COUNTER_NAMES.length];
+    private final long[][] mHistograms = new long[STAGE_NAMES.length][BUCKETS];
+    private final long[] mTotalMillis = new long[STAGE_NAMES.length];
+    private final long[] mMaxMillis = new long[STAGE_NAMES.length];
+    private long mResetTime = SystemClock.elapsedRealtime();
+
+    /**
+     * @return the start time of a stage, to be given to {@link #record(int, long)}.
+     */
+    public static long start() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Record the latency of a stage.
+     *
+     * @param stage one of the STAGE_ constants.
+     * @param startTime the value returned by {@link #start()} when the stage started.
+     */
+    public void record(int stage, long startTime) {
+        recordMillis(stage, SystemClock.elapsedRealtime() - startTime);
+    }
+
+    /**
+     * Record the latency of a stage measured by the caller, such as a stage interleaved with
+     * another one.
+     *
+     * @param stage one of the STAGE_ constants.
+     * @param millis the latency of the stage.
+     */
+    public void recordMillis(int stage, long millis) {
+        millis = Math.max(0, millis);
+        synchronized (this) {
+            mHistograms[stage][getBucket(millis)]++;
+            mTotalMillis[stage] += millis;
+            if (millis > mMaxMillis[stage]) {
+                mMaxMillis[stage] = millis;
+            }
+        }
+    }
+
+    /**
+     * Add to a counter.
+     *
+     * @param counter one of the COUNTER_ constants.
+     * @param value the value to add.
+     */
+    public synchronized void increment(int counter, long value) {
+        mCounters[counter] += value;
+    }
+
+    public synchronized long getCounter(int counter) {
+        return mCounters[counter];
+    }
+
+    /**
+     * @return the number of times a stage has been recorded.
+     */
+    public synchronized long getCount(int stage) {
+        long count = 0;
+        for (long value : mHistograms[stage]) {
+            count += value;
+        }
+        return count;
+    }
+
+    public synchronized void reset() {
+        for (int n = 0; n < STAGE_NAMES.length; n++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                mHistograms[n][i] = 0;
+            }
+            mTotalMillis[n] = 0;
+            mMaxMillis[n] = 0;
+        }
+        for (int n = 0; n < COUNTER_NAMES.length; n++) {
+            mCounters[n] = 0;
+        }
+        mResetTime = SystemClock.elapsedRealtime();
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Search metrics since " +
+                (SystemClock.elapsedRealtime() - mResetTime) / 1000 + "s:");
+        writer.println("  Counters:");
+        for (int n = 0; n < COUNTER_NAMES.length; n++) {
+            writer.println("    " + COUNTER_NAMES[n] + ": " + mCounters[n]);
+        }
+        writer.println("  Latencies (count, avg, max, histogram of upper bounds in millis):");
+        for (int n = 0; n < STAGE_NAMES.length; n++) {
+            final long count = getCount(n);
+            final StringBuilder sb = new StringBuilder();
+            sb.append("    ").append(STAGE_NAMES[n]).append(": ").append(count);
+            if (count > 0) {
+                sb.append(", ").append(mTotalMillis[n] / count).append("ms");
+                sb.append(", ").append(mMaxMillis[n]).append("ms");
+                for (int i = 0; i < BUCKETS; i++) {
+                    if (mHistograms[n][i] == 0) {
+                        continue;
+                    }
+                    sb.append(' ');
+                    sb.append((i < BUCKETS - 1) ?
+                            ("<" + (1L << i)) : (">=" + (1L << (i - 1))));
+                    sb.append('=').append(mHistograms[n][i]);
+                }
+            }
+            writer.println(sb.toString());
+        }
+    }
+
+    private static int getBucket(long millis) {
+        int bucket = 0;
+        while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+            bucket++;
+        }
+        return bucket;
+    }
+}
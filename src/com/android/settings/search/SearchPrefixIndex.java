@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.Tables;
+
+/**
+ * A memory resident prefix index of the enabled rows of the Index database for one locale.
+ *
+ * The tokens of the primary columns (title and keywords) and of the secondary columns
+ * (summaries and entries) are kept sorted so that all the tokens starting with a given prefix
+ * are found by a binary search. As the user types, a query extending the previous one is
+ * answered by narrowing the previous results instead of looking up the tokens again.
+ *
+ * When a query matches too few rows, {@link #searchFuzzy(String)} also tolerates typos by
+ * looking up the tokens within a small edit distance of the query tokens in a BK-tree (see
+ * {@link FuzzyTokenIndex}) built along with the token tables.
+ *
+ * The Index database stays the source of truth: a prefix index is only valid for the index
+ * generation it has been loaded from.
+ */
+final class SearchPrefixIndex {
+
+    private static final String LOG_TAG = "SearchPrefixIndex";
+
+    private static final String[] EMPTY_TOKENS = new String[0];
+
+    // Budget of a fuzzy search on a few thousand rows. Exceeding it is logged
+    static final long FUZZY_SEARCH_BUDGET_MILLIS = 8;
+
+    private final String mLocale;
+    private final int mGeneration;
+
+    // Rows values, in the order of Index.SELECT_COLUMNS
+    private final Object[][] mRows;
+    private final int[] mRanks;
+
+    // Tokens per row for narrowing the previous results
+    private final String[][] mPrimaryRowTokens;
+    private final String[][] mSecondaryRowTokens;
+
+    private final TokenTable mPrimaryTokens;
+    private final TokenTable mSecondaryTokens;
+
+    private String[] mLastQueryTokens;
+    private BitSet mLastPrimaryMatches;
+    private BitSet mLastSecondaryMatches;
+
+    private SearchPrefixIndex(String locale, int generation, List<Object[]> rows,
+            List<Integer> ranks, List<String[]> primaryTokens, List<String[]> secondaryTokens) {
+        mLocale = locale;
+        mGeneration = generation;
+
+        final int count = rows.size();
+        mRows = rows.toArray(new Object[count][]);
+        mRanks = new int[count];
+        for (int n = 0; n < count; n++) {
+            mRanks[n] = ranks.get(n);
+        }
+        mPrimaryRowTokens = primaryTokens.toArray(new String[count][]);
+        mSecondaryRowTokens = secondaryTokens.toArray(new String[count][]);
+
+        mPrimaryTokens = new TokenTable(mPrimaryRowTokens);
+        mSecondaryTokens = new TokenTable(mSecondaryRowTokens);
+    }
+
+    /**
+     * Load the prefix index from the Index database.
+     *
+     * @param database the Index database.
+     * @param locale the locale of the rows to load.
+     * @param generation the index generation of the database content.
+     */
+    public static SearchPrefixIndex load(SQLiteDatabase database, String locale, int generation) {
+        final long start = SystemClock.elapsedRealtime();
+
+        final String[] columns = Index.SELECT_COLUMNS;
+
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        final List<Integer> ranks = new ArrayList<Integer>();
+        final List<String[]> primaryTokens = new ArrayList<String[]>();
+        final List<String[]> secondaryTokens = new ArrayList<String[]>();
+
+        Cursor cursor = null;
+        try {
+            cursor = database.query(Tables.TABLE_PREFS_INDEX, columns,
+                    IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                    new String[] { locale }, null, null, null);
+            while (cursor.moveToNext()) {
+                final Object[] row = new Object[columns.length];
+                for (int n = 0; n < row.length; n++) {
+                    row[n] = cursor.getString(n);
+                }
+                rows.add(row);
+                ranks.add(cursor.getInt(Index.COLUMN_INDEX_RANK));
+
+                primaryTokens.add(tokenize(
+                        cursor.getString(Index.COLUMN_INDEX_TITLE),
+                        cursor.getString(Index.COLUMN_INDEX_TITLE_NORMALIZED),
+                        cursor.getString(Index.COLUMN_INDEX_KEYWORDS)));
+                secondaryTokens.add(tokenize(
+                        cursor.getString(Index.COLUMN_INDEX_SUMMARY_ON),
+                        cursor.getString(Index.COLUMN_INDEX_SUMMARY_ON_NORMALIZED),
+                        cursor.getString(Index.COLUMN_INDEX_SUMMARY_OFF),
+                        cursor.getString(Index.COLUMN_INDEX_SUMMARY_OFF_NORMALIZED),
+                        cursor.getString(Index.COLUMN_INDEX_ENTRIES)));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        final SearchPrefixIndex result = new SearchPrefixIndex(locale, generation, rows, ranks,
+                primaryTokens, secondaryTokens);
+        Log.d(LOG_TAG, "Loaded " + rows.size() + " row(s) for locale '" + locale + "' in " +
+                (SystemClock.elapsedRealtime() - start) + " millis");
+        return result;
+    }
+
+    public boolean isValidFor(String locale, int generation) {
+        return mGeneration == generation && mLocale.equals(locale);
+    }
+
+    /**
+     * Search the rows matching all the tokens of the query. The rows matching in the primary
+     * columns come first, followed by the rows matching only in the secondary columns; both
+     * sorted by rank.
+     *
+     * @return a Cursor with the same columns as {@link Index#search(String)}.
+     */
+    public synchronized Cursor search(String query) {
+        final String[] queryTokens = tokenize(query);
+
+        final BitSet primary;
+        final BitSet secondary;
+        if (isNarrowing(queryTokens)) {
+            final BitSet candidates = (BitSet) mLastPrimaryMatches.clone();
+            candidates.or(mLastSecondaryMatches);
+            primary = new BitSet(mRows.length);
+            secondary = new BitSet(mRows.length);
+            for (int n = candidates.nextSetBit(0); n >= 0; n = candidates.nextSetBit(n + 1)) {
+                if (matchesAll(mPrimaryRowTokens[n], queryTokens)) {
+                    primary.set(n);
+                } else if (matchesAll(mSecondaryRowTokens[n], queryTokens)) {
+                    secondary.set(n);
+                }
+            }
+        } else {
+            primary = mPrimaryTokens.lookup(queryTokens, mRows.length);
+            secondary = mSecondaryTokens.lookup(queryTokens, mRows.length);
+            secondary.andNot(primary);
+        }
+
+        mLastQueryTokens = queryTokens;
+        mLastPrimaryMatches = primary;
+        mLastSecondaryMatches = secondary;
+
+        final MatrixCursor cursor = new MatrixCursor(Index.SELECT_COLUMNS,
+                primary.cardinality() + secondary.cardinality());
+        addRowsByRank(cursor, primary);
+        addRowsByRank(cursor, secondary);
+        return cursor;
+    }
+
+    /**
+     * Search the rows matching all the tokens of the query, either by prefix or within a small
+     * edit distance, excluding the rows returned by {@link #search(String)}. The rows matching
+     * in the primary columns come first, followed by the rows matching only in the secondary
+     * columns; both sorted by rank.
+     *
+     * @return a Cursor with the same columns as {@link Index#search(String)}.
+     */
+    public synchronized Cursor searchFuzzy(String query) {
+        final long start = SystemClock.elapsedRealtime();
+        final String[] queryTokens = tokenize(query);
+
+        final BitSet exact;
+        if (mLastQueryTokens != null && Arrays.equals(mLastQueryTokens, queryTokens)) {
+            exact = (BitSet) mLastPrimaryMatches.clone();
+            exact.or(mLastSecondaryMatches);
+        } else {
+            exact = mPrimaryTokens.lookup(queryTokens, mRows.length);
+            exact.or(mSecondaryTokens.lookup(queryTokens, mRows.length));
+        }
+
+        final BitSet primary = mPrimaryTokens.fuzzyLookup(queryTokens, mRows.length);
+        primary.andNot(exact);
+        final BitSet secondary = mSecondaryTokens.fuzzyLookup(queryTokens, mRows.length);
+        secondary.andNot(exact);
+        secondary.andNot(primary);
+
+        final MatrixCursor cursor = new MatrixCursor(Index.SELECT_COLUMNS,
+                primary.cardinality() + secondary.cardinality());
+        addRowsByRank(cursor, primary);
+        addRowsByRank(cursor, secondary);
+
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        if (elapsed > FUZZY_SEARCH_BUDGET_MILLIS) {
+            Log.w(LOG_TAG, "Fuzzy search of '" + query + "' took " + elapsed + " millis");
+        }
+        return cursor;
+    }
+
+    /**
+     * A query narrows the previous one if it has the same tokens, except for the last one that
+     * can be longer, and possibly additional tokens.
+     */
+    private boolean isNarrowing(String[] queryTokens) {
+        final String[] last = mLastQueryTokens;
+        if (last == null || last.length == 0 || queryTokens.length < last.length) {
+            return false;
+        }
+        final int lastIndex = last.length - 1;
+        for (int n = 0; n < lastIndex; n++) {
+            if (!last[n].equals(queryTokens[n])) {
+                return false;
+            }
+        }
+        return queryTokens[lastIndex].startsWith(last[lastIndex]);
+    }
+
+    private void addRowsByRank(MatrixCursor cursor, BitSet rows) {
+        final Integer[] indices = new Integer[rows.cardinality()];
+        int count = 0;
+        for (int n = rows.nextSetBit(0); n >= 0; n = rows.nextSetBit(n + 1)) {
+            indices[count++] = n;
+        }
+        Arrays.sort(indices, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final int lhsRank = mRanks[lhs];
+                final int rhsRank = mRanks[rhs];
+                return (lhsRank < rhsRank) ? -1 : ((lhsRank == rhsRank) ? 0 : 1);
+            }
+        });
+        for (int n = 0; n < count; n++) {
+            cursor.addRow(mRows[indices[n]]);
+        }
+    }
+
+    private static boolean matchesAll(String[] rowTokens, String[] queryTokens) {
+        for (String queryToken : queryTokens) {
+            boolean found = false;
+            for (String rowToken : rowTokens) {
+                if (rowToken.startsWith(queryToken)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split the values into lower case tokens of letters and digits, the same way the FTS
+     * "simple" tokenizer does.
+     */
+    static String[] tokenize(String... values) {
+        ArrayList<String> tokens = null;
+        for (String value : values) {
+            if (value == null) {
+                continue;
+            }
+            final int length = value.length();
+            int start = -1;
+            for (int n = 0; n <= length; n++) {
+                final boolean isTokenChar = (n < length) &&
+                        Character.isLetterOrDigit(value.charAt(n));
+                if (isTokenChar && start < 0) {
+                    start = n;
+                } else if (!isTokenChar && start >= 0) {
+                    if (tokens == null) {
+                        tokens = new ArrayList<String>();
+                    }
+                    final String token = value.substring(start, n).toLowerCase(Locale.ROOT);
+                    if (!tokens.contains(token)) {
+                        tokens.add(token);
+                    }
+                    start = -1;
+                }
+            }
+        }
+        return (tokens != null) ? tokens.toArray(new String[tokens.size()]) : EMPTY_TOKENS;
+    }
+
+    /**
+     * Sorted tokens with the rows containing them.
+     */
+    private static final class TokenTable {
+        private final String[] mTokens;
+        private final int[][] mRows;
+        // Ids of the tokens are their indices in mTokens
+        private final FuzzyTokenIndex mFuzzyTokens = new FuzzyTokenIndex();
+
+        TokenTable(String[][] rowTokens) {
+            final Map<String, BitSet> map = new HashMap<String, BitSet>();
+            for (int row = 0; row < rowTokens.length; row++) {
+                for (String token : rowTokens[row]) {
+                    BitSet rows = map.get(token);
+                    if (rows == null) {
+                        rows = new BitSet();
+                        map.put(token, rows);
+                    }
+                    rows.set(row);
+                }
+            }
+
+            final List<String> tokens = new ArrayList<String>(map.keySet());
+            Collections.sort(tokens);
+
+            final int count = tokens.size();
+            mTokens = tokens.toArray(new String[count]);
+            mRows = new int[count][];
+            for (int n = 0; n < count; n++) {
+                final BitSet rows = map.get(mTokens[n]);
+                final int[] array = new int[rows.cardinality()];
+                int i = 0;
+                for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+                    array[i++] = row;
+                }
+                mRows[n] = array;
+                mFuzzyTokens.add(mTokens[n], n);
+            }
+        }
+
+        /**
+         * @return the rows having, for every query token, a token starting with it.
+         */
+        BitSet lookup(String[] queryTokens, int rowCount) {
+            return lookup(queryTokens, rowCount, false);
+        }
+
+        /**
+         * @return the rows having, for every query token, a token starting with it or within
+         * the max edit distance of it.
+         */
+        BitSet fuzzyLookup(String[] queryTokens, int rowCount) {
+            return lookup(queryTokens, rowCount, true);
+        }
+
+        private BitSet lookup(String[] queryTokens, int rowCount, boolean fuzzy) {
+            BitSet result = null;
+            final BitSet fuzzyTokens = fuzzy ? new BitSet(mTokens.length) : null;
+            for (String queryToken : queryTokens) {
+                final BitSet rows = new BitSet(rowCount);
+                int n = Arrays.binarySearch(mTokens, queryToken);
+                if (n < 0) {
+                    n = -n - 1;
+                }
+                for (; n < mTokens.length && mTokens[n].startsWith(queryToken); n++) {
+                    for (int row : mRows[n]) {
+                        rows.set(row);
+                    }
+                }
+                if (fuzzy) {
+                    fuzzyTokens.clear();
+                    mFuzzyTokens.lookup(queryToken, FuzzyTokenIndex.getMaxDistance(queryToken),
+                            fuzzyTokens);
+                    for (int t = fuzzyTokens.nextSetBit(0); t >= 0;
+                            t = fuzzyTokens.nextSetBit(t + 1)) {
+                        for (int row : mRows[t]) {
+                            rows.set(row);
+                        }
+                    }
+                }
+                if (result == null) {
+                    result = rows;
+                } else {
+                    result.and(rows);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return (result != null) ? result : new BitSet(rowCount);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.UserHandle;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A LRU cache of the results of the recent queries, keyed by locale, query and user.
+ *
+ * The cache also coalesces the requests: starting a new request supersedes the ones still in
+ * flight, which can then give up before reaching the database.
+ */
+final class SearchResultsCache {
+
+    private final LruCache<String, Snapshot> mCache;
+
+    private final AtomicLong mLastRequest = new AtomicLong(0);
+    private int mGeneration = -1;
+
+    private final AtomicInteger mHitCount = new AtomicInteger(0);
+    private final AtomicInteger mMissCount = new AtomicInteger(0);
+    private final AtomicInteger mCancelCount = new AtomicInteger(0);
+
+    public SearchResultsCache(int maxEntries) {
+        mCache = new LruCache<String, Snapshot>(maxEntries);
+    }
+
+    /**
+     * Start a new request, superseding all the requests in flight.
+     *
+     * @return the request id.
+     */
+    public long newRequest() {
+        return mLastRequest.incrementAndGet();
+    }
+
+    /**
+     * @return true if a newer request has been started since the given one. The request is then
+     * counted as cancelled.
+     */
+    public boolean isSuperseded(long request) {
+        if (request != mLastRequest.get()) {
+            mCancelCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a new Cursor on the cached results, or null if the results for the query are not
+     * cached for this generation of the data.
+     */
+    public Cursor get(String locale, String query, int generation) {
+        final Snapshot snapshot;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                mCache.evictAll();
+                mGeneration = generation;
+            }
+            snapshot = mCache.get(buildKey(locale, query));
+        }
+        if (snapshot == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        return snapshot.newCursor();
+    }
+
+    /**
+     * Cache the results of a query. The given Cursor is consumed and closed.
+     *
+     * @return a new Cursor on the cached results.
+     */
+    public Cursor put(String locale, String query, int generation, Cursor cursor) {
+        final Snapshot snapshot = new Snapshot(cursor);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCache.put(buildKey(locale, query), snapshot);
+            }
+        }
+        return snapshot.newCursor();
+    }
+
+    public synchronized void invalidate() {
+        mCache.evictAll();
+    }
+
+    public void resetCounts() {
+        mHitCount.set(0);
+        mMissCount.set(0);
+        mCancelCount.set(0);
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    public int getCancelCount() {
+        return mCancelCount.get();
+    }
+
+    private static String buildKey(String locale, String query) {
+        final StringBuilder sb = new StringBuilder(locale);
+        sb.append('\0');
+        sb.append(UserHandle.myUserId());
+        sb.append('\0');
+        sb.append(query);
+        return sb.toString();
+    }
+
+    /**
+     * The values of all the rows of a Cursor.
+     */
+    private static final class Snapshot {
+        private final String[] mColumnNames;
+        private final ArrayList<Object[]> mRows;
+
+        Snapshot(Cursor cursor) {
+            try {
+                mColumnNames = cursor.getColumnNames();
+                mRows = new ArrayList<Object[]>(cursor.getCount());
+                final int columnCount = mColumnNames.length;
+                while (cursor.moveToNext()) {
+                    final Object[] row = new Object[columnCount];
+                    for (int n = 0; n < columnCount; n++) {
+                        row[n] = cursor.getString(n);
+                    }
+                    mRows.add(row);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        Cursor newCursor() {
+            final MatrixCursor cursor = new MatrixCursor(mColumnNames, mRows.size());
+            final int count = mRows.size();
+            for (int n = 0; n < count; n++) {
+                cursor.addRow(mRows.get(n));
+            }
+            return cursor;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+/**
+ * Interface for classes computing the relevance of the search results.
+ *
+ * The Index scores every candidate row of a search in a single pass and orders the results by
+ * decreasing score. See {@link RelevanceScorer} for the default implementation.
+ */
+public interface SearchScorer {
+
+    /**
+     * Compute the relevance of a candidate row for a query.
+     *
+     * @param query the query.
+     * @param candidate the candidate row.
+     * @return the score of the candidate. The higher, the more relevant.
+     */
+    float score(Query query, Candidate candidate);
+
+    /**
+     * A search query along with the saved queries it is scored against.
+     */
+    public static class Query {
+        /**
+         * Lower case tokens of the query.
+         */
+        public final String[] tokens;
+
+        /**
+         * Lower case tokens of the saved queries, most recent first.
+         */
+        public final String[][] savedQueries;
+
+        /**
+         * Time stamps of the saved queries, in milliseconds.
+         */
+        public final long[] savedTimeStamps;
+
+        /**
+         * Current time, in milliseconds.
+         */
+        public final long now;
+
+        public Query(String query, String[][] savedQueries, long[] savedTimeStamps, long now) {
+            this.tokens = SearchPrefixIndex.tokenize(query);
+            this.savedQueries = savedQueries;
+            this.savedTimeStamps = savedTimeStamps;
+            this.now = now;
+        }
+    }
+
+    /**
+     * A candidate row of the search results.
+     */
+    public static class Candidate {
+        public int rank;
+        public String title;
+        public String keywords;
+        public String summaryOn;
+        public String summaryOff;
+        public String entries;
+        /**
+         * Title and summaries without hyphens nor diacritical marks, as they are indexed.
+         */
+        public String normalizedTitle;
+        public String normalizedSummaryOn;
+        public String normalizedSummaryOff;
+    }
+}
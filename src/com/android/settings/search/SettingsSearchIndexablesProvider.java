@@ -21,6 +21,8 @@ import android.database.MatrixCursor;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesProvider;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Collection;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_RANK;
@@ -38,6 +40,8 @@ import static android.provider.SearchIndexablesContract.NON_INDEXABLES_KEYS_COLU
 public class SettingsSearchIndexablesProvider extends SearchIndexablesProvider {
     private static final String TAG = "SettingsSearchIndexablesProvider";
 
+    private static final String DUMP_ARG_RESET = "reset";
+
     @Override
     public boolean onCreate() {
         return true;
@@ -72,4 +76,22 @@ public class SettingsSearchIndexablesProvider extends SearchIndexablesProvider {
         MatrixCursor cursor = new MatrixCursor(NON_INDEXABLES_KEYS_COLUMNS);
         return cursor;
     }
+
+    /**
+     * Dump the search metrics of the Index. Passing "reset" resets them after the dump.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        final Index index = Index.getInstance(getContext());
+        index.dump(writer);
+        if (args != null) {
+            for (String arg : args) {
+                if (DUMP_ARG_RESET.equals(arg)) {
+                    index.resetMetrics();
+                    writer.println("Search metrics reset");
+                    break;
+                }
+            }
+        }
+    }
 }
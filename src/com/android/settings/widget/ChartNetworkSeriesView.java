@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -75,6 +77,33 @@ public class ChartNetworkSeriesView extends View {
     private long mMax;
     private long mMaxEstimate;
 
+    /** Incremented whenever a {@link NetworkStatsHistory} is bound. */
+    private int mStatsGeneration;
+
+    /**
+     * Series decimated to at most two points per horizontal pixel, as
+     * screen x and cumulative bytes. Only regenerated when the history, the
+     * bounds or the width changed; otherwise the path is rebuilt from these
+     * points through the vertical axis.
+     */
+    private float[] mPointX = new float[0];
+    private long[] mPointValue = new long[0];
+    private int mPointCount;
+    private long mPointsTotal;
+    private long mPointsLastTime;
+
+    private int mPointsGeneration = -1;
+    private long mPointsStart;
+    private long mPointsEnd;
+    private long mPointsEndTime;
+    private int mPointsWidth = -1;
+
+    // Pixel column being decimated, and its first and last points
+    private int mColumn;
+    private int mColumnCount;
+    private float mFirstX, mLastX;
+    private long mFirstValue, mLastValue;
+
     public ChartNetworkSeriesView(Context context) {
         this(context, null, 0);
     }
@@ -143,6 +172,7 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mStatsGeneration++;
         invalidatePath();
         invalidate();
     }
@@ -183,61 +213,28 @@ public class ChartNetworkSeriesView extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
+        if (mPointsGeneration != mStatsGeneration || mPointsStart != mStart
+                || mPointsEnd != mEnd || mPointsEndTime != mEndTime || mPointsWidth != width) {
+            generatePoints();
+            mPointsGeneration = mStatsGeneration;
+            mPointsStart = mStart;
+            mPointsEnd = mEnd;
+            mPointsEndTime = mEndTime;
+            mPointsWidth = width;
+        }
+
         float lastX = 0;
         float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
+        final long lastTime = mPointsLastTime;
+        long totalData = mPointsTotal;
 
         // move into starting position
         mPathStroke.moveTo(lastX, lastY);
         mPathFill.moveTo(lastX, lastY);
 
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
-            }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
-        }
-
-        // when data falls short, extend to requested end time
-        if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
-
+        for (int i = 0; i < mPointCount; i++) {
+            lastX = mPointX[i];
+            lastY = mVert.convertToPoint(mPointValue[i]);
             mPathStroke.lineTo(lastX, lastY);
             mPathFill.lineTo(lastX, lastY);
         }
@@ -263,6 +260,7 @@ public class ChartNetworkSeriesView extends View {
             final long bucketDuration = mStats.getBucketDuration();
 
             // long window is average over two weeks
+            NetworkStatsHistory.Entry entry = null;
             entry = mStats.getValues(lastTime - WEEK_IN_MILLIS * 2, lastTime, now, entry);
             final long longWindow = (entry.rxBytes + entry.txBytes) * bucketDuration
                     / entry.bucketDuration;
@@ -291,6 +289,114 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Walk the visible buckets of the bound {@link NetworkStatsHistory} and
+     * collect the points of its cumulative outline, decimated to the first
+     * and last point of each horizontal pixel. The outline never goes down,
+     * so these are also the minimum and maximum of the pixel.
+     */
+    private void generatePoints() {
+        mPointCount = 0;
+        mColumnCount = 0;
+
+        long lastTime = mHoriz.convertToValue(0);
+
+        // TODO: count fractional data from first bucket crossing start;
+        // currently it only accepts first full bucket.
+
+        long totalData = 0;
+
+        NetworkStatsHistory.Entry entry = null;
+
+        final int start = mStats.getIndexBefore(mStart);
+        final int end = mStats.getIndexAfter(mEnd);
+        for (int i = start; i <= end; i++) {
+            entry = mStats.getValues(i, entry);
+
+            final long startTime = entry.bucketStart;
+            final long endTime = startTime + entry.bucketDuration;
+
+            final float startX = mHoriz.convertToPoint(startTime);
+            final float endX = mHoriz.convertToPoint(endTime);
+
+            // skip until we find first stats on screen
+            if (endX < 0) continue;
+
+            if (lastTime != startTime) {
+                // gap in buckets; line to start of current bucket
+                addPoint(startX, totalData);
+            }
+
+            // increment by current bucket total
+            totalData += entry.rxBytes + entry.txBytes;
+
+            // always draw to end of current bucket
+            addPoint(endX, totalData);
+
+            lastTime = endTime;
+        }
+
+        // when data falls short, extend to requested end time
+        if (lastTime < mEndTime) {
+            addPoint(mHoriz.convertToPoint(mEndTime), totalData);
+        }
+        flushColumn();
+
+        mPointsTotal = totalData;
+        mPointsLastTime = lastTime;
+        if (LOGD) Log.d(TAG, "generatePoints() kept " + mPointCount + " points");
+    }
+
+    private void addPoint(float x, long value) {
+        final int column = (int) Math.floor(x);
+        if (mColumnCount > 0 && column != mColumn) {
+            flushColumn();
+        }
+        if (mColumnCount == 0) {
+            mColumn = column;
+            mFirstX = x;
+            mFirstValue = value;
+        }
+        mLastX = x;
+        mLastValue = value;
+        mColumnCount++;
+    }
+
+    /**
+     * Emit the points kept for the current pixel column, in drawing order.
+     */
+    private void flushColumn() {
+        if (mColumnCount == 0) {
+            return;
+        }
+        emitPoint(mFirstX, mFirstValue);
+        emitPoint(mLastX, mLastValue);
+        mColumnCount = 0;
+    }
+
+    private void emitPoint(float x, long value) {
+        // drop repeats of the previous point
+        if (mPointCount > 0 && mPointX[mPointCount - 1] == x
+                && mPointValue[mPointCount - 1] == value) {
+            return;
+        }
+        if (mPointCount == mPointX.length) {
+            final int size = Math.max(16, mPointCount * 2);
+            mPointX = Arrays.copyOf(mPointX, size);
+            mPointValue = Arrays.copyOf(mPointValue, size);
+        }
+        mPointX[mPointCount] = x;
+        mPointValue[mPointCount] = value;
+        mPointCount++;
+    }
+
+    /**
+     * Return the number of points of the outline, once drawn.
+     */
+    int getPointCount() {
+        return mPointCount;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
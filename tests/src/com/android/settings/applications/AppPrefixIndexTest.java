@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link AppPrefixIndex} against the linear scan it replaces, and logs the latency of
+ * both on 1,000 synthetic app labels typed one keystroke at a time. The latency depends on the
+ * device and its load, so it is not asserted.
+ */
+public class AppPrefixIndexTest extends AndroidTestCase {
+
+    private static final String TAG = "AppPrefixIndexTest";
+
+    private static final int SYNTHETIC_LABELS = 1000;
+    private static final int ITERATIONS = 20;
+
+    private static final String[] WORDS = new String[] {
+        "google", "play", "music", "movies", "maps", "photos", "camera", "calendar", "clock",
+        "contacts", "phone", "messaging", "email", "browser", "chrome", "drive", "docs", "sheets",
+        "keep", "notes", "weather", "news", "radio", "video", "player", "file", "manager",
+        "launcher", "keyboard", "fitness", "bank", "wallet", "translate", "scanner", "editor",
+    };
+
+    private static final String[] QUERIES = new String[] {
+        "google play", "play", "music", "ma", "file manager", "cam", "sheets", "zzz", "e",
+        "google pla", "p", "wallet",
+    };
+
+    public void testMultipleWords() throws Exception {
+        final AppPrefixIndex index = new AppPrefixIndex(new String[] {
+            "google play music", "play games", "music player", "maps", "my google",
+        });
+        assertPositions(index.filterPositions("play"), 0, 1, 2);
+        assertPositions(index.filterPositions("google"), 0, 4);
+        assertPositions(index.filterPositions("google play"), 0);
+        assertPositions(index.filterPositions("music p"), 2);
+        assertPositions(index.filterPositions("m"), 0, 2, 3, 4);
+        assertPositions(index.filterPositions("lay"));
+    }
+
+    public void testNarrowingMatchesScan() throws Exception {
+        final String[] labels = newLabels();
+        final AppPrefixIndex index = new AppPrefixIndex(labels);
+        for (String query : QUERIES) {
+            // As typed, then deleted
+            for (int n = 1; n <= query.length(); n++) {
+                final String prefix = query.substring(0, n);
+                assertTrue(prefix, Arrays.equals(scan(labels, prefix),
+                        index.filterPositions(prefix)));
+            }
+            for (int n = query.length() - 1; n > 0; n--) {
+                final String prefix = query.substring(0, n);
+                assertTrue(prefix, Arrays.equals(scan(labels, prefix),
+                        index.filterPositions(prefix)));
+            }
+        }
+    }
+
+    public void testLatency() throws Exception {
+        final String[] labels = newLabels();
+
+        final long buildStart = SystemClock.elapsedRealtimeNanos();
+        final AppPrefixIndex index = new AppPrefixIndex(labels);
+        Log.d(TAG, "Built index of " + labels.length + " labels in " +
+                (SystemClock.elapsedRealtimeNanos() - buildStart) / 1000 + " micros");
+
+        final List<String> keystrokes = new ArrayList<String>();
+        for (String query : QUERIES) {
+            for (int n = 1; n <= query.length(); n++) {
+                keystrokes.add(query.substring(0, n));
+            }
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String prefix : keystrokes) {
+                index.filterPositions(prefix);
+            }
+        }
+        final long indexMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000 /
+                (ITERATIONS * keystrokes.size());
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String prefix : keystrokes) {
+                scan(labels, prefix);
+            }
+        }
+        final long scanMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000 /
+                (ITERATIONS * keystrokes.size());
+
+        Log.d(TAG, "Per keystroke on " + labels.length + " labels: index " + indexMicros +
+                " micros, scan " + scanMicros + " micros");
+    }
+
+    /**
+     * @return the positions of the labels matching a prefix, as filtered by ManageApplications
+     * before the index.
+     */
+    private static int[] scan(String[] labels, String prefix) {
+        final String spacePrefix = " " + prefix;
+        final int[] matches = new int[labels.length];
+        int count = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].startsWith(prefix) || labels[i].indexOf(spacePrefix) != -1) {
+                matches[count++] = i;
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * @return normalized labels of one to four words.
+     */
+    private static String[] newLabels() {
+        final Random random = new Random(42);
+        final String[] labels = new String[SYNTHETIC_LABELS];
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i++) {
+            sb.setLength(0);
+            final int words = 1 + random.nextInt(4);
+            for (int n = 0; n < words; n++) {
+                if (n > 0) {
+                    sb.append(' ');
+                }
+                sb.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            labels[i] = sb.toString();
+        }
+        return labels;
+    }
+
+    private static void assertPositions(int[] actual, int... expected) {
+        assertTrue("Expected " + Arrays.toString(expected) + " but was " +
+                Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the typo tolerance of {@link FuzzyTokenIndex} and logs the latency of its lookups on
+ * the number of distinct tokens of a few thousand indexed rows. The latency depends on the
+ * device and its load, so it is not asserted.
+ */
+public class FuzzyTokenIndexTest extends AndroidTestCase {
+
+    private static final String TAG = "FuzzyTokenIndexTest";
+
+    private static final int SYNTHETIC_TOKENS = 5000;
+    private static final int ITERATIONS = 20;
+
+    private static final String[] TOKENS = new String[] {
+        "wifi", "bluetooth", "brightness", "battery", "location", "screen", "lock", "sound",
+        "vibrate", "notifications", "display", "storage", "memory", "accounts", "language",
+        "keyboard", "backup", "reset", "date", "time", "accessibility", "printing", "developer",
+        "network", "mobile", "data", "usage", "airplane", "tethering", "hotspot", "sleep",
+    };
+
+    // query token, expected token
+    private static final String[][] TYPOS = new String[][] {
+        { "wfi", "wifi" },
+        { "wiffi", "wifi" },
+        { "bluetoth", "bluetooth" },
+        { "bleutooth", "bluetooth" },
+        { "brigthness", "brightness" },
+        { "batery", "battery" },
+        { "lcoation", "location" },
+        { "scren", "screen" },
+        { "notfications", "notifications" },
+        { "acessibility", "accessibility" },
+    };
+
+    public void testDistance() throws Exception {
+        assertEquals(0, FuzzyTokenIndex.distance("wifi", "wifi", 2));
+        assertEquals(1, FuzzyTokenIndex.distance("wfi", "wifi", 2));
+        assertEquals(1, FuzzyTokenIndex.distance("wifo", "wifi", 2));
+        assertEquals(2, FuzzyTokenIndex.distance("bleutooth", "bluetooth", 2));
+        assertTrue(FuzzyTokenIndex.distance("sound", "battery", 2) > 2);
+    }
+
+    public void testTypos() throws Exception {
+        final FuzzyTokenIndex index = newIndex();
+        final BitSet result = new BitSet();
+        for (String[] typo : TYPOS) {
+            result.clear();
+            index.lookup(typo[0], FuzzyTokenIndex.getMaxDistance(typo[0]), result);
+            assertTrue("'" + typo[0] + "' does not match '" + typo[1] + "'",
+                    result.get(indexOf(typo[1])));
+        }
+    }
+
+    public void testShortTokensAreNotFuzzy() throws Exception {
+        final FuzzyTokenIndex index = newIndex();
+        final BitSet result = new BitSet();
+        index.lookup("wf", FuzzyTokenIndex.getMaxDistance("wf"), result);
+        assertTrue(result.isEmpty());
+    }
+
+    public void testLatency() throws Exception {
+        final long buildStart = SystemClock.elapsedRealtime();
+        final FuzzyTokenIndex index = newIndex();
+        Log.d(TAG, "Built " + index.size() + " tokens in " +
+                (SystemClock.elapsedRealtime() - buildStart) + " millis");
+
+        // Every keystroke of the typos, as typed
+        final List<String> queries = new ArrayList<String>();
+        for (String[] typo : TYPOS) {
+            for (int n = 1; n <= typo[0].length(); n++) {
+                queries.add(typo[0].substring(0, n));
+            }
+        }
+
+        final BitSet result = new BitSet();
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String query : queries) {
+                result.clear();
+                index.lookup(query, FuzzyTokenIndex.getMaxDistance(query), result);
+            }
+        }
+        final float perQuery = (float) (SystemClock.elapsedRealtime() - start) /
+                (ITERATIONS * queries.size());
+        Log.d(TAG, "Fuzzy lookup in " + index.size() + " tokens took " + perQuery +
+                " millis per keystroke, budget " + SearchPrefixIndex.FUZZY_SEARCH_BUDGET_MILLIS +
+                " millis");
+    }
+
+    /**
+     * @return an index of the known tokens, with ids their indices in TOKENS, and of synthetic
+     * tokens with higher ids.
+     */
+    private static FuzzyTokenIndex newIndex() {
+        final FuzzyTokenIndex index = new FuzzyTokenIndex();
+        for (int n = 0; n < TOKENS.length; n++) {
+            index.add(TOKENS[n], n);
+        }
+        final Random random = new Random(42);
+        final char[] chars = new char[12];
+        for (int n = 0; n < SYNTHETIC_TOKENS; n++) {
+            final int length = 3 + random.nextInt(chars.length - 3);
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) ('a' + random.nextInt(26));
+            }
+            index.add(new String(chars, 0, length), TOKENS.length + n);
+        }
+        return index;
+    }
+
+    private static int indexOf(String token) {
+        for (int n = 0; n < TOKENS.length; n++) {
+            if (TOKENS[n].equals(token)) {
+                return n;
+            }
+        }
+        return -1;
+    }
+}
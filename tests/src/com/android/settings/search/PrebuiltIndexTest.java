@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Loads the prebuilt search index generated with this build of Settings.
+ */
+public class PrebuiltIndexTest extends AndroidTestCase {
+
+    public void testLoadPrebuiltIndex() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "prebuilt_test.db");
+        file.delete();
+        final SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            IndexDatabaseHelper.createTables(database);
+            final int count = PrebuiltIndex.load(getContext(), database);
+
+            final String locale = Locale.getDefault().toString();
+            final long rows = DatabaseUtils.queryNumEntries(database,
+                    IndexDatabaseHelper.Tables.TABLE_PREFS_INDEX,
+                    IndexDatabaseHelper.IndexColumns.LOCALE + " = ?", new String[] { locale });
+            final long fingerprints = DatabaseUtils.queryNumEntries(database,
+                    IndexDatabaseHelper.Tables.TABLE_FINGERPRINTS,
+                    IndexDatabaseHelper.FingerprintsColumns.LOCALE + " = ?",
+                    new String[] { locale });
+            assertTrue("No prebuilt rows for locale " + locale, count > 0);
+            assertEquals(count, rows);
+            assertTrue("No prebuilt fingerprints for locale " + locale, fingerprints > 0);
+        } finally {
+            database.close();
+            file.delete();
+        }
+    }
+}
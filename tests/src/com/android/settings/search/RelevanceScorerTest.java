@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Evaluates the ranking quality of {@link RelevanceScorer} on a fixed set of candidates and
+ * queries, and logs its latency. The latency depends on the device and its load, so it is not
+ * asserted.
+ */
+public class RelevanceScorerTest extends AndroidTestCase {
+
+    private static final String TAG = "RelevanceScorerTest";
+
+    // Minimum mean reciprocal rank of the expected results
+    private static final float MIN_MEAN_RECIPROCAL_RANK = 0.9f;
+    private static final int ITERATIONS = 100;
+
+    // rank, title, keywords, summary
+    private static final Object[][] CANDIDATES = new Object[][] {
+        { Ranking.RANK_WIFI, "Wi-Fi", "wifi, wi-fi, network connection", null },
+        { Ranking.RANK_WIFI, "Wi-Fi Direct", "wifi, wi-fi, direct", null },
+        { Ranking.RANK_WIFI, "Advanced Wi-Fi", "wifi, wi-fi, network, advanced", null },
+        { Ranking.RANK_BT, "Bluetooth", "bluetooth, pairing", null },
+        { Ranking.RANK_DATA_USAGE, "Data usage", "data, mobile, network", null },
+        { Ranking.RANK_DISPLAY, "Brightness level", "display, screen", null },
+        { Ranking.RANK_DISPLAY, "Adaptive brightness", "display, screen",
+                "Optimize brightness level for available light" },
+        { Ranking.RANK_DISPLAY, "Sleep", "screen timeout", "After 1 minute of inactivity" },
+        { Ranking.RANK_NOTIFICATIONS, "Ringtone", "sound, ring", null },
+        { Ranking.RANK_NOTIFICATIONS, "Vibrate when ringing", "sound, ring, vibration", null },
+        { Ranking.RANK_POWER_USAGE, "Battery saver", "battery, power", null },
+        { Ranking.RANK_LOCATION, "Location mode", "gps, location", "High accuracy" },
+        { Ranking.RANK_SECURITY, "Screen lock", "password, pattern, pin", null },
+        { Ranking.RANK_SECURITY, "Network connection monitoring", "certificates", null },
+        { Ranking.RANK_DEVELOPEMENT, "Stay awake", "screen", "Screen will never sleep" },
+        { Ranking.RANK_DEVICE_INFO, "Build number", "version", null },
+    };
+
+    // query, expected best result
+    private static final String[][] QUERIES = new String[][] {
+        { "wi", "Wi-Fi" },
+        { "wifi", "Wi-Fi" },
+        { "wi fi direct", "Wi-Fi Direct" },
+        { "blue", "Bluetooth" },
+        { "bright", "Brightness level" },
+        { "adaptive", "Adaptive brightness" },
+        { "sleep", "Sleep" },
+        { "network connection", "Network connection monitoring" },
+        { "vibrate", "Vibrate when ringing" },
+        { "battery", "Battery saver" },
+        { "gps", "Location mode" },
+        { "lock", "Screen lock" },
+        { "build", "Build number" },
+    };
+
+    public void testRankingQuality() throws Exception {
+        final SearchScorer scorer = new RelevanceScorer();
+
+        float reciprocalRanks = 0;
+        for (String[] query : QUERIES) {
+            final int position = getPosition(scorer, query[0], query[1]);
+            Log.d(TAG, "Query '" + query[0] + "' -> '" + query[1] + "' at position " + position);
+            reciprocalRanks += (position > 0) ? 1f / position : 0;
+        }
+        final float meanReciprocalRank = reciprocalRanks / QUERIES.length;
+        Log.d(TAG, "Mean reciprocal rank: " + meanReciprocalRank);
+
+        assertTrue("Mean reciprocal rank too low: " + meanReciprocalRank,
+                meanReciprocalRank >= MIN_MEAN_RECIPROCAL_RANK);
+    }
+
+    public void testTitleMatchBeatsKeywordsMatch() throws Exception {
+        final SearchScorer scorer = new RelevanceScorer();
+        final SearchScorer.Query query = newQuery("network");
+
+        // A title hit on a deep page must win over a keyword hit on a high ranked page
+        assertTrue(scorer.score(query, newCandidate(CANDIDATES[13])) >
+                scorer.score(query, newCandidate(CANDIDATES[0])));
+    }
+
+    public void testSavedQueriesBoost() throws Exception {
+        final SearchScorer scorer = new RelevanceScorer();
+        final long now = System.currentTimeMillis();
+        final SearchScorer.Query query = newQuery("screen");
+        final SearchScorer.Query boosted = new SearchScorer.Query("screen",
+                new String[][] { SearchPrefixIndex.tokenize("screen lock") },
+                new long[] { now }, now);
+
+        final SearchScorer.Candidate candidate = newCandidate(CANDIDATES[12]);
+        assertTrue(scorer.score(boosted, candidate) > scorer.score(query, candidate));
+    }
+
+    public void testNormalizedTitleMatch() throws Exception {
+        final SearchScorer scorer = new RelevanceScorer();
+        final SearchScorer.Query query = newQuery("wifi");
+
+        // "wifi" only matches the title once its hyphen has been removed
+        final SearchScorer.Candidate candidate = new SearchScorer.Candidate();
+        candidate.rank = Ranking.RANK_WIFI;
+        candidate.title = "Wi-Fi";
+        final float rawScore = scorer.score(query, candidate);
+        candidate.normalizedTitle = "wifi";
+        assertTrue(scorer.score(query, candidate) > rawScore);
+    }
+
+    public void testLatency() throws Exception {
+        final SearchScorer scorer = new RelevanceScorer();
+        final SearchScorer.Candidate[] candidates = new SearchScorer.Candidate[CANDIDATES.length];
+        for (int n = 0; n < candidates.length; n++) {
+            candidates[n] = newCandidate(CANDIDATES[n]);
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String[] query : QUERIES) {
+                final SearchScorer.Query scorerQuery = newQuery(query[0]);
+                for (SearchScorer.Candidate candidate : candidates) {
+                    scorer.score(scorerQuery, candidate);
+                }
+            }
+        }
+        final long perQuery = (SystemClock.elapsedRealtime() - start) /
+                (ITERATIONS * QUERIES.length);
+        Log.d(TAG, "Scoring " + candidates.length + " candidates took " + perQuery +
+                " millis per query");
+    }
+
+    /**
+     * @return the 1 based position of the expected title, or 0 if it does not match.
+     */
+    private static int getPosition(SearchScorer scorer, String query, String expectedTitle) {
+        final SearchScorer.Query scorerQuery = newQuery(query);
+
+        float expectedScore = -1;
+        for (Object[] values : CANDIDATES) {
+            if (expectedTitle.equals(values[1])) {
+                expectedScore = scorer.score(scorerQuery, newCandidate(values));
+            }
+        }
+        if (expectedScore <= 0) {
+            return 0;
+        }
+        int position = 1;
+        for (Object[] values : CANDIDATES) {
+            if (!expectedTitle.equals(values[1]) &&
+                    scorer.score(scorerQuery, newCandidate(values)) > expectedScore) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    private static SearchScorer.Query newQuery(String query) {
+        return new SearchScorer.Query(query, null, null, System.currentTimeMillis());
+    }
+
+    private static SearchScorer.Candidate newCandidate(Object[] values) {
+        final SearchScorer.Candidate candidate = new SearchScorer.Candidate();
+        candidate.rank = (Integer) values[0];
+        candidate.title = (String) values[1];
+        candidate.keywords = (String) values[2];
+        candidate.summaryOn = (String) values[3];
+        return candidate;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.widget;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.net.NetworkStatsHistory;
+import android.test.AndroidTestCase;
+import android.text.SpannableStringBuilder;
+
+/**
+ * Checks that {@link ChartNetworkSeriesView} decimates long histories to a
+ * few points per horizontal pixel.
+ */
+public class ChartNetworkSeriesViewTest extends AndroidTestCase {
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 400;
+
+    private static final long START = 1400000000000L;
+    private static final long END = START + 90 * DAY_IN_MILLIS;
+
+    public void testHourlyHistoryBounded() throws Exception {
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS,
+                (int) ((END - START) / HOUR_IN_MILLIS));
+        long total = 0;
+        for (long time = START; time < END; time += HOUR_IN_MILLIS) {
+            final long rx = 1024 * (1 + (time / HOUR_IN_MILLIS) % 7);
+            history.recordData(time, time + HOUR_IN_MILLIS, rx, rx / 4);
+            total += rx + rx / 4;
+        }
+        assertTrue(history.size() > WIDTH * 2);
+
+        final LinearAxis horiz = new LinearAxis(false);
+        final LinearAxis vert = new LinearAxis(true);
+        horiz.setBounds(START, END);
+        horiz.setSize(WIDTH);
+        vert.setBounds(0, total);
+        vert.setSize(HEIGHT);
+
+        final ChartNetworkSeriesView series = new ChartNetworkSeriesView(getContext());
+        series.init(horiz, vert);
+        series.bindNetworkStats(history);
+        series.setBounds(START, END);
+        series.setEndTime(END);
+        series.layout(0, 0, WIDTH, HEIGHT);
+
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        series.draw(canvas);
+
+        final int points = series.getPointCount();
+        // Two points for each pixel column, plus the columns of the edges
+        assertTrue("Too many points: " + points, points <= (WIDTH + 2) * 2);
+        assertTrue("Too few points: " + points, points >= WIDTH);
+        assertEquals(total, series.getMaxVisible());
+
+        // Vertical bounds changes reuse the decimated points
+        vert.setBounds(0, total * 2);
+        series.invalidatePath();
+        series.draw(canvas);
+        assertEquals(points, series.getPointCount());
+        assertEquals(total, series.getMaxVisible());
+
+        bitmap.recycle();
+    }
+
+    /**
+     * Linear axis, optionally inverted to grow from the bottom of the chart.
+     */
+    private static class LinearAxis implements ChartAxis {
+        private final boolean mInverted;
+        private long mMin;
+        private long mMax;
+        private float mSize;
+
+        LinearAxis(boolean inverted) {
+            mInverted = inverted;
+        }
+
+        @Override
+        public boolean setBounds(long min, long max) {
+            mMin = min;
+            mMax = max;
+            return true;
+        }
+
+        @Override
+        public boolean setSize(float size) {
+            mSize = size;
+            return true;
+        }
+
+        @Override
+        public float convertToPoint(long value) {
+            final float point = mSize * (value - mMin) / (mMax - mMin);
+            return mInverted ? mSize - point : point;
+        }
+
+        @Override
+        public long convertToValue(float point) {
+            if (mInverted) {
+                point = mSize - point;
+            }
+            return (long) (mMin + (mMax - mMin) * point / mSize);
+        }
+
+        @Override
+        public long buildLabel(Resources res, SpannableStringBuilder builder, long value) {
+            return value;
+        }
+
+        @Override
+        public float[] getTickPoints() {
+            return new float[0];
+        }
+
+        @Override
+        public int shouldAdjustAxis(long value) {
+            return 0;
+        }
+    }
+}
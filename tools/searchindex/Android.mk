@@ -0,0 +1,10 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# Host tool generating the prebuilt search index of Settings.
+LOCAL_MODULE := settings-search-index-generator
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,586 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search.generator;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Host tool generating the prebuilt search index of Settings at build time.
+ *
+ * For every locale of the resources, it resolves the strings of the PreferenceScreen XML
+ * resources the same way Index.indexFromResource() does on the device, and writes them to
+ * one asset per locale that PrebuiltIndex loads when the Index database is created.
+ *
+ * The strings are resolved for the locale and the keyboard qualifiers only, assuming a
+ * device without keys: the other qualifiers are ignored.
+ *
+ * Usage: SearchIndexGenerator [--product PRODUCT[,PRODUCT]...] --build BUILD_NUMBER
+ *            --out DIR [--res DIR]... [--framework-res DIR]...
+ *
+ * The resource directories are given from the highest priority (the overlays) to the
+ * lowest one.
+ */
+public final class SearchIndexGenerator {
+
+    // Must match PrebuiltIndex
+    static final int FORMAT_VERSION = 1;
+    static final String DEFAULT_LOCALE_NAME = "default";
+
+    private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+    private static final String SETTINGS_NS = "http://schemas.android.com/apk/res/com.android.settings";
+    private static final String AUTO_NS = "http://schemas.android.com/apk/res-auto";
+
+    // Must match Index
+    private static final String NODE_NAME_PREFERENCE_SCREEN = "PreferenceScreen";
+    private static final String NODE_NAME_CHECK_BOX_PREFERENCE = "CheckBoxPreference";
+    private static final String NODE_NAME_LIST_PREFERENCE = "ListPreference";
+    private static final String ENTRIES_SEPARATOR = "|";
+
+    private static final String NOKEYS = "nokeys";
+
+    /**
+     * The qualifiers of a values directory that matter for the index.
+     */
+    static final class Config {
+        final String language;
+        final String region;
+        final boolean nokeys;
+
+        Config(String language, String region, boolean nokeys) {
+            this.language = language;
+            this.region = region;
+            this.nokeys = nokeys;
+        }
+
+        /**
+         * @return the config of the given directory name, or null if it has other qualifiers.
+         */
+        static Config parse(String dirName, String type) {
+            if (!dirName.equals(type) && !dirName.startsWith(type + "-")) {
+                return null;
+            }
+            final String[] qualifiers = dirName.split("-");
+            String language = null;
+            String region = null;
+            boolean nokeys = false;
+            for (int i = 1; i < qualifiers.length; i++) {
+                final String q = qualifiers[i];
+                if (language == null && region == null && !nokeys && q.length() == 2
+                        && Character.isLowerCase(q.charAt(0))) {
+                    language = q;
+                } else if (language != null && region == null && !nokeys && q.length() == 3
+                        && q.charAt(0) == 'r') {
+                    region = q.substring(1);
+                } else if (!nokeys && NOKEYS.equals(q)) {
+                    nokeys = true;
+                } else {
+                    return null;
+                }
+            }
+            return new Config(language, region, nokeys);
+        }
+
+        String getLocaleName() {
+            if (language == null) {
+                return DEFAULT_LOCALE_NAME;
+            }
+            return (region == null) ? language : language + "_" + region;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config c = (Config) o;
+            return equal(language, c.language) && equal(region, c.region) && nokeys == c.nokeys;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { language, region, nokeys });
+        }
+
+        private static boolean equal(String a, String b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * A value along with where it comes from.
+     */
+    static final class Value {
+        final Object value;
+        final File dir;
+        final int productRank;
+
+        Value(Object value, File dir, int productRank) {
+            this.value = value;
+            this.dir = dir;
+            this.productRank = productRank;
+        }
+    }
+
+    /**
+     * The values of one package (Settings or the framework), by type/name then config.
+     */
+    static final class ResourceTable {
+        final Map<String, Map<Config, Value>> values = new HashMap<String, Map<Config, Value>>();
+        final Map<String, File> xmlFiles = new TreeMap<String, File>();
+        final TreeSet<String> localeNames = new TreeSet<String>();
+        final List<String> products;
+
+        ResourceTable(List<String> products) {
+            this.products = products;
+        }
+
+        void put(String typeAndName, Config config, Value value) {
+            Map<Config, Value> configs = values.get(typeAndName);
+            if (configs == null) {
+                configs = new HashMap<Config, Value>();
+                values.put(typeAndName, configs);
+            }
+            // The directories are added from the highest priority one, and the variant for
+            // the product replaces the default one of the same directory.
+            final Value previous = configs.get(config);
+            if (previous == null
+                    || previous.dir == value.dir && previous.productRank < value.productRank) {
+                configs.put(config, value);
+            }
+        }
+
+        Object get(String typeAndName, String language, String region) {
+            final Map<Config, Value> configs = values.get(typeAndName);
+            if (configs == null) {
+                return null;
+            }
+            // The locale takes precedence over the keyboard
+            final List<Config> candidates = new ArrayList<Config>();
+            if (language != null) {
+                if (region != null) {
+                    candidates.add(new Config(language, region, true));
+                    candidates.add(new Config(language, region, false));
+                }
+                candidates.add(new Config(language, null, true));
+                candidates.add(new Config(language, null, false));
+            }
+            candidates.add(new Config(null, null, true));
+            candidates.add(new Config(null, null, false));
+            for (Config config : candidates) {
+                final Value value = configs.get(config);
+                if (value != null) {
+                    return value.value;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return 2 for the variant of the product, 1 for the default one, 0 for another one.
+         */
+        int getProductRank(Element e) {
+            final String product = e.getAttribute("product");
+            if (product.length() == 0 || product.equals("default")) {
+                return 1;
+            }
+            return products.contains(product) ? 2 : 0;
+        }
+
+        void addResourceDir(DocumentBuilder builder, File dir) throws IOException, SAXException {
+            final File[] children = dir.listFiles();
+            if (children == null) {
+                throw new IOException("Cannot list " + dir);
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                final Config valuesConfig = Config.parse(child.getName(), "values");
+                if (valuesConfig != null) {
+                    localeNames.add(valuesConfig.getLocaleName());
+                    addValuesDir(builder, child, valuesConfig);
+                } else if (child.getName().equals("xml")) {
+                    final File[] files = child.listFiles();
+                    Arrays.sort(files);
+                    for (File file : files) {
+                        final String name = file.getName();
+                        if (name.endsWith(".xml")) {
+                            final String resName = name.substring(0, name.length() - 4);
+                            if (!xmlFiles.containsKey(resName)) {
+                                xmlFiles.put(resName, file);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void addValuesDir(DocumentBuilder builder, File dir, Config config)
+                throws IOException, SAXException {
+            final File[] files = dir.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                if (!file.getName().endsWith(".xml")) {
+                    continue;
+                }
+                final Element resources = builder.parse(file).getDocumentElement();
+                for (Node n = resources.getFirstChild(); n != null; n = n.getNextSibling()) {
+                    if (n.getNodeType() != Node.ELEMENT_NODE) {
+                        continue;
+                    }
+                    final Element e = (Element) n;
+                    final String tag = e.getTagName();
+                    final String name = e.getAttribute("name");
+                    final int productRank = getProductRank(e);
+                    if (productRank == 0) {
+                        continue;
+                    }
+                    if (tag.equals("string")
+                            || tag.equals("item") && "string".equals(e.getAttribute("type"))) {
+                        put("string/" + name, config, new Value(getText(e), dir, productRank));
+                    } else if (tag.equals("string-array") || tag.equals("array")) {
+                        final List<String> items = new ArrayList<String>();
+                        final NodeList itemNodes = e.getElementsByTagName("item");
+                        for (int i = 0; i < itemNodes.getLength(); i++) {
+                            items.add(getText((Element) itemNodes.item(i)));
+                        }
+                        put("array/" + name, config, new Value(items, dir, productRank));
+                    }
+                }
+            }
+        }
+    }
+
+    private final List<String> mProducts = new ArrayList<String>();
+    private final ResourceTable mSettings = new ResourceTable(mProducts);
+    private final ResourceTable mFramework = new ResourceTable(mProducts);
+    private final DocumentBuilder mBuilder;
+
+    private String mLanguage;
+    private String mRegion;
+
+    private SearchIndexGenerator() throws ParserConfigurationException {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        mBuilder = factory.newDocumentBuilder();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final SearchIndexGenerator generator = new SearchIndexGenerator();
+        String build = null;
+        File out = null;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                usage();
+            }
+            final String arg = args[i];
+            final String value = args[++i];
+            if (arg.equals("--product")) {
+                // Like aapt, before the resource directories
+                generator.mProducts.addAll(Arrays.asList(value.split(",")));
+            } else if (arg.equals("--build")) {
+                build = value;
+            } else if (arg.equals("--out")) {
+                out = new File(value);
+            } else if (arg.equals("--res")) {
+                generator.mSettings.addResourceDir(generator.mBuilder, new File(value));
+            } else if (arg.equals("--framework-res")) {
+                generator.mFramework.addResourceDir(generator.mBuilder, new File(value));
+            } else {
+                usage();
+            }
+        }
+        if (build == null || out == null) {
+            usage();
+        }
+        generator.generate(build, out);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SearchIndexGenerator [--product PRODUCT[,PRODUCT]...]"
+                + " --build BUILD_NUMBER --out DIR [--res DIR]... [--framework-res DIR]...");
+        System.exit(1);
+    }
+
+    private void generate(String build, File out) throws IOException, SAXException {
+        if (!out.isDirectory() && !out.mkdirs()) {
+            throw new IOException("Cannot create " + out);
+        }
+
+        // The screens are the same for all the locales
+        final Map<String, Element> screens = new TreeMap<String, Element>();
+        for (Map.Entry<String, File> entry : mSettings.xmlFiles.entrySet()) {
+            final Element root = mBuilder.parse(entry.getValue()).getDocumentElement();
+            if (NODE_NAME_PREFERENCE_SCREEN.equals(root.getTagName())) {
+                screens.put(entry.getKey(), root);
+            }
+        }
+
+        // A locale only found in the framework still changes the strings it provides
+        final TreeSet<String> localeNames = new TreeSet<String>(mSettings.localeNames);
+        localeNames.addAll(mFramework.localeNames);
+        for (String localeName : localeNames) {
+            if (DEFAULT_LOCALE_NAME.equals(localeName)) {
+                mLanguage = null;
+                mRegion = null;
+            } else {
+                final int sep = localeName.indexOf('_');
+                mLanguage = (sep < 0) ? localeName : localeName.substring(0, sep);
+                mRegion = (sep < 0) ? null : localeName.substring(sep + 1);
+            }
+
+            final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(out, localeName))));
+            try {
+                os.writeInt(FORMAT_VERSION);
+                os.writeUTF(build);
+                os.writeInt(screens.size());
+                for (Map.Entry<String, Element> entry : screens.entrySet()) {
+                    os.writeUTF(entry.getKey());
+                    final List<String[]> rows = indexScreen(entry.getValue());
+                    os.writeInt(rows.size());
+                    for (String[] row : rows) {
+                        for (String value : row) {
+                            os.writeBoolean(value != null);
+                            if (value != null) {
+                                os.writeUTF(value);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                os.close();
+            }
+        }
+    }
+
+    /**
+     * @return the rows of a PreferenceScreen, as title, summaryOn, summaryOff, entries,
+     * keywords, screenTitle and key.
+     */
+    private List<String[]> indexScreen(Element root) {
+        final List<String[]> rows = new ArrayList<String[]>();
+        final String screenTitle = getString(root, ANDROID_NS, "title");
+
+        addRow(rows, screenTitle, getString(root, ANDROID_NS, "summary"), null, null,
+                getKeywords(root), screenTitle, getString(root, ANDROID_NS, "key"));
+
+        final NodeList nodes = root.getElementsByTagName("*");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            final Element e = (Element) nodes.item(i);
+            final String nodeName = e.getTagName();
+            final String title = getString(e, ANDROID_NS, "title");
+            final String keywords = getKeywords(e);
+            final String key = getString(e, ANDROID_NS, "key");
+
+            if (!nodeName.equals(NODE_NAME_CHECK_BOX_PREFERENCE)) {
+                final String summary = getString(e, ANDROID_NS, "summary");
+                String entries = null;
+                if (nodeName.endsWith(NODE_NAME_LIST_PREFERENCE)) {
+                    entries = getEntries(e);
+                }
+                addRow(rows, title, summary, null, entries, keywords, screenTitle, key);
+            } else {
+                String summaryOn = getString(e, ANDROID_NS, "summaryOn");
+                final String summaryOff = getString(e, ANDROID_NS, "summaryOff");
+                if (isEmpty(summaryOn) && isEmpty(summaryOff)) {
+                    summaryOn = getString(e, ANDROID_NS, "summary");
+                }
+                addRow(rows, title, summaryOn, summaryOff, null, keywords, screenTitle, key);
+            }
+        }
+        return rows;
+    }
+
+    private static void addRow(List<String[]> rows, String title, String summaryOn,
+            String summaryOff, String entries, String keywords, String screenTitle,
+            String key) {
+        // Rows without a title are not indexed
+        if (isEmpty(title)) {
+            return;
+        }
+        rows.add(new String[] {
+                title, summaryOn, summaryOff, entries, keywords, screenTitle, key
+        });
+    }
+
+    private String getKeywords(Element e) {
+        final String keywords = getString(e, SETTINGS_NS, "keywords");
+        return (keywords != null) ? keywords : getString(e, AUTO_NS, "keywords");
+    }
+
+    /**
+     * @return the string value of an attribute, or null if it is not a string, like
+     * Index.getData().
+     */
+    private String getString(Element e, String ns, String name) {
+        if (!e.hasAttributeNS(ns, name)) {
+            return null;
+        }
+        final String value = e.getAttributeNS(ns, name);
+        if (value.startsWith("@") || value.startsWith("?")) {
+            final Object resolved = resolve(value);
+            return (resolved instanceof String) ? (String) resolved : null;
+        }
+        return processString(value);
+    }
+
+    /**
+     * @return the entries of a list, only given by reference, like Index.getDataEntries().
+     */
+    private String getEntries(Element e) {
+        if (!e.hasAttributeNS(ANDROID_NS, "entries")) {
+            return null;
+        }
+        final Object resolved = resolve(e.getAttributeNS(ANDROID_NS, "entries"));
+        if (!(resolved instanceof List)) {
+            return null;
+        }
+        final List<?> items = (List<?>) resolved;
+        if (items.isEmpty()) {
+            return null;
+        }
+        final StringBuilder result = new StringBuilder();
+        for (Object item : items) {
+            final Object value = resolveValue((String) item);
+            result.append((value instanceof String) ? value : "");
+            result.append(ENTRIES_SEPARATOR);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the String or List of items a reference points to, or null.
+     */
+    private Object resolve(String ref) {
+        // Follow the aliases, without looping forever
+        for (int depth = 0; depth < 16; depth++) {
+            if (!ref.startsWith("@") || ref.equals("@null")) {
+                return null;
+            }
+            String name = ref.substring(1);
+            ResourceTable table = mSettings;
+            if (name.startsWith("*")) {
+                name = name.substring(1);
+            }
+            final int colon = name.indexOf(':');
+            if (colon >= 0) {
+                if (!"android".equals(name.substring(0, colon))) {
+                    return null;
+                }
+                table = mFramework;
+                name = name.substring(colon + 1);
+            }
+            final Object value = table.get(name, mLanguage, mRegion);
+            if (!(value instanceof String) || !((String) value).startsWith("@")) {
+                return (value instanceof String) ? processString((String) value) : value;
+            }
+            ref = (String) value;
+        }
+        return null;
+    }
+
+    private Object resolveValue(String value) {
+        return value.startsWith("@") ? resolve(value) : processString(value);
+    }
+
+    /**
+     * @return the raw text of an element, with the text of its children such as xliff:g.
+     */
+    private static String getText(Element e) {
+        return e.getTextContent();
+    }
+
+    /**
+     * Process the quotes, escapes and white spaces of a raw string like aapt does.
+     */
+    static String processString(String raw) {
+        if (raw.startsWith("\\@") || raw.startsWith("\\?")) {
+            raw = raw.substring(1);
+        }
+        final StringBuilder sb = new StringBuilder(raw.length());
+        boolean quoted = false;
+        boolean pendingSpace = false;
+        for (int i = 0; i < raw.length(); i++) {
+            final char c = raw.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                continue;
+            }
+            if (!quoted && Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                sb.append(' ');
+                pendingSpace = false;
+            }
+            if (c == '\\' && i + 1 < raw.length()) {
+                final char next = raw.charAt(++i);
+                switch (next) {
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (i + 4 < raw.length()) {
+                            try {
+                                sb.append((char) Integer.parseInt(
+                                        raw.substring(i + 1, i + 5), 16));
+                                i += 4;
+                                break;
+                            } catch (NumberFormatException e) {
+                                // Keep the raw character
+                            }
+                        }
+                        sb.append(next);
+                        break;
+                    default:
+                        sb.append(next);
+                        break;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.length() == 0;
+    }
+}